@@ -0,0 +1,51 @@
+package shape.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Runs the benchmarks of the MD tag, alignment walking, read counting and
+ * text output hot paths with the GC profiler, so that allocation per
+ * operation (gc.alloc.rate.norm) is reported next to the time of each.
+ * <p>
+ * The benchmarks are built with the main sources by benchmarks/pom.xml, given
+ * the paths of the SAM and guttmanlab core jars, and run with those jars on
+ * the class path:
+ * <pre>
+ * mvn -f benchmarks/pom.xml package -Dsam.jar=SAM_JAR -Dguttmanlab.jar=GUTTMANLAB_JAR
+ * java -cp benchmarks/target/benchmarks.jar:SAM_JAR:GUTTMANLAB_JAR shape.benchmarks.Benchmarks [-i regex] [-o results.json]
+ * </pre>
+ *
+ * @author Mason M Lai
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws RunnerException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-i", "Regular expression of the benchmarks to run, e.g., MdTag or " +
+				"ProfileIncrementBenchmark.addMatchRange. Defaults to all.", false, "shape\\..*Benchmark");
+		p.addStringArg("-o", "JSON file to write the results to, e.g., to compare runs with a JMH " +
+				"visualizer. Defaults to none, i.e., results are only printed.", false, null);
+		p.addIntArg("-f", "Number of forks of each benchmark. Defaults to the number set by each benchmark.", false, -1);
+		p.parse(args);
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(p.getStringArg("-i"))
+				.addProfiler(GCProfiler.class);
+		String output = p.getStringArg("-o");
+		if (output != null) {
+			options.resultFormat(ResultFormatType.JSON).result(output);
+		}
+		int forks = p.getIntArg("-f");
+		if (forks >= 0) {
+			options.forks(forks);
+		}
+		new Runner(options.build()).run();
+	}
+}
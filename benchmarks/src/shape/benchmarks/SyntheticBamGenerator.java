@@ -0,0 +1,464 @@
+package shape.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.util.CommandLineParser;
+
+import shape.profiles.BinaryProfileFile;
+import shape.profiles.MutationProfileCollection;
+import shape.profiles.StorageType;
+import shape.utils.Nucleotide;
+
+/**
+ * Writes a coordinate-sorted, indexed .bam file of random reads on a random
+ * reference, for load and scaling tests of MutationCounter, together with
+ * the exact counts MutationCounter should find in it. The same seed and
+ * settings always give the same files.
+ * <p>
+ * Reads carry valid CIGAR strings and MD tags, with mismatches, deletions and
+ * insertions at the given per-base rates, and optionally soft clips at either
+ * end, one splice junction, and mates. The expected counts follow the rules of
+ * MutationCounter: deleted positions count as matches, only the first base of
+ * an insertion counts, the position after an insertion is not counted again,
+ * soft-clipped bases are ignored, the first and last n positions of each read
+ * are excluded, and positions where mates overlap count once, for the first
+ * mate. The left mate of each pair is always its first read, so mates are
+ * counted in the same order whether pairs are assembled by position or by
+ * flag, and strands are taken from the reads as MutationCounter takes them.
+ * <p>
+ * The expected counts are written as a binary profile file, so a run with the
+ * same -n and -x can be checked with cmp, and text outputs compared after
+ * ProfileMerger -b.
+ *
+ * @author Mason M Lai
+ */
+public class SyntheticBamGenerator {
+
+	private static final int MAX_CLIP_LENGTH = 10;
+	private static final int MAX_INDEL_LENGTH = 3;
+	private static final int MIN_INTRON_LENGTH = 50;
+	private static final int MAX_INTRON_LENGTH = 5000;
+	private static final int MAPPING_QUALITY = 60;
+	private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+	// Kinds of counted events of a read.
+	private static final byte MATCH = 0;
+	private static final byte MUTATION = 1;
+	private static final byte INSERTION = 2;
+
+	private final Random random;
+	private final int numContigs;
+	private final int contigLength;
+	private final int readLength;
+	private final double depth;
+	private final boolean paired;
+	private final int fragmentLength;
+	private final double mismatchRate;
+	private final double deletionRate;
+	private final double insertionRate;
+	private final double spliceRate;
+	private final double clipRate;
+	private final int numExcludedBasesFromEnd;
+	private final String qualities;
+
+	// Positions counted for the current read or pair, from origin on.
+	private final BitSet visited = new BitSet();
+	private int origin;
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-o", "Bam output file. Its index is written next to it.", true);
+		p.addStringArg("-x", "Binary profile file of the expected counts to create. Compare it with the " +
+				"binary profile file MutationCounter writes with -x.", true);
+		p.addIntArg("-s", "Seed of the random numbers. Defaults to 1.", false, 1);
+		p.addIntArg("-k", "Number of contigs. Defaults to 1.", false, 1);
+		p.addIntArg("-g", "Length of each contig. Defaults to 1000000.", false, 1000000);
+		p.addIntArg("-l", "Read length, including soft-clipped and inserted bases. Defaults to 100.", false, 100);
+		p.addDoubleArg("-d", "Mean number of reads covering each position. Defaults to 30.", false, 30);
+		p.addBooleanArg("-p", "Write read pairs rather than single reads. Defaults to false.", false, false);
+		p.addIntArg("-f", "Mean fragment length of read pairs. Fragments shorter than twice the read length " +
+				"give overlapping mates. Defaults to 300.", false, 300);
+		p.addDoubleArg("-m", "Probability of a mismatch at each aligned base. Defaults to 0.005.", false, 0.005);
+		p.addDoubleArg("-e", "Probability of a deletion of 1 to 3 bases before each aligned base. Defaults to 0.001.", false, 0.001);
+		p.addDoubleArg("-i", "Probability of an insertion of 1 to 3 bases before each aligned base. Defaults to 0.001.", false, 0.001);
+		p.addDoubleArg("-j", "Probability of a read spanning one splice junction. Defaults to 0.", false, 0);
+		p.addDoubleArg("-c", "Probability of each end of a read being soft-clipped by 1 to 10 bases. Defaults to 0.", false, 0);
+		p.addIntArg("-n", "Number of bases ignored from each end of each read in the expected counts, " +
+				"as given to MutationCounter with -n. Defaults to 0.", false, 0);
+		p.parse(args);
+
+		File bamFile = new File(p.getStringArg("-o"));
+		File expectedFile = new File(p.getStringArg("-x"));
+		for (File file : new File[] {bamFile, expectedFile}) {
+			if (file.exists()) {
+				throw new IOException("Output " + file.getName() + " already exists!");
+			}
+		}
+		SyntheticBamGenerator generator = new SyntheticBamGenerator(p.getIntArg("-s"), p.getIntArg("-k"),
+				p.getIntArg("-g"), p.getIntArg("-l"), p.getDoubleArg("-d"), p.getBooleanArg("-p"), p.getIntArg("-f"),
+				p.getDoubleArg("-m"), p.getDoubleArg("-e"), p.getDoubleArg("-i"), p.getDoubleArg("-j"),
+				p.getDoubleArg("-c"), p.getIntArg("-n"));
+		generator.generate(bamFile, expectedFile);
+		System.out.println("Program complete.");
+	}
+
+	public SyntheticBamGenerator(long seed, int numContigs, int contigLength, int readLength, double depth,
+			boolean paired, int fragmentLength, double mismatchRate, double deletionRate, double insertionRate,
+			double spliceRate, double clipRate, int numExcludedBasesFromEnd) {
+		if (numContigs < 1 || contigLength < 1) {
+			throw new IllegalArgumentException("Number and length of contigs must be positive.");
+		}
+		if (readLength < 2 * MAX_CLIP_LENGTH + 2) {
+			throw new IllegalArgumentException("Read length must be at least " + (2 * MAX_CLIP_LENGTH + 2) + ".");
+		}
+		if (depth < 0 || fragmentLength < 1 || numExcludedBasesFromEnd < 0) {
+			throw new IllegalArgumentException("Depth, fragment length and number of excluded bases must be non-negative.");
+		}
+		for (double rate : new double[] {mismatchRate, deletionRate, insertionRate, spliceRate, clipRate}) {
+			if (!(rate >= 0 && rate <= 1)) {
+				throw new IllegalArgumentException("Rates must be between 0 and 1.");
+			}
+		}
+		this.random = new Random(seed);
+		this.numContigs = numContigs;
+		this.contigLength = contigLength;
+		this.readLength = readLength;
+		this.depth = depth;
+		this.paired = paired;
+		this.fragmentLength = fragmentLength;
+		this.mismatchRate = mismatchRate;
+		this.deletionRate = deletionRate;
+		this.insertionRate = insertionRate;
+		this.spliceRate = spliceRate;
+		this.clipRate = clipRate;
+		this.numExcludedBasesFromEnd = numExcludedBasesFromEnd;
+		StringBuilder builder = new StringBuilder(readLength);
+		for (int i = 0; i < readLength; i++) {
+			builder.append('I');
+		}
+		qualities = builder.toString();
+	}
+
+	/**
+	 * Writes the reads of every contig, then the counts expected from them.
+	 *
+	 * @param bamFile      the .bam file to create
+	 * @param expectedFile the binary profile file to create
+	 * @throws IOException if either file cannot be written
+	 */
+	public void generate(File bamFile, File expectedFile) throws IOException {
+		List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>();
+		for (int i = 1; i <= numContigs; i++) {
+			sequences.add(new SAMSequenceRecord("chr" + i, contigLength));
+		}
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		MutationProfileCollection expected = new MutationProfileCollection(header, 1, StorageType.PAGED);
+
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bamFile);
+		try {
+			for (SAMSequenceRecord sequence : sequences) {
+				System.out.println("Generating reads on " + sequence.getSequenceName() + "...");
+				generateContig(sequence.getSequenceName(), header, writer, expected);
+			}
+		} finally {
+			writer.close();
+		}
+		BinaryProfileFile.write(expected, expectedFile);
+	}
+
+	private void generateContig(String contig, SAMFileHeader header, SAMFileWriter writer,
+			MutationProfileCollection expected) throws IOException {
+		byte[] reference = new byte[contigLength];
+		for (int i = 0; i < contigLength; i++) {
+			reference[i] = BASES[random.nextInt(BASES.length)];
+		}
+
+		// Right mates wait here until the reads before them have been written.
+		PriorityQueue<SAMRecord> pending = new PriorityQueue<SAMRecord>(1024, new Comparator<SAMRecord>() {
+			@Override
+			public int compare(SAMRecord a, SAMRecord b) {
+				return Integer.compare(a.getAlignmentStart(), b.getAlignmentStart());
+			}
+		});
+		Alignment left = new Alignment();
+		Alignment right = new Alignment();
+		int readsPerFragment = paired ? 2 : 1;
+		double meanGap = (double)readLength * readsPerFragment / depth;
+		double start = 0;
+		long numFragments = 0;
+		while (true) {
+			start += -Math.log(1 - random.nextDouble()) * meanGap;
+			if (start >= contigLength) {
+				break;
+			}
+			int fragmentStart = (int)start;
+			String name = contig + ":" + numFragments;
+			if (!left.generate(reference, fragmentStart)) {
+				continue;
+			}
+			if (!paired) {
+				boolean negative = random.nextBoolean();
+				SAMRecord record = left.toRecord(header, contig, name, negative);
+				writer.addAlignment(record);
+				startFragment(fragmentStart);
+				count(left, new SAMFragment(record).getOrientation(), contig, expected);
+				numFragments++;
+				continue;
+			}
+
+			int length = Math.max(readLength, fragmentLength / 2 + random.nextInt(fragmentLength + 1));
+			if (!right.generate(reference, fragmentStart + length - readLength)) {
+				continue;
+			}
+			// The left mate is always the first read; its strand sets the strand of the fragment.
+			boolean negative = random.nextBoolean();
+			SAMRecord leftRecord = left.toRecord(header, contig, name, negative);
+			SAMRecord rightRecord = right.toRecord(header, contig, name, !negative);
+			pair(leftRecord, rightRecord, true, right.end - left.start);
+			pair(rightRecord, leftRecord, false, left.start - right.end);
+			while (!pending.isEmpty() && pending.peek().getAlignmentStart() <= leftRecord.getAlignmentStart()) {
+				writer.addAlignment(pending.poll());
+			}
+			writer.addAlignment(leftRecord);
+			pending.add(rightRecord);
+
+			startFragment(fragmentStart);
+			count(left, new SAMFragment(leftRecord).getOrientation(), contig, expected);
+			count(right, new SAMFragment(rightRecord).getOrientation(), contig, expected);
+			numFragments++;
+		}
+		while (!pending.isEmpty()) {
+			writer.addAlignment(pending.poll());
+		}
+	}
+
+	private static void pair(SAMRecord record, SAMRecord mate, boolean first, int insertSize) {
+		record.setReadPairedFlag(true);
+		record.setProperPairFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setMateReferenceName(mate.getReferenceName());
+		record.setMateAlignmentStart(mate.getAlignmentStart());
+		record.setMateNegativeStrandFlag(mate.getReadNegativeStrandFlag());
+		record.setInferredInsertSize(insertSize);
+	}
+
+	/**
+	 * Forgets the positions counted for the previous read or pair. Every read
+	 * of a fragment starts at or after the fragment start.
+	 */
+	private void startFragment(int fragmentStart) {
+		visited.clear();
+		origin = fragmentStart - numExcludedBasesFromEnd;
+	}
+
+	/**
+	 * Adds the counts of one read to the expected counts, skipping its
+	 * excluded ends and positions already counted for the fragment.
+	 */
+	private void count(Alignment read, Strand orientation, String contig, MutationProfileCollection expected) throws IOException {
+		int n = numExcludedBasesFromEnd;
+		if (n > 0) {
+			visited.set(read.start - origin, read.start + n - origin);
+			visited.set(read.end - n + 1 - origin, read.end + 1 - origin);
+		}
+		for (int i = 0; i < read.numEvents; i++) {
+			int position = read.eventPositions[i];
+			if (position >= contigLength || visited.get(position - origin)) {
+				continue;
+			}
+			switch (read.eventKinds[i]) {
+			case MATCH:
+				expected.addMatch(contig, position, orientation);
+				break;
+			case MUTATION:
+				expected.addMutation(contig, Nucleotide.valueOf(String.valueOf((char)read.eventBases[i])), position, orientation);
+				break;
+			case INSERTION:
+				expected.addInsertion(contig, position, orientation);
+				break;
+			}
+			visited.set(position - origin);
+		}
+	}
+
+	/**
+	 * One generated read: its alignment as SAM fields, and the events it
+	 * should be counted as, in the order MutationCounter walks them.
+	 */
+	private final class Alignment {
+		private final StringBuilder cigar = new StringBuilder();
+		private final StringBuilder mdTag = new StringBuilder();
+		private final StringBuilder bases = new StringBuilder();
+		private char lastOperator;
+		private int lastLength;
+		private int start;
+		private int end;
+
+		private int numEvents;
+		private byte[] eventKinds = new byte[64];
+		private int[] eventPositions = new int[64];
+		private byte[] eventBases = new byte[64];
+
+		/**
+		 * Generates a read whose first aligned base is at a position of the
+		 * reference.
+		 *
+		 * @return false if the read would run past the end of the reference
+		 */
+		private boolean generate(byte[] reference, int start) {
+			cigar.setLength(0);
+			mdTag.setLength(0);
+			bases.setLength(0);
+			lastOperator = 0;
+			lastLength = 0;
+			numEvents = 0;
+			this.start = start;
+
+			int clipStart = random.nextDouble() < clipRate ? 1 + random.nextInt(MAX_CLIP_LENGTH) : 0;
+			int clipEnd = random.nextDouble() < clipRate ? 1 + random.nextInt(MAX_CLIP_LENGTH) : 0;
+			int aligned = readLength - clipStart - clipEnd;
+			int spliceAt = random.nextDouble() < spliceRate ? 1 + random.nextInt(aligned - 1) : Integer.MAX_VALUE;
+			appendRandomBases(clipStart);
+			addOperator('S', clipStart);
+
+			int position = start;
+			int matchRun = 0;
+			int done = 0;
+			while (done < aligned) {
+				// Gaps and insertions only follow an aligned base, and are always followed by one.
+				if (lastOperator == 'M') {
+					if (done >= spliceAt) {
+						spliceAt = Integer.MAX_VALUE;
+						int intron = MIN_INTRON_LENGTH + random.nextInt(MAX_INTRON_LENGTH - MIN_INTRON_LENGTH + 1);
+						addOperator('N', intron);
+						position += intron;
+						continue;
+					}
+					if (random.nextDouble() < deletionRate) {
+						int length = 1 + random.nextInt(MAX_INDEL_LENGTH);
+						if (position + length > reference.length) {
+							return false;
+						}
+						mdTag.append(matchRun).append('^');
+						matchRun = 0;
+						for (int i = 0; i < length; i++) {
+							mdTag.append((char)reference[position + i]);
+							addEvent(MATCH, position + i, (byte)0);
+						}
+						addOperator('D', length);
+						position += length;
+						continue;
+					}
+					if (aligned - done > 1 && random.nextDouble() < insertionRate) {
+						int length = Math.min(1 + random.nextInt(MAX_INDEL_LENGTH), aligned - done - 1);
+						appendRandomBases(length);
+						addEvent(INSERTION, position, (byte)0);
+						addOperator('I', length);
+						done += length;
+						continue;
+					}
+				}
+				if (position >= reference.length) {
+					return false;
+				}
+				byte referenceBase = reference[position];
+				if (random.nextDouble() < mismatchRate) {
+					byte readBase = BASES[random.nextInt(BASES.length)];
+					while (readBase == referenceBase) {
+						readBase = BASES[random.nextInt(BASES.length)];
+					}
+					mdTag.append(matchRun).append((char)referenceBase);
+					matchRun = 0;
+					bases.append((char)readBase);
+					addEvent(MUTATION, position, readBase);
+				} else {
+					matchRun++;
+					bases.append((char)referenceBase);
+					addEvent(MATCH, position, (byte)0);
+				}
+				addOperator('M', 1);
+				position++;
+				done++;
+			}
+			mdTag.append(matchRun);
+			appendRandomBases(clipEnd);
+			addOperator('S', clipEnd);
+			addOperator((char)0, 0);
+			end = position;
+			return true;
+		}
+
+		/**
+		 * Adds to the CIGAR string, merging runs of the same operator. An
+		 * operator of 0 writes the last run.
+		 */
+		private void addOperator(char operator, int length) {
+			if (length == 0 && operator != 0) {
+				return;
+			}
+			if (operator == lastOperator) {
+				lastLength += length;
+				return;
+			}
+			if (lastLength > 0) {
+				cigar.append(lastLength).append(lastOperator);
+			}
+			lastOperator = operator;
+			lastLength = length;
+		}
+
+		private void appendRandomBases(int length) {
+			for (int i = 0; i < length; i++) {
+				bases.append((char)BASES[random.nextInt(BASES.length)]);
+			}
+		}
+
+		private void addEvent(byte kind, int position, byte base) {
+			if (numEvents == eventKinds.length) {
+				int length = 2 * numEvents;
+				eventKinds = Arrays.copyOf(eventKinds, length);
+				eventPositions = Arrays.copyOf(eventPositions, length);
+				eventBases = Arrays.copyOf(eventBases, length);
+			}
+			eventKinds[numEvents] = kind;
+			eventPositions[numEvents] = position;
+			eventBases[numEvents] = base;
+			numEvents++;
+		}
+
+		private SAMRecord toRecord(SAMFileHeader header, String contig, String name, boolean negative) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName(name);
+			record.setReferenceName(contig);
+			record.setAlignmentStart(start + 1);
+			record.setMappingQuality(MAPPING_QUALITY);
+			record.setCigarString(cigar.toString());
+			record.setReadString(bases.toString());
+			record.setBaseQualityString(qualities);
+			record.setAttribute("MD", mdTag.toString());
+			record.setReadNegativeStrandFlag(negative);
+			return record;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package shape.mdtag;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarOperator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Walks the CIGAR and MD tag of a read together, one run at a time with
+ * {@link AlignmentWalker}, and one base at a time with {@link CigarStack} and
+ * {@link MdTagStack}. The MD tag is parsed once in setup, so only the walk
+ * is measured.
+ *
+ * @author Mason M Lai
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlignmentWalkBenchmark {
+
+	@Param({"UNSPLICED", "SPLICED", "SOFT_CLIPPED", "MUTATION_DENSE"})
+	public ReadFixture read;
+
+	private Cigar cigar;
+	private PackedMdTag packedMdTag;
+	private MdTag mdTag;
+	private AlignmentWalker walker;
+
+	@Setup
+	public void setUp() {
+		cigar = read.getCigar();
+		packedMdTag = new PackedMdTag();
+		packedMdTag.parse(read.getMdTag());
+		mdTag = new MdTag(read.getMdTag());
+		walker = new AlignmentWalker();
+	}
+
+	@Benchmark
+	public void walkRuns(Blackhole blackhole) throws IOException {
+		walker.reset(cigar, packedMdTag, ReadFixture.REFERENCE_START);
+		while (walker.next()) {
+			blackhole.consume(walker.getOperator());
+			blackhole.consume(walker.getLength());
+		}
+	}
+
+	@Benchmark
+	public void walkStacks(Blackhole blackhole) throws IOException {
+		CigarStack cigarStack = new CigarStack(cigar);
+		MdTagStack mdTagStack = new MdTagStack(mdTag);
+		MdTagOperator mdTagOperator = null;
+		while (cigarStack.hasElements()) {
+			CigarOperator cigarOperator = cigarStack.popOperator();
+			// MD tags have nothing for insertions, soft clips and skipped regions.
+			if (!cigarOperator.equals(CigarOperator.INSERTION) && !cigarOperator.equals(CigarOperator.SOFT_CLIP)
+					&& !cigarOperator.equals(CigarOperator.SKIPPED_REGION)) {
+				mdTagOperator = mdTagStack.popOperator();
+			}
+			blackhole.consume(AlignmentWalker.combine(cigarOperator, mdTagOperator));
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package shape.mdtag;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses MD tags with the single-pass {@link PackedMdTag} scanner used when
+ * counting, and with the {@link MdTag} object parser it replaced.
+ *
+ * @author Mason M Lai
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MdTagBenchmark {
+
+	@Param({"UNSPLICED", "SPLICED", "SOFT_CLIPPED", "MUTATION_DENSE"})
+	public ReadFixture read;
+
+	private String mdTagString;
+	private PackedMdTag packedMdTag;
+
+	@Setup
+	public void setUp() {
+		mdTagString = read.getMdTag();
+		packedMdTag = new PackedMdTag();
+	}
+
+	@Benchmark
+	public PackedMdTag parsePacked() {
+		packedMdTag.parse(mdTagString);
+		return packedMdTag;
+	}
+
+	@Benchmark
+	public MdTag parseObjects() {
+		return new MdTag(mdTagString);
+	}
+}
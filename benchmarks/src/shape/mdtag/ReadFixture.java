@@ -0,0 +1,66 @@
+package shape.mdtag;
+
+import java.util.Random;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.TextCigarCodec;
+
+/**
+ * Representative 100 nt reads for the benchmarks, each a CIGAR string with a
+ * matching MD tag. Read bases are random but fixed, so that every run sees
+ * the same data.
+ *
+ * @author Mason M Lai
+ */
+public enum ReadFixture {
+
+	/** One mismatch in an ungapped alignment, the bulk of most libraries. */
+	UNSPLICED("100M", "45A54"),
+
+	/** One mismatch across a 2 kb intron. */
+	SPLICED("40M2000N60M", "52T47"),
+
+	/** Adapter remnants clipped from both ends. */
+	SOFT_CLIPPED("10S85M5S", "30G54"),
+
+	/** Five mismatches, a deletion and an insertion, as in heavily modified RNA. */
+	MUTATION_DENSE("30M2D20M1I49M", "10A9C9^AG5T14G29T18");
+
+	// Reference position of the first aligned base of every fixture.
+	public static final int REFERENCE_START = 10000;
+
+	private final String cigarString;
+	private final String mdTag;
+	private final String readString;
+
+	private ReadFixture(String cigarString, String mdTag) {
+		this.cigarString = cigarString;
+		this.mdTag = mdTag;
+		Random random = new Random(ordinal());
+		int readLength = getCigar().getReadLength();
+		StringBuilder bases = new StringBuilder(readLength);
+		for (int i = 0; i < readLength; i++) {
+			bases.append("ACGT".charAt(random.nextInt(4)));
+		}
+		readString = bases.toString();
+	}
+
+	public String getCigarString() {
+		return cigarString;
+	}
+
+	/**
+	 * @return a new CIGAR decoded from the string of this fixture
+	 */
+	public Cigar getCigar() {
+		return TextCigarCodec.getSingleton().decode(cigarString);
+	}
+
+	public String getMdTag() {
+		return mdTag;
+	}
+
+	public String getReadString() {
+		return readString;
+	}
+}
@@ -0,0 +1,88 @@
+package shape.profiles;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shape.utils.Nucleotide;
+
+/**
+ * Counts the matches and mutations of one 100 nt read into a profile, for
+ * each kind of storage. Reads start at random positions of a 1 Mb strand,
+ * cycled through in the same order on every run.
+ *
+ * @author Mason M Lai
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfileIncrementBenchmark {
+
+	private static final int LENGTH = 1 << 20;
+	private static final int READ_LENGTH = 100;
+	private static final int NUM_READS = 1 << 16;
+
+	@Param({"MAP", "DENSE", "PAGED", "ATOMIC"})
+	public StorageType storageType;
+
+	private MutationProfile profile;
+	private int[] readStarts;
+	private int nextRead;
+
+	@Setup
+	public void setUp() {
+		profile = new MutationProfile(LENGTH, "chr1", Strand.POSITIVE, storageType);
+		Random random = new Random(0);
+		readStarts = new int[NUM_READS];
+		for (int i = 0; i < NUM_READS; i++) {
+			readStarts[i] = random.nextInt(LENGTH - READ_LENGTH);
+		}
+	}
+
+	private int nextReadStart() {
+		int start = readStarts[nextRead];
+		nextRead = (nextRead + 1) & (NUM_READS - 1);
+		return start;
+	}
+
+	@Benchmark
+	public MutationProfile addMatch() {
+		int start = nextReadStart();
+		for (int position = start; position < start + READ_LENGTH; position++) {
+			profile.addMatch(position);
+		}
+		return profile;
+	}
+
+	@Benchmark
+	public MutationProfile addMatchRange() {
+		int start = nextReadStart();
+		profile.addMatchRange(start, start + READ_LENGTH);
+		return profile;
+	}
+
+	@Benchmark
+	public MutationProfile addMutation() {
+		int start = nextReadStart();
+		profile.addMatchRange(start, start + READ_LENGTH / 2);
+		profile.addMutation(Nucleotide.T, start + READ_LENGTH / 2);
+		profile.addMatchRange(start + READ_LENGTH / 2 + 1, start + READ_LENGTH);
+		return profile;
+	}
+}
@@ -0,0 +1,98 @@
+package shape.profiles;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shape.utils.Nucleotide;
+
+/**
+ * Formats the text of one output range, as each thread of
+ * {@link MutationProfileCollection#toFile(String, int, int, boolean, boolean)}
+ * does, without writing it. The profiles are filled once in setup with
+ * 100 nt windows of random depth and mutations, covering the given fraction
+ * of the strand.
+ *
+ * @author Mason M Lai
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToFileFormatBenchmark {
+
+	private static final String CHROMOSOME = "chr1";
+	// One output range of toFile.
+	private static final int LENGTH = 1 << 16;
+	private static final int WINDOW = 100;
+	private static final int MAX_DEPTH = 200;
+
+	@Param({"3", "-1"})
+	public int precision;
+
+	@Param({"false", "true"})
+	public boolean collapseRuns;
+
+	@Param({"0.01", "0.5", "1.0"})
+	public double density;
+
+	private MutationProfile positive;
+	private MutationProfile negative;
+	private ProfileTextFormatter formatter;
+
+	@Setup
+	public void setUp() {
+		positive = new MutationProfile(LENGTH, CHROMOSOME, Strand.POSITIVE, StorageType.DENSE);
+		negative = new MutationProfile(LENGTH, CHROMOSOME, Strand.NEGATIVE, StorageType.DENSE);
+		Random random = new Random(0);
+		fill(positive, random);
+		fill(negative, random);
+		positive.flush();
+		negative.flush();
+		formatter = new ProfileTextFormatter(precision, 1, false, collapseRuns);
+	}
+
+	private void fill(MutationProfile profile, Random random) {
+		Nucleotide[] nucleotides = Nucleotide.values();
+		for (int start = 0; start < LENGTH; start += WINDOW) {
+			if (random.nextDouble() >= density) {
+				continue;
+			}
+			int end = Math.min(LENGTH, start + WINDOW);
+			int depth = 1 + random.nextInt(MAX_DEPTH);
+			for (int i = 0; i < depth; i++) {
+				profile.addMatchRange(start, end);
+			}
+			for (int position = start; position < end; position++) {
+				int numMutations = random.nextInt(1 + depth / 20);
+				for (int i = 0; i < numMutations; i++) {
+					profile.addMutation(nucleotides[random.nextInt(nucleotides.length)], position);
+				}
+				if (random.nextInt(50) == 0) {
+					profile.addDeletion(position);
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public ProfileTextFormatter format() {
+		formatter.format(CHROMOSOME, positive, negative, 0, LENGTH, true);
+		return formatter;
+	}
+}
@@ -0,0 +1,101 @@
+package shape.programs;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import guttmanlab.core.annotation.SAMFragment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shape.mdtag.ReadFixture;
+import shape.profiles.MutationEvents;
+import shape.profiles.MutationProfileCollection;
+import shape.profiles.StorageType;
+// MutationCounter is nested in MutationCounterTest, an auxiliary class of MutationCounter.java, so javac warns
+// that it should not be accessed from outside that file. Any hook outside that file would draw the same warning.
+import shape.programs.MutationCounterTest.MutationCounter;
+import shape.utils.VisitedPositions;
+
+/**
+ * Counts one read into the profiles, as {@link MutationCounter} does for each
+ * read of a .bam file: reading its tags, parsing the MD tag, walking it with
+ * the CIGAR and adding the counts. Counting into events, as parser threads
+ * of the read pipeline do, is measured separately.
+ *
+ * @author Mason M Lai
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseReadBenchmark {
+
+	private static final String CHROMOSOME = "chr1";
+	private static final int CHROMOSOME_LENGTH = 1 << 20;
+
+	@Param({"UNSPLICED", "SPLICED", "SOFT_CLIPPED", "MUTATION_DENSE"})
+	public ReadFixture read;
+
+	@Param({"MAP", "DENSE", "PAGED"})
+	public StorageType storageType;
+
+	private SAMFragment fragment;
+	private MutationCounter counter;
+	private MutationProfileCollection profiles;
+	private MutationEvents events;
+	private VisitedPositions visitedPositions;
+
+	@Setup
+	public void setUp() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(
+				Collections.singletonList(new SAMSequenceRecord(CHROMOSOME, CHROMOSOME_LENGTH))));
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName("read");
+		record.setReferenceName(CHROMOSOME);
+		record.setAlignmentStart(ReadFixture.REFERENCE_START + 1);
+		record.setCigarString(read.getCigarString());
+		record.setReadString(read.getReadString());
+		record.setBaseQualityString("*");
+		record.setAttribute("MD", read.getMdTag());
+		fragment = new SAMFragment(record);
+
+		counter = new MutationCounter();
+		profiles = new MutationProfileCollection(header, 1, storageType);
+		events = new MutationEvents(profiles);
+		visitedPositions = new VisitedPositions();
+	}
+
+	@Benchmark
+	public MutationProfileCollection parseRead() throws IOException {
+		visitedPositions.clear();
+		counter.parseRead(fragment, profiles, visitedPositions);
+		return profiles;
+	}
+
+	@Benchmark
+	public MutationEvents recordRead() throws IOException {
+		events.clear();
+		visitedPositions.clear();
+		counter.recordRead(fragment, events, visitedPositions);
+		return events;
+	}
+}
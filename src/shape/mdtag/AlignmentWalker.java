@@ -0,0 +1,241 @@
+package shape.mdtag;
+
+import java.io.IOException;
+import java.util.List;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+
+/**
+ * Walks the CIGAR and the MD tag of a read together, one run at a time
+ * rather than one base at a time. Each call to {@link #next()} advances to
+ * the next segment of the alignment over which both the CIGAR operator and
+ * the MD tag operator stay the same, e.g., "match run of 37", "mismatch from
+ * A", "deletion of 3" or "splice junction of 84,000". The cost of a segment
+ * does not depend on its length.
+ * <p>
+ * A walker keeps no per-read objects, so one instance can be reused for every
+ * read with {@link #reset(Cigar, PackedMdTag, int)}. It is not thread-safe.
+ * 
+ * @author Mason M Lai
+ */
+public final class AlignmentWalker {
+
+	private List<CigarElement> cigarElements;
+	private int cigarIndex;
+	private int cigarRemaining;
+	private CigarOperator cigarOperator;
+	
+	private PackedMdTag mdTag;
+	private int mdIndex;
+	private int mdRemaining;
+	private MdTagOperator mdOperator;
+	
+	private GenericOperator operator;
+	private int length;
+	private int referenceStart;
+	private int readStart;
+	private int referencePosition;
+	private int readPosition;
+	
+	/**
+	 * Starts walking a new read.
+	 * 
+	 * @param cigar          CIGAR of the read
+	 * @param mdTag          parsed MD tag of the read
+	 * @param referenceStart reference position of the first aligned base
+	 */
+	public void reset(Cigar cigar, PackedMdTag mdTag, int referenceStart) {
+		this.cigarElements = cigar.getCigarElements();
+		this.cigarIndex = 0;
+		this.cigarRemaining = 0;
+		this.cigarOperator = null;
+		this.mdTag = mdTag;
+		this.mdIndex = 0;
+		this.mdRemaining = 0;
+		this.mdOperator = null;
+		this.operator = null;
+		this.length = 0;
+		this.referencePosition = referenceStart;
+		this.readPosition = 0;
+	}
+	
+	/**
+	 * Advances to the next segment of the alignment. Hard clips and padding
+	 * have no bases in the read or the reference and are passed over.
+	 * 
+	 * @return true if there is another segment, false at the end of the CIGAR
+	 * @throws IOException if the CIGAR and the MD tag are not compatible
+	 */
+	public boolean next() throws IOException {
+		// Advance past the previous segment, which always belongs to the current CIGAR element.
+		if (operator != null) {
+			referencePosition += cigarOperator.consumesReferenceBases() ? length : 0;
+			readPosition += cigarOperator.consumesReadBases() ? length : 0;
+		}
+		
+		while (cigarRemaining == 0) {
+			if (cigarIndex == cigarElements.size()) {
+				operator = null;
+				length = 0;
+				return false;
+			}
+			CigarElement element = cigarElements.get(cigarIndex++);
+			cigarOperator = element.getOperator();
+			cigarRemaining = element.getLength();
+			if (cigarOperator == CigarOperator.HARD_CLIP || cigarOperator == CigarOperator.PADDING) {
+				cigarRemaining = 0;
+			}
+		}
+		
+		referenceStart = referencePosition;
+		readStart = readPosition;
+		
+		/* MD tags ignore insertions, soft clipping, and splice junctions. */
+		if (cigarOperator == CigarOperator.INSERTION) {
+			operator = GenericOperator.INSERTION;
+			length = cigarRemaining;
+		} else if (cigarOperator == CigarOperator.SOFT_CLIP) {
+			operator = GenericOperator.SOFT_CLIP;
+			length = cigarRemaining;
+		} else if (cigarOperator == CigarOperator.SKIPPED_REGION) {
+			operator = GenericOperator.SPLICE_JUNCTION;
+			length = cigarRemaining;
+		} else {
+			// Zero-length elements of the MD tag are skipped.
+			while (mdRemaining == 0) {
+				if (mdIndex == mdTag.size()) {
+					throw new IOException("CIGAR string and MD tag are not compatible. MD tag is shorter than CIGAR operator " + cigarOperator + ".");
+				}
+				long element = mdTag.get(mdIndex++);
+				mdOperator = PackedMdTag.operator(element);
+				mdRemaining = PackedMdTag.length(element);
+			}
+			operator = combine(cigarOperator, mdOperator);
+			length = Math.min(cigarRemaining, mdRemaining);
+			mdRemaining -= length;
+		}
+		cigarRemaining -= length;
+		return true;
+	}
+	
+	/**
+	 * Gets the kind of the current segment.
+	 * 
+	 * @return the operator that applies to every base of the segment
+	 */
+	public GenericOperator getOperator() {
+		return operator;
+	}
+	
+	/**
+	 * Gets the number of bases in the current segment.
+	 * 
+	 * @return length of the segment
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Gets the reference position of the first base of the current segment.
+	 * Segments that do not consume reference bases (insertions and soft clips)
+	 * are placed at the reference position that follows them.
+	 * 
+	 * @return reference position of the segment
+	 */
+	public int getReferenceStart() {
+		return referenceStart;
+	}
+	
+	/**
+	 * Gets the read position of the first base of the current segment.
+	 * 
+	 * @return read position of the segment
+	 */
+	public int getReadStart() {
+		return readStart;
+	}
+	
+	/**
+	 * Gets the MD tag operator of the current segment.
+	 * 
+	 * @return the MD tag operator, or null if the segment is not covered by the MD tag
+	 */
+	public MdTagOperator getMdTagOperator() {
+		switch (operator) {
+		case INSERTION:
+		case SOFT_CLIP:
+		case SPLICE_JUNCTION:
+			return null;
+		default:
+			return mdOperator;
+		}
+	}
+	
+	/**
+	 * Accepts a CIGAR operator and an MD tag operator, returning a more general
+	 * operator containing the information of both.
+	 * 
+	 * @param c a CIGAR string operator
+	 * @param m an MD tag operator
+	 * @return a more general operator with the combined functionality of a CIGAR operator and an MD tag operator.
+	 * @throws IOException if the CIGAR string operator and the MD tag operator contradict in some way
+	 */
+	public static GenericOperator combine(CigarOperator c, MdTagOperator m) throws IOException {
+		switch (c) {
+		case M:
+		case EQ:
+		case X:
+			return combineAtCigarOpM(m);
+		case I:
+			return GenericOperator.INSERTION;
+		case D:
+			return combineAtCigarOpD(m);
+		case S:
+			return GenericOperator.SOFT_CLIP;
+		case N:
+			return GenericOperator.SPLICE_JUNCTION;
+		default:
+			throw new IOException("Unknown CIGAR operator " + c + " encountered. (Only recognizes M, I, S, D, and N.)");
+		}
+	}
+	
+	private static GenericOperator combineAtCigarOpM(MdTagOperator m) throws IOException {
+		switch (m) {
+		case EQ:
+			return GenericOperator.MATCH;
+		case XA:
+			return GenericOperator.A_TO_N;
+		case XC:
+			return GenericOperator.C_TO_N;
+		case XG:
+			return GenericOperator.G_TO_N;
+		case XT:
+			return GenericOperator.T_TO_N;
+		case N:
+			return GenericOperator.UNKNOWN;
+		default:
+			// Includes XN, a mismatch whose reference base the MD tag does not give, which was never counted.
+			throw new IOException("CIGAR string and MD tag are not compatible. CIGAR operator is M and MD tag operator is " + m.toString() + ".");
+		}
+	}
+	
+	private static GenericOperator combineAtCigarOpD(MdTagOperator m) throws IOException {
+		switch (m) {
+		case D:
+			return GenericOperator.DELETION;
+		case DA:
+			return GenericOperator.DELETION_OF_A;
+		case DC:
+			return GenericOperator.DELETION_OF_C;
+		case DG:
+			return GenericOperator.DELETION_OF_G;
+		case DT:
+			return GenericOperator.DELETION_OF_T;
+		default:
+			throw new IOException("CIGAR string and MD tag are not compatible. CIGAR operator is D and MD tag operator is " + m.toString() + ".");
+		}
+	}
+}
@@ -32,60 +32,27 @@ public class MdTag {
      * @param mdTagString MD tag as a String
      */
     public MdTag(String mdTagString) {
-    	String[] splitMdTag = mdTagString.split("(?=\\^)|(?<=[A-Za-z])|(?=[A-Za-z])");
-
-/*		for (String s : splitMdTag) {
-    		System.out.print(s + " ");
+    	this(parse(mdTagString));
+    }
+    
+    /**
+     * MdTag constructor, creates tag from its packed representation
+     * @param packedMdTag a parsed MD tag
+     */
+    public MdTag(PackedMdTag packedMdTag) {
+    	int size = packedMdTag.size();
+    	mdTagElements = new ArrayList<MdTagElement>(size);
+    	for (int i = 0; i < size; i++) {
+    		mdTagElements.add(new MdTagElement(packedMdTag.getLength(i), packedMdTag.getOperator(i)));
     	}
-
-    	System.out.print("\n");
-*/    	boolean markAsDeletions = false;
-    	try {
-    		for (String e : splitMdTag) {
-    			if (e.matches("[0-9]+")) {
-    				MdTagOperator operator = MdTagOperator.MATCH;
-    				int length = Integer.parseInt(e);
-    				mdTagElements.add(new MdTagElement(length, operator));
-    				markAsDeletions = false;
-    			} else {
-    				MdTagOperator operator = null;
-    				switch(e.charAt(0)) {
-    				case '^':
-    					markAsDeletions = true;
-    					break;
-    				case 'A':
-    					operator = markAsDeletions ? MdTagOperator.DELETION_OF_A : MdTagOperator.MISMATCH_FROM_A;
-    					addElement(operator);
-    					break;
-    				case 'C':
-    					operator = markAsDeletions ? MdTagOperator.DELETION_OF_C : MdTagOperator.MISMATCH_FROM_C;
-    					addElement(operator);
-       					break;
-    				case 'G':
-    					operator = markAsDeletions ? MdTagOperator.DELETION_OF_G : MdTagOperator.MISMATCH_FROM_G;
-    					addElement(operator);
-    					break;
-    				case 'T':
-    					operator = markAsDeletions ? MdTagOperator.DELETION_OF_T : MdTagOperator.MISMATCH_FROM_T;
-    					addElement(operator);
-    					break;
-    				case 'N':
-    					operator = markAsDeletions ? MdTagOperator.DELETION : MdTagOperator.IGNORE;
-       					addElement(operator);
-    					break;
-    				case 'X':
-    					operator = markAsDeletions ? MdTagOperator.DELETION : MdTagOperator.MISMATCH;
-       					addElement(operator);
-    					break;
-    				default:
-    					throw new IllegalArgumentException("Invalid MD Tag");
-    				}
-    			}
-    		}
-    	} catch (IllegalArgumentException ex) {
+    }
+    
+    private static PackedMdTag parse(String mdTagString) {
+    	PackedMdTag packedMdTag = new PackedMdTag();
+    	if (!packedMdTag.parse(mdTagString)) {
     		System.err.println("Exception: String representing an invalid MD tag passed to MdTag constructor.");
     	}
-    	((ArrayList<MdTagElement>)mdTagElements).trimToSize(); // not sure if this is necessary
+    	return packedMdTag;
     }
     
     /**
@@ -196,22 +163,4 @@ public class MdTag {
     	String stringMdTag = ((SAMFragment)read).getStringTag("MD");
     	return !( stringMdTag == null || stringMdTag.isEmpty() );
     }
-    
-    private boolean matchesLastOperator(MdTagOperator op) {
-    	if (mdTagElements.isEmpty()) {
-    		return false;
-    	} else {
-    		MdTagElement lastElement = mdTagElements.get(mdTagElements.size() - 1);
-    		return lastElement.getOperator().equals(op);
-    	}
-    }
-    
-    private void addElement(MdTagOperator operator) {
-		if (matchesLastOperator(operator)) {
-			MdTagElement elem = mdTagElements.remove(mdTagElements.size() - 1);
-			mdTagElements.add(new MdTagElement(elem.getLength() + 1, operator));
-		} else {
-			mdTagElements.add(new MdTagElement(1, operator));
-		}
-    }
 }
\ No newline at end of file
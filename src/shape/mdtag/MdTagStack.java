@@ -14,6 +14,14 @@ public class MdTagStack extends Stack<MdTagElement> {
     public MdTagStack(MdTag mdTag) {
     	super(mdTag.getMdTagElements());
     }
+    
+    public MdTagStack(PackedMdTag mdTag) {
+    	super();
+    	int size = mdTag.size();
+    	for (int i = 0; i < size; i++) {
+    		elements.addLast(new MdTagElement(mdTag.getLength(i), mdTag.getOperator(i)));
+    	}
+    }
 
     public MdTagOperator popOperator() {
     	if (elements.peek() != null) {
@@ -0,0 +1,183 @@
+package shape.mdtag;
+
+/**
+ * A reusable, allocation-free representation of an MD tag. Each element of
+ * the tag is packed into a single long: the low four bits hold the ordinal of
+ * its {@link MdTagOperator}, and the remaining bits hold its length. Calling
+ * {@link #parse(CharSequence)} overwrites the previous tag, so one instance
+ * can be used for every read.
+ * <p>
+ * Parsing is a single pass over the characters of the tag, and gives the
+ * same elements as {@link MdTag#MdTag(String)}: runs of digits become
+ * matches (including runs of length 0), each reference base becomes a
+ * mismatch (or a deletion after a '^'), runs of identical mismatches or
+ * deletions are combined, and 'N' and 'X' become IGNORE and MISMATCH (or
+ * DELETION after a '^'). Parsing stops at the first invalid token, keeping
+ * the elements before it.
+ * 
+ * @author Mason M Lai
+ */
+public final class PackedMdTag {
+
+	private static final int OPERATOR_BITS = 4;
+	private static final int OPERATOR_MASK = (1 << OPERATOR_BITS) - 1;
+	private static final MdTagOperator[] OPERATORS = MdTagOperator.values();
+	
+	private long[] elements;
+	private int size;
+	private boolean valid;
+	
+	public PackedMdTag() {
+		elements = new long[16];
+		size = 0;
+		valid = true;
+	}
+	
+	/**
+	 * Packs an operator and a length into a single long.
+	 * 
+	 * @param operator the MD tag operator
+	 * @param length   the number of bases it applies to
+	 * @return the packed element
+	 */
+	public static long pack(MdTagOperator operator, int length) {
+		return ((long)length << OPERATOR_BITS) | operator.ordinal();
+	}
+	
+	public static MdTagOperator operator(long element) {
+		return OPERATORS[(int)(element & OPERATOR_MASK)];
+	}
+	
+	public static int length(long element) {
+		return (int)(element >>> OPERATOR_BITS);
+	}
+	
+	/**
+	 * Parses an MD tag, replacing the current contents.
+	 * 
+	 * @param mdTag the MD tag, e.g., "10A5^AC6"
+	 * @return true if the whole tag was valid, false if parsing stopped early
+	 */
+	public boolean parse(CharSequence mdTag) {
+		size = 0;
+		valid = true;
+		boolean markAsDeletions = false;
+		int n = mdTag.length();
+		int i = 0;
+		while (i < n) {
+			char c = mdTag.charAt(i);
+			if (c >= '0' && c <= '9') {
+				long length = 0;
+				while (i < n && (c = mdTag.charAt(i)) >= '0' && c <= '9') {
+					length = length * 10 + (c - '0');
+					if (length > Integer.MAX_VALUE) {
+						return invalid();
+					}
+					i++;
+				}
+				// A run of digits directly followed by anything but a letter or '^' is one invalid token.
+				if (i < n && !isLetter(c) && c != '^') {
+					return invalid();
+				}
+				append(pack(MdTagOperator.MATCH, (int)length));
+				markAsDeletions = false;
+			} else if (c == '^') {
+				markAsDeletions = true;
+				// Anything between a '^' and the next letter belongs to the '^' token and is ignored.
+				i++;
+				while (i < n && !isLetter(c = mdTag.charAt(i)) && c != '^') {
+					i++;
+				}
+			} else {
+				MdTagOperator operator;
+				switch (c) {
+				case 'A':
+					operator = markAsDeletions ? MdTagOperator.DELETION_OF_A : MdTagOperator.MISMATCH_FROM_A;
+					break;
+				case 'C':
+					operator = markAsDeletions ? MdTagOperator.DELETION_OF_C : MdTagOperator.MISMATCH_FROM_C;
+					break;
+				case 'G':
+					operator = markAsDeletions ? MdTagOperator.DELETION_OF_G : MdTagOperator.MISMATCH_FROM_G;
+					break;
+				case 'T':
+					operator = markAsDeletions ? MdTagOperator.DELETION_OF_T : MdTagOperator.MISMATCH_FROM_T;
+					break;
+				case 'N':
+					operator = markAsDeletions ? MdTagOperator.DELETION : MdTagOperator.IGNORE;
+					break;
+				case 'X':
+					operator = markAsDeletions ? MdTagOperator.DELETION : MdTagOperator.MISMATCH;
+					break;
+				default:
+					return invalid();
+				}
+				appendBase(operator);
+				i++;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean isLetter(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+	
+	private boolean invalid() {
+		valid = false;
+		return false;
+	}
+	
+	private void append(long element) {
+		if (size == elements.length) {
+			long[] grown = new long[size * 2];
+			System.arraycopy(elements, 0, grown, 0, size);
+			elements = grown;
+		}
+		elements[size++] = element;
+	}
+	
+	private void appendBase(MdTagOperator operator) {
+		if (size > 0 && (elements[size - 1] & OPERATOR_MASK) == operator.ordinal()) {
+			elements[size - 1] += 1L << OPERATOR_BITS;
+		} else {
+			append(pack(operator, 1));
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Tests if the last parsed tag was valid in its entirety.
+	 * 
+	 * @return false if parsing stopped at an invalid token, else true
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+	
+	/**
+	 * Gets a packed element. Use {@link #operator(long)} and {@link #length(long)}
+	 * to unpack it.
+	 * 
+	 * @param i index of the element
+	 * @return the packed element
+	 */
+	public long get(int i) {
+		return elements[i];
+	}
+	
+	public MdTagOperator getOperator(int i) {
+		return operator(elements[i]);
+	}
+	
+	public int getLength(int i) {
+		return length(elements[i]);
+	}
+}
@@ -0,0 +1,94 @@
+package shape.profiles;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Stores counts in atomic int arrays so that many threads can count into the
+ * same strand without locking. Each channel is striped into fixed-size
+ * segments; threads working on different parts of a strand touch different
+ * segments and rarely contend for the same cache lines.
+ * <p>
+ * Growing shares the existing segments with the longer copy, so increments
+ * that reach the old storage while another thread grows it are not lost.
+ *
+ * @author Mason M Lai
+ */
+final class AtomicCounterStorage extends CounterStorage {
+
+	static final int SEGMENT_BITS = 14;
+	static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	// Per-segment overhead of an AtomicIntegerArray wrapping its int array.
+	private static final long SEGMENT_OVERHEAD_BYTES = OBJECT_HEADER_BYTES + REFERENCE_BYTES + ARRAY_HEADER_BYTES;
+
+	private final AtomicIntegerArray[][] segments;
+
+	AtomicCounterStorage(int numChannels, int length) {
+		super(numChannels, length);
+		segments = new AtomicIntegerArray[numChannels][numSegments(length)];
+		for (AtomicIntegerArray[] channelSegments : segments) {
+			for (int i = 0; i < channelSegments.length; i++) {
+				channelSegments[i] = new AtomicIntegerArray(SEGMENT_SIZE);
+			}
+		}
+	}
+
+	private AtomicCounterStorage(AtomicCounterStorage that, int length) {
+		super(that.numChannels, length);
+		segments = new AtomicIntegerArray[numChannels][];
+		for (int c = 0; c < numChannels; c++) {
+			int numOldSegments = that.segments[c].length;
+			segments[c] = Arrays.copyOf(that.segments[c], numSegments(length));
+			for (int i = numOldSegments; i < segments[c].length; i++) {
+				segments[c][i] = new AtomicIntegerArray(SEGMENT_SIZE);
+			}
+		}
+	}
+
+	private static int numSegments(int length) {
+		return (int)(((long)length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+	}
+
+	@Override
+	void increment(int channel, int position) {
+		segments[channel][position >>> SEGMENT_BITS].incrementAndGet(position & SEGMENT_MASK);
+	}
+
+	@Override
+	void add(int channel, int position, int delta) {
+		segments[channel][position >>> SEGMENT_BITS].addAndGet(position & SEGMENT_MASK, delta);
+	}
+
+	@Override
+	void addRange(int channel, int start, int end) {
+		AtomicIntegerArray[] channelSegments = segments[channel];
+		while (start < end) {
+			AtomicIntegerArray segment = channelSegments[start >>> SEGMENT_BITS];
+			int pieceEnd = (int)Math.min(end, ((long)(start >>> SEGMENT_BITS) + 1) << SEGMENT_BITS);
+			for (int i = start & SEGMENT_MASK, last = i + pieceEnd - start; i < last; i++) {
+				segment.incrementAndGet(i);
+			}
+			start = pieceEnd;
+		}
+	}
+
+	@Override
+	int get(int channel, int position) {
+		return segments[channel][position >>> SEGMENT_BITS].get(position & SEGMENT_MASK);
+	}
+
+	@Override
+	CounterStorage grow(int newLength) {
+		return new AtomicCounterStorage(this, newLength);
+	}
+
+	@Override
+	long getMemoryFootprint() {
+		long numSegments = (long)numChannels * numSegments(length);
+		return ARRAY_HEADER_BYTES + numChannels * REFERENCE_BYTES
+				+ numChannels * (ARRAY_HEADER_BYTES + (long)numSegments(length) * REFERENCE_BYTES)
+				+ numSegments * (SEGMENT_OVERHEAD_BYTES + 4L * SEGMENT_SIZE);
+	}
+}
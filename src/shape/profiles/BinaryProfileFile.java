@@ -0,0 +1,321 @@
+package shape.profiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary file holding every count of a
+ * {@link MutationProfileCollection}, which can be read back or summed with
+ * other such files without going back to the reads. Files from shards of a
+ * sample, e.g., lanes or machines, can be merged into the file of the whole
+ * sample.
+ * <p>
+ * The file starts with a header: the magic number "SHPB", a format version,
+ * the number of channels per strand, the number of chromosomes, and then for
+ * each chromosome its name, its length and the file offset of its counts.
+ * The counts of each chromosome follow in header order, written as described
+ * in {@link CountsFormat}, so only covered positions take up space. All
+ * values are big-endian.
+ *
+ * @author Mason M Lai
+ */
+public final class BinaryProfileFile {
+
+	private static final int MAGIC = 0x53485042; // "SHPB"
+	private static final int VERSION = 1;
+
+	private final Map<String, Integer> lengths;
+	private final Map<String, Long> offsets;
+
+	private BinaryProfileFile(Map<String, Integer> lengths, Map<String, Long> offsets) {
+		this.lengths = lengths;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Writes every count of a collection to a new file.
+	 *
+	 * @param profiles the collection to write
+	 * @param file     the file to create
+	 * @throws IOException if the file already exists or cannot be written
+	 */
+	public static void write(MutationProfileCollection profiles, File file) throws IOException {
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		for (ChromosomeProfile<MutationProfile> profile : profiles.getProfiles().values()) {
+			lengths.put(profile.getName(), profile.getLength());
+		}
+		Writer writer = new Writer(file, lengths);
+		try {
+			for (ChromosomeProfile<MutationProfile> profile : profiles.getProfiles().values()) {
+				writer.startChromosome(profile.getName());
+				CountsFormat.writeChromosome(writer.out, profile);
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads a file and adds its counts to a collection. Chromosomes are added
+	 * or grown as needed.
+	 *
+	 * @param file     the file to read
+	 * @param profiles the collection to add the counts to
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static void read(File file, MutationProfileCollection profiles) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			BinaryProfileFile header = readHeader(raf, file);
+			for (Map.Entry<String, Long> elem : header.offsets.entrySet()) {
+				DataInputStream in = openAt(raf, elem.getValue());
+				if (!CountsFormat.readChromosome(in, profiles).equals(elem.getKey())) {
+					throw new IOException("Counts of " + elem.getKey() + " in " + file + " are not where the header says.");
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Sums any number of files into a new one. Each chromosome is merged
+	 * position by position from all files at once, so memory use does not
+	 * depend on the size of the files. Chromosomes are written in the order
+	 * they first appear in the inputs, at the greatest length any input gives
+	 * them.
+	 *
+	 * @param inputs the files to sum
+	 * @param output the file to create
+	 * @throws IOException if an input cannot be read or is malformed, or the
+	 * output already exists or cannot be written
+	 */
+	public static void merge(List<File> inputs, File output) throws IOException {
+		List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+		List<BinaryProfileFile> headers = new ArrayList<BinaryProfileFile>();
+		Writer writer = null;
+		try {
+			Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+			for (File input : inputs) {
+				RandomAccessFile raf = new RandomAccessFile(input, "r");
+				files.add(raf);
+				BinaryProfileFile header = readHeader(raf, input);
+				headers.add(header);
+				for (Map.Entry<String, Integer> elem : header.lengths.entrySet()) {
+					Integer length = lengths.get(elem.getKey());
+					if (length == null || length < elem.getValue()) {
+						lengths.put(elem.getKey(), elem.getValue());
+					}
+				}
+			}
+
+			writer = new Writer(output, lengths);
+			for (Map.Entry<String, Integer> elem : lengths.entrySet()) {
+				String chromosome = elem.getKey();
+				List<DataInputStream> sources = new ArrayList<DataInputStream>();
+				for (int i = 0; i < files.size(); i++) {
+					Long offset = headers.get(i).offsets.get(chromosome);
+					if (offset != null) {
+						DataInputStream in = openAt(files.get(i), offset);
+						if (!in.readUTF().equals(chromosome)) {
+							throw new IOException("Counts of " + chromosome + " in " + inputs.get(i) + " are not where the header says.");
+						}
+						in.readInt();
+						sources.add(in);
+					}
+				}
+				writer.startChromosome(chromosome);
+				writer.out.writeUTF(chromosome);
+				writer.out.writeInt(elem.getValue());
+				mergeStrand(sources, writer.out);
+				mergeStrand(sources, writer.out);
+				System.out.println(chromosome + " merged from " + sources.size() + " files.");
+			}
+			writer.finish();
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+			for (RandomAccessFile raf : files) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Sums one strand from each source, taking the lowest pending position of
+	 * all sources at each step.
+	 */
+	private static void mergeStrand(List<DataInputStream> sources, DataOutputStream out) throws IOException {
+		int numSources = sources.size();
+		int[] positions = new int[numSources];
+		int[][] counts = new int[numSources][MutationProfile.NUM_CHANNELS];
+		for (int i = 0; i < numSources; i++) {
+			positions[i] = CountsFormat.readEntry(sources.get(i), counts[i]);
+		}
+		int[] sum = new int[MutationProfile.NUM_CHANNELS];
+		while (true) {
+			int position = Integer.MAX_VALUE;
+			for (int i = 0; i < numSources; i++) {
+				if (positions[i] != CountsFormat.END_OF_STRAND && positions[i] < position) {
+					position = positions[i];
+				}
+			}
+			if (position == Integer.MAX_VALUE) {
+				break;
+			}
+			for (int c = 0; c < sum.length; c++) {
+				sum[c] = 0;
+			}
+			for (int i = 0; i < numSources; i++) {
+				if (positions[i] == position) {
+					for (int c = 0; c < sum.length; c++) {
+						sum[c] += counts[i][c];
+					}
+					int next = CountsFormat.readEntry(sources.get(i), counts[i]);
+					if (next != CountsFormat.END_OF_STRAND && next <= position) {
+						throw new IOException("Malformed counts: positions are not increasing.");
+					}
+					positions[i] = next;
+				}
+			}
+			CountsFormat.writeEntry(out, position, sum);
+		}
+		out.writeInt(CountsFormat.END_OF_STRAND);
+	}
+
+	/**
+	 * Gets the chromosomes in a file and their lengths, without reading any
+	 * counts.
+	 *
+	 * @param file the file to read
+	 * @return map from chromosome names to lengths in nt, in file order
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static Map<String, Integer> readLengths(File file) throws IOException {
+		return readHeader(file).lengths;
+	}
+
+	/**
+	 * Reads the header of a file, i.e., where the counts of each chromosome
+	 * start, without reading any counts.
+	 */
+	static BinaryProfileFile readHeader(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return readHeader(raf, file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	Map<String, Integer> getLengths() {
+		return lengths;
+	}
+
+	/**
+	 * @return file offset of the counts of a chromosome, or null if the file
+	 * does not have it
+	 */
+	Long getOffset(String chromosome) {
+		return offsets.get(chromosome);
+	}
+
+	private static BinaryProfileFile readHeader(RandomAccessFile raf, File file) throws IOException {
+		DataInputStream in = openAt(raf, 0);
+		if (in.readInt() != MAGIC) {
+			throw new IOException(file + " is not a binary profile file.");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException(file + " has format version " + version + ". Only version " + VERSION + " is supported.");
+		}
+		int numChannels = in.readInt();
+		if (numChannels != MutationProfile.NUM_CHANNELS) {
+			throw new IOException(file + " has " + numChannels + " channels per strand instead of " + MutationProfile.NUM_CHANNELS + ".");
+		}
+		int numChromosomes = in.readInt();
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		Map<String, Long> offsets = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < numChromosomes; i++) {
+			String name = in.readUTF();
+			lengths.put(name, in.readInt());
+			offsets.put(name, in.readLong());
+		}
+		return new BinaryProfileFile(lengths, offsets);
+	}
+
+	static DataInputStream openAt(RandomAccessFile raf, long offset) throws IOException {
+		FileChannel channel = raf.getChannel();
+		channel.position(offset);
+		return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+	}
+
+	/**
+	 * Writes a header with room for the offsets, then the counts of each
+	 * chromosome, then goes back to fill in the offsets.
+	 */
+	private static final class Writer {
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final DataOutputStream out;
+		private final Map<String, Long> offsetPositions;
+		private final Map<String, Long> offsets;
+
+		private Writer(File file, Map<String, Integer> lengths) throws IOException {
+			if (file.exists()) {
+				throw new IOException("Profile file " + file.getAbsolutePath() + " already exists!");
+			}
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			offsetPositions = new LinkedHashMap<String, Long>();
+			offsets = new LinkedHashMap<String, Long>();
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(MutationProfile.NUM_CHANNELS);
+			out.writeInt(lengths.size());
+			for (Map.Entry<String, Integer> elem : lengths.entrySet()) {
+				out.writeUTF(elem.getKey());
+				out.writeInt(elem.getValue());
+				out.flush();
+				offsetPositions.put(elem.getKey(), channel.position());
+				out.writeLong(0);
+			}
+		}
+
+		private void startChromosome(String chromosome) throws IOException {
+			out.flush();
+			offsets.put(chromosome, channel.position());
+		}
+
+		private void finish() throws IOException {
+			out.flush();
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			for (Map.Entry<String, Long> elem : offsets.entrySet()) {
+				buffer.clear();
+				buffer.putLong(elem.getValue()).flip();
+				channel.write(buffer, offsetPositions.get(elem.getKey()));
+			}
+		}
+
+		private void close() throws IOException {
+			out.close();
+			raf.close();
+		}
+	}
+}
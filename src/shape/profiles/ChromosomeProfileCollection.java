@@ -9,6 +9,8 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
 import net.sf.samtools.util.CloseableIterator;
 
 /**
@@ -22,7 +24,11 @@ import net.sf.samtools.util.CloseableIterator;
  */
 public abstract class ChromosomeProfileCollection<T extends StrandProfile> {
 
-	protected Map<String, ChromosomeProfile<T>> profiles;
+	// Replaced rather than changed once reads are being counted; see ensureLength.
+	protected volatile Map<String, ChromosomeProfile<T>> profiles;
+	
+	// Lengths of declared chromosomes not yet allocated; see declareChromosome.
+	private final Map<String, Integer> declaredLengths = new HashMap<String, Integer>();
 	
 	protected ChromosomeProfileCollection() {
 		profiles = new LinkedHashMap<String,  ChromosomeProfile<T>>();
@@ -30,12 +36,111 @@ public abstract class ChromosomeProfileCollection<T extends StrandProfile> {
 	
 	protected ChromosomeProfileCollection(Map<String, Integer> map) {
 		profiles = new LinkedHashMap<String, ChromosomeProfile<T>>();
+		addChromosomes(map);
+	}
+	
+	protected ChromosomeProfileCollection(AnnotationCollection<? extends Annotation> bam) {
+		profiles = new LinkedHashMap<String, ChromosomeProfile<T>>();
+		addChromosomes(bam);
+	}
+	
+	protected ChromosomeProfileCollection(SAMFileHeader header) {
+		profiles = new LinkedHashMap<String, ChromosomeProfile<T>>();
+		addChromosomes(header);
+	}
+	
+	/**
+	 * Adds a chromosome for each entry of the map. Each chromosome is sized
+	 * one greater than the position it is mapped to.
+	 * 
+	 * @param map map from chromosome names to their last positions
+	 */
+	protected final void addChromosomes(Map<String, Integer> map) {
 		for (Map.Entry<String, Integer> elem : map.entrySet()) {
 			this.addChromosome(elem.getKey(), elem.getValue() + 1);
 		}
 	}
 	
-	protected ChromosomeProfileCollection(AnnotationCollection<? extends Annotation> bam) {
+	/**
+	 * Adds a chromosome for each sequence in the header of a .bam file, sized
+	 * to the length given in the sequence dictionary. Unlike sizing from the
+	 * reads, this does not require a pass through the .bam file.
+	 * Chromosomes are declared rather than added; see
+	 * {@link #declareChromosome(String, int)}.
+	 * 
+	 * @param header header of a .bam file
+	 */
+	protected final void addChromosomes(SAMFileHeader header) {
+		for (Map.Entry<String, Integer> elem : getSequenceLengths(header).entrySet()) {
+			this.declareChromosome(elem.getKey(), elem.getValue());
+		}
+	}
+	
+	/**
+	 * Adds a chromosome, or, if {@link #allocatesOnFirstRead()}, only notes
+	 * its length, so that {@link #ensureLength(String, int)} allocates it at
+	 * that length once a read reaches it. Sequences without reads then take
+	 * up no memory. Does nothing if the chromosome is already present.
+	 * 
+	 * @param chromosome chromosome name
+	 * @param size       length of the chromosome in nt
+	 */
+	public final void declareChromosome(String chromosome, int size) {
+		if (allocatesOnFirstRead()) {
+			if (!profiles.containsKey(chromosome)) {
+				declaredLengths.put(chromosome, size);
+			}
+		} else {
+			addChromosome(chromosome, size);
+		}
+	}
+	
+	/**
+	 * Whether declared chromosomes are allocated only once a read reaches
+	 * them. Worth it when an empty chromosome costs memory in proportion to
+	 * its length.
+	 * 
+	 * @return false, unless overridden
+	 */
+	protected boolean allocatesOnFirstRead() {
+		return false;
+	}
+	
+	/**
+	 * Gets the length of each sequence in the header of a .bam file.
+	 * Sequences with no length given are left out.
+	 * 
+	 * @param header header of a .bam file
+	 * @return map from sequence names to lengths in nt, in header order
+	 */
+	protected static Map<String, Integer> getSequenceLengths(SAMFileHeader header) {
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+			if (sequence.getSequenceLength() > 0) {
+				lengths.put(sequence.getSequenceName(), sequence.getSequenceLength());
+			}
+		}
+		return lengths;
+	}
+	
+	/**
+	 * Adds a chromosome for each reference name in the .bam file, sized to
+	 * the furthest read end seen on that chromosome.
+	 * 
+	 * @param bam Annotation collection, presumably from a .bam file
+	 */
+	protected final void addChromosomes(AnnotationCollection<? extends Annotation> bam) {
+		addChromosomes(findLastPositions(bam));
+	}
+	
+	/**
+	 * Walks through every read of the .bam file to find the furthest read end
+	 * on each chromosome.
+	 * 
+	 * @param bam Annotation collection, presumably from a .bam file
+	 * @return map from chromosome names to their last read-end positions
+	 */
+	protected static Map<String, Integer> findLastPositions(AnnotationCollection<? extends Annotation> bam) {
 		System.out.println("Creating list of chromosomes.");
 		Map<String, Integer> chromosomes = new HashMap<String, Integer>();
 		CloseableIterator<? extends Annotation> reads = bam.sortedIterator();
@@ -53,10 +158,7 @@ public abstract class ChromosomeProfileCollection<T extends StrandProfile> {
 		}
 		reads.close();
 		System.out.println("List created.");
-		profiles = new LinkedHashMap<String, ChromosomeProfile<T>>();
-		for (Map.Entry<String, Integer> elem : chromosomes.entrySet()) {
-			this.addChromosome(elem.getKey(), elem.getValue() + 1);
-		}
+		return chromosomes;
 	}
 	
 	/**
@@ -89,7 +191,69 @@ public abstract class ChromosomeProfileCollection<T extends StrandProfile> {
 		return (LinkedHashMap<String, ChromosomeProfile<T>>)profiles;
 	}
 	
+	/**
+	 * Makes sure a chromosome is present and at least the given length. A
+	 * missing chromosome is added at that length, or at its declared length
+	 * if that is greater. A chromosome that is too
+	 * short, e.g., because its length in the .bam header is wrong, grows by
+	 * at least half its length so that a run of overhanging reads causes only
+	 * a few copies.
+	 * <p>
+	 * Safe to call from several threads counting into the same collection.
+	 * Changes are made to a copy of the chromosome map, which then replaces
+	 * the original, so that lookups on other threads never see a map in the
+	 * middle of being changed.
+	 * 
+	 * @param chromosome chromosome name
+	 * @param length     minimum length of the chromosome in nt
+	 */
+	public final void ensureLength(String chromosome, int length) {
+		ChromosomeProfile<T> profile = profiles.get(chromosome);
+		if (profile == null || profile.getLength() < length) {
+			resize(chromosome, length);
+		}
+	}
+	
+	private synchronized void resize(String chromosome, int length) {
+		ChromosomeProfile<T> profile = profiles.get(chromosome);
+		ChromosomeProfile<T> resized;
+		if (profile == null) {
+			Integer declaredLength = declaredLengths.remove(chromosome);
+			resized = newChromosome(chromosome, declaredLength == null ? length : Math.max(length, declaredLength));
+		} else if (profile.getLength() < length) {
+			int currentLength = profile.getLength();
+			resized = growChromosome(profile, Math.max(length, currentLength + (currentLength >> 1)));
+		} else {
+			return;
+		}
+		if (resized != profile) {
+			Map<String, ChromosomeProfile<T>> copy = new LinkedHashMap<String, ChromosomeProfile<T>>(profiles);
+			copy.put(chromosome, resized);
+			profiles = copy;
+		}
+	}
+	
 	public abstract void addChromosome(String chromosome, int size);
 	
+	/**
+	 * Creates the profiles of a chromosome without adding them to the
+	 * collection.
+	 * 
+	 * @param chromosome chromosome name
+	 * @param size       length of the chromosome in nt
+	 * @return profiles of the new chromosome
+	 */
+	protected abstract ChromosomeProfile<T> newChromosome(String chromosome, int size);
+	
+	/**
+	 * Creates a longer copy of the profiles of a chromosome, keeping their
+	 * data, without adding it to the collection.
+	 * 
+	 * @param profile profiles of the chromosome
+	 * @param size    new length of the chromosome in nt
+	 * @return the longer profiles, or the same profiles if they cannot grow
+	 */
+	protected abstract ChromosomeProfile<T> growChromosome(ChromosomeProfile<T> profile, int size);
+	
 	public abstract void toFile(String fileName) throws FileNotFoundException, IOException;
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package shape.profiles;
+
+/**
+ * Backing store for the counts of a {@link MutationProfile}. Counts are kept
+ * in a fixed number of channels (matches, insertions, deletions, and so on),
+ * each of which holds one non-negative integer per position of the strand.
+ * 
+ * @author Mason M Lai
+ */
+abstract class CounterStorage {
+
+	// Rough object layout of a 64-bit JVM with compressed references, used for
+	// memory-footprint estimates.
+	static final long OBJECT_HEADER_BYTES = 12;
+	static final long ARRAY_HEADER_BYTES = 16;
+	static final long REFERENCE_BYTES = 4;
+
+	protected final int numChannels;
+	protected final int length;
+	
+	protected CounterStorage(int numChannels, int length) {
+		this.numChannels = numChannels;
+		this.length = length;
+	}
+	
+	/**
+	 * Adds one to the count of a channel at a position.
+	 * 
+	 * @param channel  index of the channel
+	 * @param position position on the strand
+	 */
+	abstract void increment(int channel, int position);
+	
+	/**
+	 * Adds an arbitrary amount to the count of a channel at a position.
+	 * 
+	 * @param channel  index of the channel
+	 * @param position position on the strand
+	 * @param delta    amount to add
+	 */
+	abstract void add(int channel, int position, int delta);
+	
+	/**
+	 * Adds one to the count of a channel at every position of a range. This
+	 * implementation adds one position at a time. Storages that can defer the
+	 * work, e.g., with a difference array, override it.
+	 * 
+	 * @param channel index of the channel
+	 * @param start   first position of the range
+	 * @param end     position after the last position of the range
+	 */
+	void addRange(int channel, int start, int end) {
+		for (int position = start; position < end; position++) {
+			increment(channel, position);
+		}
+	}
+	
+	/**
+	 * Folds any deferred range additions into the counts, and brings any
+	 * index of covered positions up to date. Storages that defer work call
+	 * this themselves before counts are read, grown or written out.
+	 */
+	void flush() {
+	}
+	
+	/**
+	 * Adds every count of this storage to another storage with the same
+	 * number of channels. Counts beyond the end of the other storage are
+	 * dropped. This implementation visits the positions found by
+	 * {@link #nextCovered(int, int)}; sparse storages override it to visit
+	 * their entries directly.
+	 * 
+	 * @param target the storage to add to
+	 */
+	void addTo(CounterStorage target) {
+		int end = Math.min(length, target.length);
+		for (int position = nextCovered(0, end); position < end; position = nextCovered(position + 1, end)) {
+			for (int c = 0; c < numChannels; c++) {
+				int count = get(c, position);
+				if (count != 0) {
+					target.add(c, position, count);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Finds the first position of a range with a non-zero count in any
+	 * channel. This implementation checks every position; storages that know
+	 * which positions are covered override it to skip the others.
+	 * 
+	 * @param from first position of the range
+	 * @param to   position after the last position of the range, at most the
+	 *             length
+	 * @return the first covered position, or {@code to} if there is none
+	 */
+	int nextCovered(int from, int to) {
+		flush();
+		for (int position = from; position < to; position++) {
+			for (int c = 0; c < numChannels; c++) {
+				if (get(c, position) != 0) {
+					return position;
+				}
+			}
+		}
+		return to;
+	}
+	
+	/**
+	 * Gets the count of a channel at a position.
+	 * 
+	 * @param channel  index of the channel
+	 * @param position position on the strand
+	 * @return the count, or 0 if nothing has been counted there
+	 */
+	abstract int get(int channel, int position);
+	
+	/**
+	 * Creates a storage of a greater length holding the same counts. The
+	 * returned storage may share memory with this one, which should not be
+	 * used afterwards.
+	 * 
+	 * @param newLength the new length, no less than the current length
+	 * @return a storage of the new length
+	 */
+	abstract CounterStorage grow(int newLength);
+	
+	/**
+	 * Estimates the number of heap bytes used to store the counts.
+	 * 
+	 * @return estimated size of the counts in bytes
+	 */
+	abstract long getMemoryFootprint();
+	
+	final int getNumChannels() {
+		return numChannels;
+	}
+	
+	final int getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,138 @@
+package shape.profiles;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes the counts of one chromosome as a compact binary record.
+ * Only covered positions are written: for each strand, a sequence of
+ * entries, each made of the position, a byte whose bits mark the channels
+ * with non-zero counts, and those counts, ending with position -1.
+ * 
+ * @author Mason M Lai
+ */
+final class CountsFormat {
+
+	static final int END_OF_STRAND = -1;
+	
+	private CountsFormat() {
+	}
+	
+	/**
+	 * Writes the name, length and counts of a chromosome.
+	 * 
+	 * @param out     the stream to write to
+	 * @param profile profiles of the chromosome
+	 * @throws IOException if the stream cannot be written
+	 */
+	static void writeChromosome(DataOutput out, ChromosomeProfile<MutationProfile> profile) throws IOException {
+		out.writeUTF(profile.getName());
+		out.writeInt(profile.getLength());
+		writeStrand(out, profile.getPositiveStrand());
+		writeStrand(out, profile.getNegativeStrand());
+	}
+	
+	private static void writeStrand(DataOutput out, MutationProfile profile) throws IOException {
+		int[] counts = new int[MutationProfile.NUM_CHANNELS];
+		int length = profile.getLength();
+		for (int position = profile.nextCovered(0, length); position < length; position = profile.nextCovered(position + 1, length)) {
+			for (int c = 0; c < counts.length; c++) {
+				counts[c] = profile.getCount(c, position);
+			}
+			writeEntry(out, position, counts);
+		}
+		out.writeInt(END_OF_STRAND);
+	}
+	
+	/**
+	 * Writes the counts of one position. Positions must be written in
+	 * increasing order, and a strand ends with {@link #END_OF_STRAND}.
+	 * Nothing is written if every count is 0.
+	 */
+	static void writeEntry(DataOutput out, int position, int[] counts) throws IOException {
+		int mask = 0;
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] != 0) {
+				mask |= 1 << c;
+			}
+		}
+		if (mask == 0) {
+			return;
+		}
+		out.writeInt(position);
+		out.writeByte(mask);
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] != 0) {
+				out.writeInt(counts[c]);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the counts of the next position of a strand.
+	 * 
+	 * @param in     the stream to read from
+	 * @param counts filled with the counts of the position
+	 * @return the position, or {@link #END_OF_STRAND} at the end of the strand
+	 * @throws IOException if the stream cannot be read or the entry is malformed
+	 */
+	static int readEntry(DataInput in, int[] counts) throws IOException {
+		int position = in.readInt();
+		if (position == END_OF_STRAND) {
+			return position;
+		}
+		if (position < 0) {
+			throw new IOException("Malformed counts: negative position " + position + ".");
+		}
+		int mask = in.readUnsignedByte();
+		if (mask >>> counts.length != 0) {
+			throw new IOException("Malformed counts at position " + position + ": channel mask " + mask +
+					" has bits beyond the " + counts.length + " channels.");
+		}
+		for (int c = 0; c < counts.length; c++) {
+			counts[c] = (mask & 1 << c) != 0 ? in.readInt() : 0;
+		}
+		return position;
+	}
+	
+	/**
+	 * Reads the counts of a chromosome and adds them to a collection. The
+	 * chromosome is added or grown as needed. Counts beyond the end of a
+	 * chromosome that cannot grow are dropped.
+	 * 
+	 * @param in       the stream to read from
+	 * @param profiles the collection to add the counts to
+	 * @return name of the chromosome
+	 * @throws IOException if the stream cannot be read or is malformed
+	 */
+	static String readChromosome(DataInput in, MutationProfileCollection profiles) throws IOException {
+		String name = in.readUTF();
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Chromosome " + name + " has negative length " + length + ".");
+		}
+		profiles.ensureLength(name, length);
+		ChromosomeProfile<MutationProfile> profile = profiles.getProfiles().get(name);
+		readStrand(in, profile.getPositiveStrand(), length);
+		readStrand(in, profile.getNegativeStrand(), length);
+		return name;
+	}
+	
+	private static void readStrand(DataInput in, MutationProfile profile, int length) throws IOException {
+		int[] counts = new int[MutationProfile.NUM_CHANNELS];
+		int position;
+		while ((position = readEntry(in, counts)) != END_OF_STRAND) {
+			if (position >= length) {
+				throw new IOException("Position " + position + " is outside chromosome " + profile.getChromosomeName() + ".");
+			}
+			if (position < profile.getLength()) {
+				for (int c = 0; c < counts.length; c++) {
+					if (counts[c] != 0) {
+						profile.addCount(c, position, counts[c]);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package shape.profiles;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counts of one sample, read a chromosome at a time in the order of
+ * {@link CountsFormat}: the covered positions of the positive strand in
+ * increasing order, then those of the negative strand. Counts are either
+ * streamed from a {@link BinaryProfileFile}, so that memory use does not
+ * depend on the size of the file, or read from a collection that is
+ * already in memory.
+ * <p>
+ * Several chromosomes may be read at once, each by its own thread.
+ *
+ * @author Mason M Lai
+ */
+public abstract class CountsSource {
+
+	private final Map<String, Integer> lengths;
+
+	private CountsSource(Map<String, Integer> lengths) {
+		this.lengths = lengths;
+	}
+
+	/**
+	 * Streams the counts of a binary profile file, as written by
+	 * MutationCounter with -x or by ProfileMerger. Only the header is read
+	 * here.
+	 *
+	 * @param file the binary profile file
+	 * @return the counts of the file
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static CountsSource fromFile(File file) throws IOException {
+		return new FileSource(file, BinaryProfileFile.readHeader(file));
+	}
+
+	/**
+	 * Reads the counts of a collection. The collection must not change while
+	 * it is read.
+	 *
+	 * @param profiles the collection
+	 * @return the counts of the collection
+	 */
+	public static CountsSource fromCollection(MutationProfileCollection profiles) {
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		for (ChromosomeProfile<MutationProfile> profile : profiles.getProfiles().values()) {
+			// Deferred range additions are folded in now, so that chromosomes can be read on several threads.
+			profile.getPositiveStrand().flush();
+			profile.getNegativeStrand().flush();
+			lengths.put(profile.getName(), profile.getLength());
+		}
+		return new CollectionSource(profiles, lengths);
+	}
+
+	/**
+	 * @return map from chromosome names to lengths in nt, in the order of the
+	 * source
+	 */
+	public final Map<String, Integer> getLengths() {
+		return lengths;
+	}
+
+	/**
+	 * Opens the counts of a chromosome. The cursor is used by one thread.
+	 *
+	 * @param chromosome name of a chromosome of the source
+	 * @return a cursor before the first position of the positive strand
+	 * @throws IOException if the counts cannot be read
+	 */
+	abstract Cursor open(String chromosome) throws IOException;
+
+	/**
+	 * Reads the covered positions of a chromosome, one at a time.
+	 */
+	interface Cursor extends Closeable {
+
+		/**
+		 * Reads the next covered position of the current strand.
+		 *
+		 * @param counts filled with the counts of the position, by channel
+		 * @return the position, or {@link CountsFormat#END_OF_STRAND} once
+		 * the strand is over, after which the next strand is read
+		 * @throws IOException if the counts cannot be read or are malformed
+		 */
+		int next(int[] counts) throws IOException;
+	}
+
+	private static final class FileSource extends CountsSource {
+		private final File file;
+		private final BinaryProfileFile header;
+
+		private FileSource(File file, BinaryProfileFile header) {
+			super(header.getLengths());
+			this.file = file;
+			this.header = header;
+		}
+
+		@Override
+		Cursor open(final String chromosome) throws IOException {
+			Long offset = header.getOffset(chromosome);
+			if (offset == null) {
+				throw new IllegalArgumentException(file + " has no counts for " + chromosome + ".");
+			}
+			// Each cursor has its own file, since reading moves the position of its channel.
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final DataInputStream in = BinaryProfileFile.openAt(raf, offset);
+				if (!in.readUTF().equals(chromosome)) {
+					throw new IOException("Counts of " + chromosome + " in " + file + " are not where the header says.");
+				}
+				in.readInt();
+				return new Cursor() {
+					private int last = -1;
+
+					@Override
+					public int next(int[] counts) throws IOException {
+						int position = CountsFormat.readEntry(in, counts);
+						if (position == CountsFormat.END_OF_STRAND) {
+							last = -1;
+						} else if (position <= last) {
+							throw new IOException("Malformed counts of " + chromosome + " in " + file + ": positions are not increasing.");
+						} else {
+							last = position;
+						}
+						return position;
+					}
+
+					@Override
+					public void close() throws IOException {
+						raf.close();
+					}
+				};
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+	}
+
+	private static final class CollectionSource extends CountsSource {
+		private final MutationProfileCollection profiles;
+
+		private CollectionSource(MutationProfileCollection profiles, Map<String, Integer> lengths) {
+			super(lengths);
+			this.profiles = profiles;
+		}
+
+		@Override
+		Cursor open(String chromosome) {
+			ChromosomeProfile<MutationProfile> profile = profiles.getProfiles().get(chromosome);
+			if (profile == null) {
+				throw new IllegalArgumentException("The collection has no counts for " + chromosome + ".");
+			}
+			final MutationProfile[] strands = {profile.getPositiveStrand(), profile.getNegativeStrand()};
+			return new Cursor() {
+				private int strand = 0;
+				private int position = -1;
+
+				@Override
+				public int next(int[] counts) {
+					MutationProfile profile = strands[strand];
+					int length = profile.getLength();
+					position = profile.nextCovered(position + 1, length);
+					if (position >= length) {
+						strand = Math.min(strand + 1, strands.length - 1);
+						position = -1;
+						return CountsFormat.END_OF_STRAND;
+					}
+					for (int c = 0; c < counts.length; c++) {
+						counts[c] = profile.getCount(c, position);
+					}
+					return position;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package shape.profiles;
+
+import java.util.Arrays;
+
+/**
+ * Stores counts in one primitive int array per channel, each as long as the
+ * strand. Increments and lookups are a single array access, with no boxing
+ * or per-position allocation.
+ * <p>
+ * Range additions go into a difference array: adding one over [start, end)
+ * costs two writes, and the prefix sum is folded into the counts the next
+ * time a count is read.
+ * <p>
+ * A bitmap with one bit per block of positions marks the blocks that have
+ * ever been counted in, so that finding covered positions skips the
+ * untouched stretches of sparse data, e.g., amplicons, without reading them.
+ * 
+ * @author Mason M Lai
+ */
+final class DenseCounterStorage extends CounterStorage {
+
+	// Positions per bit of the bitmap of touched blocks.
+	private static final int BLOCK_BITS = 8;
+	private static final int WORD_BITS = BLOCK_BITS + 6;
+
+	private final int[][] channels;
+	private final int[][] differences;
+	private final long[] touchedBlocks;
+	private boolean hasPendingRanges;
+	
+	DenseCounterStorage(int numChannels, int length) {
+		super(numChannels, length);
+		channels = new int[numChannels][length];
+		differences = new int[numChannels][];
+		touchedBlocks = new long[(int)(((long)length + (1 << WORD_BITS) - 1) >>> WORD_BITS)];
+		hasPendingRanges = false;
+	}
+	
+	private DenseCounterStorage(DenseCounterStorage that, int length) {
+		super(that.numChannels, length);
+		that.flush();
+		channels = new int[numChannels][];
+		for (int i = 0; i < numChannels; i++) {
+			channels[i] = Arrays.copyOf(that.channels[i], length);
+		}
+		differences = new int[numChannels][];
+		touchedBlocks = Arrays.copyOf(that.touchedBlocks, (int)(((long)length + (1 << WORD_BITS) - 1) >>> WORD_BITS));
+		hasPendingRanges = false;
+	}
+	
+	@Override
+	void increment(int channel, int position) {
+		++channels[channel][position];
+		touchedBlocks[position >>> WORD_BITS] |= 1L << (position >>> BLOCK_BITS);
+	}
+	
+	@Override
+	void add(int channel, int position, int delta) {
+		channels[channel][position] += delta;
+		touchedBlocks[position >>> WORD_BITS] |= 1L << (position >>> BLOCK_BITS);
+	}
+	
+	@Override
+	void addRange(int channel, int start, int end) {
+		if (start >= end) {
+			return;
+		}
+		int[] difference = differences[channel];
+		if (difference == null) {
+			difference = new int[length + 1];
+			differences[channel] = difference;
+		}
+		++difference[start];
+		--difference[end];
+		for (int block = start >>> BLOCK_BITS; block <= (end - 1) >>> BLOCK_BITS; block++) {
+			touchedBlocks[block >>> 6] |= 1L << block;
+		}
+		hasPendingRanges = true;
+	}
+	
+	@Override
+	void flush() {
+		if (!hasPendingRanges) {
+			return;
+		}
+		for (int c = 0; c < numChannels; c++) {
+			int[] difference = differences[c];
+			if (difference == null) {
+				continue;
+			}
+			int[] counts = channels[c];
+			int sum = 0;
+			for (int position = 0; position < length; position++) {
+				sum += difference[position];
+				difference[position] = 0;
+				counts[position] += sum;
+			}
+			difference[length] = 0;
+		}
+		hasPendingRanges = false;
+	}
+	
+	@Override
+	int nextCovered(int from, int to) {
+		flush();
+		int position = from;
+		while (position < to) {
+			// Skips to the next touched block, a whole word of untouched blocks at a time.
+			int block = position >>> BLOCK_BITS;
+			int word = block >>> 6;
+			long bits = touchedBlocks[word] & (-1L << block);
+			while (bits == 0) {
+				if (((long)++word << WORD_BITS) >= to) {
+					return to;
+				}
+				bits = touchedBlocks[word];
+			}
+			int blockStart = ((word << 6) + Long.numberOfTrailingZeros(bits)) << BLOCK_BITS;
+			position = Math.max(position, blockStart);
+			int blockEnd = Math.min(to, blockStart + (1 << BLOCK_BITS));
+			for (; position < blockEnd; position++) {
+				for (int[] counts : channels) {
+					if (counts[position] != 0) {
+						return position;
+					}
+				}
+			}
+		}
+		return Math.min(position, to);
+	}
+	
+	@Override
+	int get(int channel, int position) {
+		if (hasPendingRanges) {
+			flush();
+		}
+		return channels[channel][position];
+	}
+	
+	@Override
+	CounterStorage grow(int newLength) {
+		return new DenseCounterStorage(this, newLength);
+	}
+	
+	@Override
+	long getMemoryFootprint() {
+		long total = 2 * (ARRAY_HEADER_BYTES + numChannels * REFERENCE_BYTES) + numChannels * (ARRAY_HEADER_BYTES + 4L * length)
+				+ ARRAY_HEADER_BYTES + 8L * touchedBlocks.length;
+		for (int[] difference : differences) {
+			if (difference != null) {
+				total += ARRAY_HEADER_BYTES + 4L * difference.length;
+			}
+		}
+		return total;
+	}
+}
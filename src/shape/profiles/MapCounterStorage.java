@@ -0,0 +1,147 @@
+package shape.profiles;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores counts in one HashMap per channel. Memory use is proportional to the
+ * number of covered positions, but every position costs a boxed key and a
+ * map entry.
+ * 
+ * @author Mason M Lai
+ */
+final class MapCounterStorage extends CounterStorage {
+
+	private final Map<Integer, MutableInt>[] channels;
+	
+	// Covered positions in increasing order, rebuilt when a position is first covered.
+	private int[] coveredPositions;
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	MapCounterStorage(int numChannels, int length) {
+		super(numChannels, length);
+		channels = new Map[numChannels];
+		for (int i = 0; i < numChannels; i++) {
+			channels[i] = new HashMap<Integer, MutableInt>();
+		}
+	}
+	
+	private MapCounterStorage(MapCounterStorage that, int length) {
+		super(that.numChannels, length);
+		channels = that.channels;
+	}
+	
+	@Override
+	void increment(int channel, int position) {
+		Map<Integer, MutableInt> map = channels[channel];
+		MutableInt count = map.get(position);
+		if (count == null) {
+			map.put(position, new MutableInt());
+			coveredPositions = null;
+		} else {
+			count.increment();
+		}
+	}
+	
+	@Override
+	void add(int channel, int position, int delta) {
+		if (delta == 0) {
+			return;
+		}
+		Map<Integer, MutableInt> map = channels[channel];
+		MutableInt count = map.get(position);
+		if (count == null) {
+			map.put(position, new MutableInt(delta));
+			coveredPositions = null;
+		} else {
+			count.add(delta);
+		}
+	}
+	
+	@Override
+	void addTo(CounterStorage target) {
+		for (int c = 0; c < numChannels; c++) {
+			for (Map.Entry<Integer, MutableInt> entry : channels[c].entrySet()) {
+				if (entry.getKey() < target.length) {
+					target.add(c, entry.getKey(), entry.getValue().get());
+				}
+			}
+		}
+	}
+	
+	@Override
+	void flush() {
+		// Building the index here rather than on first use lets several threads search it once flushed.
+		if (coveredPositions == null) {
+			Set<Integer> positions = new HashSet<Integer>();
+			for (Map<Integer, MutableInt> map : channels) {
+				positions.addAll(map.keySet());
+			}
+			coveredPositions = new int[positions.size()];
+			int i = 0;
+			for (Integer position : positions) {
+				coveredPositions[i++] = position;
+			}
+			Arrays.sort(coveredPositions);
+		}
+	}
+	
+	@Override
+	int nextCovered(int from, int to) {
+		flush();
+		int index = Arrays.binarySearch(coveredPositions, from);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return index < coveredPositions.length ? Math.min(coveredPositions[index], to) : to;
+	}
+	
+	@Override
+	int get(int channel, int position) {
+		MutableInt rtrn = channels[channel].get(position);
+		if (rtrn == null) {
+			return 0;
+		} else {
+			return rtrn.get();
+		}
+	}
+	
+	@Override
+	CounterStorage grow(int newLength) {
+		return new MapCounterStorage(this, newLength);
+	}
+	
+	@Override
+	long getMemoryFootprint() {
+		// Each entry costs a HashMap.Node, a boxed Integer key, a MutableInt and
+		// roughly one slot of the table (which is kept at most 75% full).
+		long entryBytes = (OBJECT_HEADER_BYTES + 20) + (OBJECT_HEADER_BYTES + 4) + (OBJECT_HEADER_BYTES + 4) + 2 * REFERENCE_BYTES;
+		long total = ARRAY_HEADER_BYTES + numChannels * REFERENCE_BYTES;
+		for (Map<Integer, MutableInt> map : channels) {
+			total += OBJECT_HEADER_BYTES + 36 + ARRAY_HEADER_BYTES + map.size() * entryBytes;
+		}
+		return total;
+	}
+	
+	private static class MutableInt {
+		int value;
+		MutableInt() {
+			value = 1;
+		}
+		MutableInt(int value) {
+			this.value = value;
+		}
+		public void increment() {
+			++value;
+		}
+		public void add(int delta) {
+			value += delta;
+		}
+		public int get() {
+			return value;
+		}
+	}
+}
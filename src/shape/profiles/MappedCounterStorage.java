@@ -0,0 +1,109 @@
+package shape.profiles;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores counts outside the heap, in a region of a memory-mapped file. The
+ * region holds one block of {@code length} little-endian ints per channel,
+ * channel after channel. Pages of the file are loaded and written back by the
+ * operating system, so the counts do not count against the heap and persist
+ * in the file.
+ * <p>
+ * A single mapping is limited to 2 GB, so each channel is mapped in segments
+ * of at most {@link #SEGMENT_SIZE} positions.
+ * 
+ * @author Mason M Lai
+ */
+final class MappedCounterStorage extends CounterStorage {
+
+	static final int SEGMENT_BITS = 28;
+	static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	
+	private final MappedByteBuffer[][] mappings;
+	private final IntBuffer[][] segments;
+	
+	/**
+	 * Maps the counts of one strand.
+	 * 
+	 * @param channel     an open channel to the profile file
+	 * @param offset      position in the file of the first count of the first channel
+	 * @param numChannels number of channels in the region
+	 * @param length      length of the strand
+	 * @param readOnly    whether the region should be mapped read-only
+	 * @throws IOException if the region cannot be mapped
+	 */
+	MappedCounterStorage(FileChannel channel, long offset, int numChannels, int length, boolean readOnly) throws IOException {
+		super(numChannels, length);
+		FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+		int numSegments = (int)(((long)length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+		mappings = new MappedByteBuffer[numChannels][numSegments];
+		segments = new IntBuffer[numChannels][numSegments];
+		for (int c = 0; c < numChannels; c++) {
+			long channelOffset = offset + 4L * c * length;
+			for (int s = 0; s < numSegments; s++) {
+				long start = (long)s << SEGMENT_BITS;
+				long size = Math.min(SEGMENT_SIZE, length - start);
+				mappings[c][s] = channel.map(mode, channelOffset + 4L * start, 4L * size);
+				segments[c][s] = mappings[c][s].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes a strand of the given length occupies in a
+	 * profile file.
+	 * 
+	 * @param numChannels number of channels per strand
+	 * @param length      length of the strand
+	 * @return size of the region in bytes
+	 */
+	static long regionSize(int numChannels, int length) {
+		return 4L * numChannels * length;
+	}
+	
+	/**
+	 * Writes any modified counts back to the file.
+	 */
+	void force() {
+		for (MappedByteBuffer[] channelMappings : mappings) {
+			for (MappedByteBuffer mapping : channelMappings) {
+				mapping.force();
+			}
+		}
+	}
+	
+	@Override
+	void increment(int channel, int position) {
+		IntBuffer segment = segments[channel][position >>> SEGMENT_BITS];
+		int index = position & SEGMENT_MASK;
+		segment.put(index, segment.get(index) + 1);
+	}
+	
+	@Override
+	void add(int channel, int position, int delta) {
+		IntBuffer segment = segments[channel][position >>> SEGMENT_BITS];
+		int index = position & SEGMENT_MASK;
+		segment.put(index, segment.get(index) + delta);
+	}
+	
+	@Override
+	int get(int channel, int position) {
+		return segments[channel][position >>> SEGMENT_BITS].get(position & SEGMENT_MASK);
+	}
+	
+	@Override
+	CounterStorage grow(int newLength) {
+		throw new UnsupportedOperationException("Memory-mapped profiles cannot grow. Mapped profile files are sized when they are created.");
+	}
+	
+	@Override
+	long getMemoryFootprint() {
+		// The counts themselves live in the page cache. Only the buffer objects are on the heap.
+		return ARRAY_HEADER_BYTES + numChannels * (REFERENCE_BYTES + ARRAY_HEADER_BYTES + segments[0].length * (REFERENCE_BYTES + 64));
+	}
+}
@@ -0,0 +1,240 @@
+package shape.profiles;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file holding the counts of a {@link MutationProfileCollection} in a fixed
+ * binary layout, meant to be memory-mapped rather than read.
+ * <p>
+ * The file starts with a header: the magic number "SHPM", a format version,
+ * the number of channels per strand, the number of chromosomes, the size of
+ * the header, and then for each chromosome its name, its length and the file
+ * offset of its counts.
+ * All header values are little-endian. The counts of each chromosome are a
+ * positive-strand region followed by a negative-strand region, each laid out
+ * as described in {@link MappedCounterStorage}. Regions start on page
+ * boundaries.
+ * <p>
+ * A freshly created file is all zeros, so it can be filled by counting reads
+ * into it, and then reopened later without recounting.
+ * 
+ * @author Mason M Lai
+ */
+public final class MappedProfileFile implements Closeable {
+
+	private static final int MAGIC = 0x4d504853; // "SHPM", little-endian
+	private static final int VERSION = 1;
+	private static final int PREFIX_SIZE = 20;
+	private static final long ALIGNMENT = 4096;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private final Map<String, Integer> lengths;
+	private final Map<String, Long> offsets;
+	private final List<MappedCounterStorage> storages;
+	
+	private MappedProfileFile(File file, RandomAccessFile raf, boolean readOnly, Map<String, Integer> lengths, Map<String, Long> offsets) {
+		this.file = file;
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.readOnly = readOnly;
+		this.lengths = lengths;
+		this.offsets = offsets;
+		this.storages = new ArrayList<MappedCounterStorage>();
+	}
+	
+	/**
+	 * Creates a new, zeroed profile file with room for the given chromosomes.
+	 * 
+	 * @param file    the file to create
+	 * @param lengths map from chromosome names to their lengths in nt
+	 * @return the new file, open for reading and writing
+	 * @throws IOException if the file already exists or cannot be written
+	 */
+	public static MappedProfileFile create(File file, Map<String, Integer> lengths) throws IOException {
+		if (file.exists()) {
+			throw new IOException("Profile file " + file.getAbsolutePath() + " already exists!");
+		}
+		
+		int headerSize = PREFIX_SIZE;
+		for (String chromosome : lengths.keySet()) {
+			headerSize += 2 + chromosome.getBytes(ASCII).length + 4 + 8;
+		}
+		
+		Map<String, Long> offsets = new LinkedHashMap<String, Long>();
+		long offset = align(headerSize);
+		for (Map.Entry<String, Integer> elem : lengths.entrySet()) {
+			offsets.put(elem.getKey(), offset);
+			long strandSize = MappedCounterStorage.regionSize(MutationProfile.NUM_CHANNELS, elem.getValue());
+			offset = align(offset + 2 * strandSize);
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(MutationProfile.NUM_CHANNELS);
+		header.putInt(lengths.size());
+		header.putInt(headerSize);
+		for (Map.Entry<String, Integer> elem : lengths.entrySet()) {
+			byte[] name = elem.getKey().getBytes(ASCII);
+			header.putShort((short)name.length);
+			header.put(name);
+			header.putInt(elem.getValue());
+			header.putLong(offsets.get(elem.getKey()));
+		}
+		header.flip();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(offset);
+			raf.getChannel().write(header, 0);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		return new MappedProfileFile(file, raf, false, new LinkedHashMap<String, Integer>(lengths), offsets);
+	}
+	
+	/**
+	 * Opens an existing profile file.
+	 * 
+	 * @param file     the file to open
+	 * @param readOnly whether the counts may be modified
+	 * @return the opened file
+	 * @throws IOException if the file cannot be read or is not a profile file
+	 */
+	public static MappedProfileFile open(File file, boolean readOnly) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer prefix = read(channel, 0, PREFIX_SIZE);
+			if (prefix.getInt() != MAGIC) {
+				throw new IOException(file.getName() + " is not a mutation profile file.");
+			}
+			int version = prefix.getInt();
+			if (version != VERSION) {
+				throw new IOException(file.getName() + " has unsupported profile file version " + version + ".");
+			}
+			int numChannels = prefix.getInt();
+			if (numChannels != MutationProfile.NUM_CHANNELS) {
+				throw new IOException(file.getName() + " has " + numChannels + " channels per strand. Expected " + MutationProfile.NUM_CHANNELS + ".");
+			}
+			int numChromosomes = prefix.getInt();
+			int headerSize = prefix.getInt();
+			
+			ByteBuffer header = read(channel, PREFIX_SIZE, headerSize - PREFIX_SIZE);
+			Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+			Map<String, Long> offsets = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < numChromosomes; i++) {
+				byte[] name = new byte[header.getShort() & 0xffff];
+				header.get(name);
+				String chromosome = new String(name, ASCII);
+				lengths.put(chromosome, header.getInt());
+				offsets.put(chromosome, header.getLong());
+			}
+			return new MappedProfileFile(file, raf, readOnly, lengths, offsets);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of profile file.");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	private static long align(long offset) {
+		return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+	
+	/**
+	 * Gets the chromosomes in the file and their lengths, in file order.
+	 * 
+	 * @return unmodifiable map from chromosome names to lengths in nt
+	 */
+	public Map<String, Integer> getLengths() {
+		return Collections.unmodifiableMap(lengths);
+	}
+	
+	public boolean contains(String chromosome) {
+		return lengths.containsKey(chromosome);
+	}
+	
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Maps the counts of one strand of a chromosome into a profile.
+	 * 
+	 * @param chromosome  name of the chromosome
+	 * @param orientation strandedness
+	 * @return a profile whose counts live in this file
+	 * @throws IOException if the chromosome is not in the file or cannot be mapped
+	 */
+	MutationProfile newProfile(String chromosome, Strand orientation) throws IOException {
+		Integer length = lengths.get(chromosome);
+		if (length == null) {
+			throw new IOException("Chromosome " + chromosome + " is not in profile file " + file.getName() + ".");
+		}
+		long offset = offsets.get(chromosome);
+		if (orientation.equals(Strand.NEGATIVE)) {
+			offset += MappedCounterStorage.regionSize(MutationProfile.NUM_CHANNELS, length);
+		}
+		MappedCounterStorage storage = new MappedCounterStorage(channel, offset, MutationProfile.NUM_CHANNELS, length, readOnly);
+		storages.add(storage);
+		return new MutationProfile(length, chromosome, orientation, storage, StorageType.MAPPED);
+	}
+	
+	/**
+	 * Writes any modified counts back to the file.
+	 */
+	public void flush() throws IOException {
+		if (!readOnly) {
+			for (MappedCounterStorage storage : storages) {
+				storage.force();
+			}
+		}
+	}
+	
+	/**
+	 * Flushes the counts and closes the file. Mapped regions stay valid until
+	 * they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			raf.close();
+		}
+	}
+}
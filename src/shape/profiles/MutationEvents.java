@@ -0,0 +1,217 @@
+package shape.profiles;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import shape.utils.Nucleotide;
+import shape.utils.ReadEvents;
+
+/**
+ * Records mutation counts as compact events instead of adding them to the
+ * profiles right away. Each event takes three ints: its kind, strand and
+ * chromosome packed into one, and two positions.
+ * <p>
+ * Chromosome lengths are not changed while events are recorded, since the
+ * profiles may be in use by another thread. Instead, the required length is
+ * recorded as an event and applied in order with the counts. Counts beyond
+ * the end of a chromosome that cannot grow, such as a memory-mapped one, are
+ * dropped when the events are applied, as they would be when counting
+ * directly.
+ * <p>
+ * Not thread-safe. The profiles must only be changed through
+ * {@link ChromosomeProfileCollection#ensureLength(String, int)} and the add
+ * methods while events are recorded.
+ *
+ * @author Mason M Lai
+ */
+public final class MutationEvents implements MutationSink, ReadEvents<MutationProfileCollection> {
+
+	private static final int ENSURE_LENGTH = 0;
+	private static final int MATCH_RANGE = 1;
+	private static final int MATCH = 2;
+	private static final int INSERTION = 3;
+	private static final int DELETION = 4;
+	private static final int MUTATION = 5;
+
+	private static final int KIND_BITS = 3;
+	private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+	private static final int NEGATIVE_STRAND = 1 << KIND_BITS;
+	private static final int CHROMOSOME_SHIFT = KIND_BITS + 1;
+
+	private static final Nucleotide[] NUCLEOTIDES = Nucleotide.values();
+
+	private final MutationProfileCollection profiles;
+
+	// Chromosomes named by the recorded events, and the longest length each has been ensured to.
+	private final List<String> chromosomes;
+	private int[] ensuredLengths;
+	private String lastChromosome;
+	private int lastChromosomeIndex;
+
+	private int[] kinds;
+	private int[] firsts;
+	private int[] seconds;
+	private int size;
+
+	/**
+	 * @param profiles the collection the events will be applied to. Used to
+	 *                 look up chromosome lengths while recording.
+	 */
+	public MutationEvents(MutationProfileCollection profiles) {
+		this.profiles = profiles;
+		chromosomes = new ArrayList<String>();
+		ensuredLengths = new int[8];
+		kinds = new int[256];
+		firsts = new int[256];
+		seconds = new int[256];
+		clear();
+	}
+
+	@Override
+	public void clear() {
+		chromosomes.clear();
+		lastChromosome = null;
+		lastChromosomeIndex = -1;
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	private int chromosomeIndex(String chromosome) {
+		// Consecutive events nearly always name the same chromosome, usually the same String.
+		if (chromosome == lastChromosome || chromosome.equals(lastChromosome)) {
+			return lastChromosomeIndex;
+		}
+		int index = chromosomes.indexOf(chromosome);
+		if (index < 0) {
+			index = chromosomes.size();
+			chromosomes.add(chromosome);
+			if (index == ensuredLengths.length) {
+				ensuredLengths = Arrays.copyOf(ensuredLengths, 2 * index);
+			}
+			ensuredLengths[index] = 0;
+		}
+		lastChromosome = chromosome;
+		lastChromosomeIndex = index;
+		return index;
+	}
+
+	private void record(int kind, String chromosome, Strand orientation, int first, int second) throws IOException {
+		int code = kind | chromosomeIndex(chromosome) << CHROMOSOME_SHIFT;
+		if (orientation.equals(Strand.NEGATIVE)) {
+			code |= NEGATIVE_STRAND;
+		} else if (!orientation.equals(Strand.POSITIVE)) {
+			throw new IOException("Orientation " + orientation + " not recognized. Only recognizes POSITIVE and NEGATIVE.");
+		}
+		append(code, first, second);
+	}
+
+	private void append(int code, int first, int second) {
+		if (size == kinds.length) {
+			kinds = Arrays.copyOf(kinds, 2 * size);
+			firsts = Arrays.copyOf(firsts, 2 * size);
+			seconds = Arrays.copyOf(seconds, 2 * size);
+		}
+		kinds[size] = code;
+		firsts[size] = first;
+		seconds[size] = second;
+		size++;
+	}
+
+	@Override
+	public void ensureLength(String chromosome, int length) {
+		int index = chromosomeIndex(chromosome);
+		if (length > ensuredLengths[index]) {
+			ensuredLengths[index] = length;
+			append(ENSURE_LENGTH | index << CHROMOSOME_SHIFT, length, 0);
+		}
+	}
+
+	/**
+	 * Gets the length a chromosome will have once the events recorded so far
+	 * are applied, or a greater one if the chromosome cannot grow.
+	 */
+	@Override
+	public int getLength(String chromosome) {
+		int ensuredLength = ensuredLengths[chromosomeIndex(chromosome)];
+		ChromosomeProfile<MutationProfile> profile = profiles.getProfiles().get(chromosome);
+		return profile == null ? ensuredLength : Math.max(ensuredLength, profile.getLength());
+	}
+
+	@Override
+	public void addInsertion(String chromosome, int position, Strand orientation) throws IOException {
+		record(INSERTION, chromosome, orientation, position, 0);
+	}
+
+	@Override
+	public void addDeletion(String chromosome, int position, Strand orientation) throws IOException {
+		record(DELETION, chromosome, orientation, position, 0);
+	}
+
+	@Override
+	public void addMatch(String chromosome, int position, Strand orientation) throws IOException {
+		record(MATCH, chromosome, orientation, position, 0);
+	}
+
+	@Override
+	public void addMatchRange(String chromosome, int start, int end, Strand orientation) throws IOException {
+		record(MATCH_RANGE, chromosome, orientation, start, end);
+	}
+
+	@Override
+	public void addMutation(String chromosome, Nucleotide n, int position, Strand orientation) throws IOException {
+		record(MUTATION, chromosome, orientation, position, n.ordinal());
+	}
+
+	@Override
+	public void applyTo(MutationProfileCollection target) throws IOException {
+		int[] lengths = new int[chromosomes.size()];
+		Arrays.fill(lengths, -1);
+		for (int i = 0; i < size; i++) {
+			int code = kinds[i];
+			int kind = code & KIND_MASK;
+			int index = code >>> CHROMOSOME_SHIFT;
+			String chromosome = chromosomes.get(index);
+			if (kind == ENSURE_LENGTH) {
+				target.ensureLength(chromosome, firsts[i]);
+				lengths[index] = target.getLength(chromosome);
+				continue;
+			}
+			if (lengths[index] < 0) {
+				lengths[index] = target.getLength(chromosome);
+			}
+			int length = lengths[index];
+			int position = firsts[i];
+			if (position >= length) {
+				continue;
+			}
+			Strand orientation = (code & NEGATIVE_STRAND) != 0 ? Strand.NEGATIVE : Strand.POSITIVE;
+			switch (kind) {
+			case MATCH_RANGE:
+				target.addMatchRange(chromosome, position, Math.min(seconds[i], length), orientation);
+				break;
+			case MATCH:
+				target.addMatch(chromosome, position, orientation);
+				break;
+			case INSERTION:
+				target.addInsertion(chromosome, position, orientation);
+				break;
+			case DELETION:
+				target.addDeletion(chromosome, position, orientation);
+				break;
+			case MUTATION:
+				target.addMutation(chromosome, NUCLEOTIDES[seconds[i]], position, orientation);
+				break;
+			default:
+				throw new IOException("Event of kind " + kind + " not recognized.");
+			}
+		}
+	}
+}
@@ -1,141 +1,164 @@
 package shape.profiles;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import shape.utils.Nucleotide;
 
 import guttmanlab.core.annotation.Annotation.Strand;
 
 public class MutationProfile extends StrandProfile {
 
-    private Map<Integer, MutableInt> matches;
-    private Map<Integer, MutableInt> deletions;
-    private Map<Integer, MutableInt> insertions;
-    private Map<Integer, MutableInt> mutationsToA;
-    private Map<Integer, MutableInt> mutationsToC;
-    private Map<Integer, MutableInt> mutationsToG;
-    private Map<Integer, MutableInt> mutationsToT;
-    
+	// Channel layout of the underlying storage.
+	static final int MATCHES = 0;
+	static final int INSERTIONS = 1;
+	static final int DELETIONS = 2;
+	static final int MUTATIONS_TO_A = 3;
+	static final int MUTATIONS_TO_C = 4;
+	static final int MUTATIONS_TO_G = 5;
+	static final int MUTATIONS_TO_T = 6;
+	static final int NUM_CHANNELS = 7;
+
+	private final CounterStorage counts;
+	private final StorageType storageType;
+
     public MutationProfile(int length, String chromosome, Strand orientation) {
+    	this(length, chromosome, orientation, StorageType.MAP);
+    }
+
+    public MutationProfile(int length, String chromosome, Strand orientation, StorageType storageType) {
     	super(length, chromosome, orientation);
-    	matches = new HashMap<Integer, MutableInt>();
-    	deletions = new HashMap<Integer, MutableInt>();
-    	insertions = new HashMap<Integer, MutableInt>();
-    	mutationsToA = new HashMap<Integer, MutableInt>();
-    	mutationsToC = new HashMap<Integer, MutableInt>();
-    	mutationsToG = new HashMap<Integer, MutableInt>();
-    	mutationsToT = new HashMap<Integer, MutableInt>();
-    }
-    
-    public final Map<Integer, MutableInt> getMatches() {
-		return matches;
-	}
+    	this.storageType = storageType;
+    	counts = storageType.newStorage(NUM_CHANNELS, length);
+    }
 
-	public final Map<Integer, MutableInt> getDeletions() {
-		return deletions;
-	}
+    MutationProfile(int length, String chromosome, Strand orientation, CounterStorage counts, StorageType storageType) {
+    	super(length, chromosome, orientation);
+    	this.storageType = storageType;
+    	this.counts = counts;
+    }
 
-	public final Map<Integer, MutableInt> getInsertions() {
-		return insertions;
-	}
+    /**
+     * Creates a longer copy of this profile holding the same counts. This
+     * profile may share memory with the copy and should not be used
+     * afterwards.
+     *
+     * @param newLength the new length, no less than the current length
+     * @return a profile of the new length
+     */
+    final MutationProfile grow(int newLength) {
+    	return new MutationProfile(newLength, chromosome, orientation, counts.grow(newLength), storageType);
+    }
+
+    /**
+     * Adds every count of another profile to this one. Counts beyond the end
+     * of this profile are dropped.
+     *
+     * @param other the profile whose counts are added
+     */
+    final void addCounts(MutationProfile other) {
+    	other.counts.addTo(counts);
+    }
+
+    /**
+     * Finds the first position of a range with any count.
+     *
+     * @param from first position of the range
+     * @param to   position after the last position of the range
+     * @return the first covered position, or {@code to} if there is none
+     */
+    final int nextCovered(int from, int to) {
+    	return counts.nextCovered(from, to);
+    }
+
+    /**
+     * Folds deferred range additions into the counts. Reading a count does
+     * this lazily, so a profile must be flushed before several threads read
+     * it at once.
+     */
+    final void flush() {
+    	counts.flush();
+    }
+
+    final int getCount(int channel, int position) {
+    	return counts.get(channel, position);
+    }
 
-	public final Map<Integer, MutableInt> getMutations(Nucleotide n) {
+    final void addCount(int channel, int position, int delta) {
+    	counts.add(channel, position, delta);
+    }
+
+    /**
+     * Gets the way in which this profile stores its counts.
+     *
+     * @return storage type of this profile
+     */
+    public final StorageType getStorageType() {
+    	return storageType;
+    }
+
+    /**
+     * Estimates the number of heap bytes used by the counts of this profile.
+     *
+     * @return estimated size of the counts in bytes
+     */
+    public final long getMemoryFootprint() {
+    	return counts.getMemoryFootprint();
+    }
+
+	private static int mutationChannel(Nucleotide n) {
 		switch (n) {
 		case A:
-			return mutationsToA;
+			return MUTATIONS_TO_A;
 		case C:
-			return mutationsToC;
+			return MUTATIONS_TO_C;
 		case G:
-			return mutationsToG;
+			return MUTATIONS_TO_G;
 		case T:
-			return mutationsToT;
+			return MUTATIONS_TO_T;
 		default:
-			return mutationsToT;
+			return MUTATIONS_TO_T;
 		}
 	}
 
-	private final void increment(Map<Integer, MutableInt> map, int pos) {
-		MutableInt count = map.get(pos);
-		if (count == null) {
-			map.put(pos, new MutableInt());
-		} else {
-			count.increment();
-		}
-	}
-	
 	public final void addInsertion(int position) {
-		increment(insertions, position);
+		counts.increment(INSERTIONS, position);
     }
-    
+
     public final void addDeletion(int position) {
-		increment(deletions, position);
-    }    
-    
+		counts.increment(DELETIONS, position);
+    }
+
     public final void addMatch(int position) {
-		increment(matches, position);
+		counts.increment(MATCHES, position);
 	}
-    
+
+    /**
+     * Adds a match at every position of a range. Dense and paged profiles
+     * defer the work to a difference array, so the cost does not depend on
+     * the length of the range.
+     *
+     * @param start first position of the range
+     * @param end   position after the last position of the range
+     */
+    public final void addMatchRange(int start, int end) {
+    	counts.addRange(MATCHES, start, end);
+    }
+
     public final void addMutation(Nucleotide n, int pos) {
-    	switch (n) {
-    	case A:
-    		increment(mutationsToA, pos);
-    		break;
-    	case C:
-    		increment(mutationsToC, pos);
-    		break;
-    	case G:
-    		increment(mutationsToG, pos);
-    		break;
-    	case T:
-    		increment(mutationsToT, pos);
-    		break;
-    	}
-    }
-    
-    private final int getValue(Map<Integer, MutableInt> map, int pos) {
-    	MutableInt rtrn = map.get(pos);
-    	if (rtrn == null) {
-    		return 0;
-    	} else {
-    		return rtrn.get();
-    	}
-    }
-    
+    	counts.increment(mutationChannel(n), pos);
+    }
+
     public final int getInsertion(int position) {
-    	return getValue(insertions, position);
+    	return counts.get(INSERTIONS, position);
     }
-    
+
     public final int getDeletion(int position) {
-    	return getValue(deletions, position);
+    	return counts.get(DELETIONS, position);
     }
-    
+
     public final int getMatch(int position) {
-    	return getValue(matches, position);
+    	return counts.get(MATCHES, position);
     }
-    
+
     public int getMutation(Nucleotide n, int pos) {
-    	switch (n) {
-    	case A:
-    		return getValue(mutationsToA, pos);
-    	case C:
-    		return getValue(mutationsToC, pos);
-    	case G:
-    		return getValue(mutationsToG, pos);
-    	case T:
-    		return getValue(mutationsToT, pos);
-    	default:
-    		return getValue(mutationsToT, pos);
-    	}
-    }
-    
-    private class MutableInt {
-    	int value = 1;
-    	public void increment() {
-    		++value;
-    	}
-    	public int get() {
-    		return value;
-    	}
-    }
-}
\ No newline at end of file
+    	return counts.get(mutationChannel(n), pos);
+    }
+}
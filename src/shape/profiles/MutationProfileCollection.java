@@ -4,71 +4,408 @@ import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.Annotation.Strand;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import net.sf.samtools.SAMFileHeader;
+
+import shape.utils.ArrowFileWriter;
+import shape.utils.BgzfOutputStream;
+import shape.utils.BigWigWriter;
+import shape.utils.ChromosomeOutputEvent;
 import shape.utils.Nucleotide;
+import shape.utils.ProfileAllocationEvent;
+import shape.utils.TabixIndex;
+import shape.utils.TargetRegion;
 
 /**
  * A collection of {@link MutationProfile} objects.
+ * <p>
+ * With {@link StorageType#ATOMIC} storage, several threads may count reads
+ * into the same collection at once through the add methods and
+ * {@link #ensureLength(String, int)}. Other storage types must be used by
+ * one thread at a time.
  * 
  * @author Mason M Lai
  */
 
-public class MutationProfileCollection extends ChromosomeProfileCollection<MutationProfile> {
+public class MutationProfileCollection extends ChromosomeProfileCollection<MutationProfile> implements MutationSink {
+	
+	/**
+	 * Precision of {@link #toFile(String, int, int)} that writes rates as
+	 * {@link Double#toString(double)} does.
+	 */
+	public static final int FULL_PRECISION = -1;
+	
+	// Suffixes of the files written by toFile, in the order of the outputs of ProfileTextFormatter.
+	private static final String[] OUTPUT_SUFFIXES = {".csv",
+		"_pos_deletion_rate.bedgraph", "_pos_mutation_rate.bedgraph", "_pos_substitution_rate.bedgraph",
+		"_neg_deletion_rate.bedgraph", "_neg_mutation_rate.bedgraph", "_neg_substitution_rate.bedgraph"};
+	
+	// Suffixes of the files written by toBigWig, deletion, mutation and substitution rates of each strand.
+	private static final String[] BIGWIG_SUFFIXES = {
+		"_pos_deletion_rate.bw", "_pos_mutation_rate.bw", "_pos_substitution_rate.bw",
+		"_neg_deletion_rate.bw", "_neg_mutation_rate.bw", "_neg_substitution_rate.bw"};
+	
+	// Columns of the file written by toArrow: dictionary-encoded keys, then the counts of each channel in channel order.
+	private static final String[] ARROW_KEY_COLUMNS = {"chromosome", "strand"};
+	private static final String[] ARROW_STRANDS = {"positive", "negative"};
+	private static final String[] ARROW_VALUE_COLUMNS = {"position", "matches", "insertions", "deletions",
+		"mutations_to_A", "mutations_to_C", "mutations_to_G", "mutations_to_T"};
+	
+	// Most rows in one record batch of toArrow, which bounds the memory used to write it.
+	private static final int ARROW_BATCH_ROWS = 1 << 18;
+	
+	// Number of positions formatted at once by each thread of toFile.
+	private static final int OUTPUT_RANGE_LENGTH = 1 << 16;
 	
 	private int coverageThreshold;
+	private StorageType storageType;
+	private MappedProfileFile mappedFile;
 	
-	public MutationProfileCollection(int coverageThreshold) {
+	public MutationProfileCollection(int coverageThreshold, StorageType storageType) {
 		super();
-		if (coverageThreshold >= 0) {
-			this.coverageThreshold = coverageThreshold;
-		} else {
-			throw new IllegalArgumentException("Coverage threshold must be non-negative!");
-		}
+		setCoverageThreshold(coverageThreshold);
+		this.storageType = storageType;
+	}
+	
+	public MutationProfileCollection(int coverageThreshold) {
+		this(coverageThreshold, StorageType.MAP);
 	}
 	
 	public MutationProfileCollection() {
 		this(1);
 	}
 	
+	public MutationProfileCollection(Map<String, Integer> map, int coverageThreshold, StorageType storageType) {
+		this(coverageThreshold, storageType);
+		addChromosomes(map);
+	}
+	
 	public MutationProfileCollection(Map<String, Integer> map, int coverageThreshold) {
-		super(map);
-		if (coverageThreshold >= 0) {
-			this.coverageThreshold = coverageThreshold;
-		} else {
-			throw new IllegalArgumentException("Coverage threshold must be non-negative!");
-		}
+		this(map, coverageThreshold, StorageType.MAP);
 	}
 	
 	public MutationProfileCollection(Map<String, Integer> map) {
 		this(map, 1);
 	}
 
+	public MutationProfileCollection(AnnotationCollection<? extends Annotation> bam, int coverageThreshold, StorageType storageType) {
+		this(coverageThreshold, storageType);
+		addChromosomes(bam);
+	}
+	
 	public MutationProfileCollection(AnnotationCollection<? extends Annotation> bam, int coverageThreshold) {
-		super(bam);
+		this(bam, coverageThreshold, StorageType.MAP);
+	}
+	
+	public MutationProfileCollection(AnnotationCollection<? extends Annotation> bam) {
+		this(bam, 1);
+	}
+	
+	/**
+	 * Creates a collection with one chromosome for each sequence in the header
+	 * of a .bam file. Chromosomes missing from the header, or reads beyond the
+	 * length given in it, are handled by {@link #ensureLength(String, int)}.
+	 * With DENSE or ATOMIC storage, which take memory for every position, a
+	 * chromosome is only allocated once a read reaches it.
+	 * 
+	 * @param header            header of a .bam file
+	 * @param coverageThreshold minimum coverage of reported positions
+	 * @param storageType       how the profiles store their counts
+	 */
+	public MutationProfileCollection(SAMFileHeader header, int coverageThreshold, StorageType storageType) {
+		this(coverageThreshold, storageType);
+		addChromosomes(header);
+	}
+	
+	public MutationProfileCollection(SAMFileHeader header, int coverageThreshold) {
+		this(header, coverageThreshold, StorageType.MAP);
+	}
+	
+	/**
+	 * Creates a collection with a profile for each target region, named after
+	 * the region and sized to it. Only the regions are allocated, however
+	 * large their reference sequences.
+	 * 
+	 * @param regions           the regions to be counted
+	 * @param coverageThreshold minimum coverage of reported positions
+	 * @param storageType       how the profiles store their counts
+	 */
+	public MutationProfileCollection(List<TargetRegion> regions, int coverageThreshold, StorageType storageType) {
+		this(coverageThreshold, storageType);
+		for (Map.Entry<String, Integer> elem : getRegionLengths(regions).entrySet()) {
+			addChromosome(elem.getKey(), elem.getValue());
+		}
+	}
+	
+	/**
+	 * Creates a new memory-mapped profile file with a profile for each target
+	 * region, and a collection whose counts live in it.
+	 * 
+	 * @param regions           the regions to be counted
+	 * @param coverageThreshold minimum coverage of reported positions
+	 * @param file              the profile file to create
+	 * @throws IOException if the file exists or cannot be created
+	 */
+	public MutationProfileCollection(List<TargetRegion> regions, int coverageThreshold, File file) throws IOException {
+		this(MappedProfileFile.create(file, getRegionLengths(regions)), coverageThreshold);
+	}
+	
+	private static Map<String, Integer> getRegionLengths(List<TargetRegion> regions) {
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		for (TargetRegion region : regions) {
+			if (lengths.put(region.getName(), region.getLength()) != null) {
+				throw new IllegalArgumentException("More than one region is named " + region.getName() + ".");
+			}
+		}
+		return lengths;
+	}
+	
+	/**
+	 * Creates a collection whose counts live in a memory-mapped profile file.
+	 * The file may be freshly created, or the finished output of an earlier
+	 * run, in which case its counts are available without recounting.
+	 * 
+	 * @param file              an open profile file
+	 * @param coverageThreshold minimum coverage of reported positions
+	 * @throws IOException if the profiles cannot be mapped
+	 */
+	public MutationProfileCollection(MappedProfileFile file, int coverageThreshold) throws IOException {
+		this(coverageThreshold, StorageType.MAPPED);
+		mappedFile = file;
+		for (String chromosome : file.getLengths().keySet()) {
+			MutationProfile posProfile = file.newProfile(chromosome, Strand.POSITIVE);
+			MutationProfile negProfile = file.newProfile(chromosome, Strand.NEGATIVE);
+			profiles.put(chromosome, new ChromosomeProfile<MutationProfile>(posProfile, negProfile));
+		}
+	}
+	
+	/**
+	 * Creates a new memory-mapped profile file sized from the header of a
+	 * .bam file, and a collection whose counts live in it.
+	 * 
+	 * @param header            header of a .bam file
+	 * @param coverageThreshold minimum coverage of reported positions
+	 * @param file              the profile file to create
+	 * @throws IOException if the file exists or cannot be created
+	 */
+	public MutationProfileCollection(SAMFileHeader header, int coverageThreshold, File file) throws IOException {
+		this(MappedProfileFile.create(file, getSequenceLengths(header)), coverageThreshold);
+	}
+	
+	/**
+	 * Creates a new memory-mapped profile file sized from the reads of a .bam
+	 * file, and a collection whose counts live in it.
+	 * 
+	 * @param bam               Annotation collection, presumably from a .bam file
+	 * @param coverageThreshold minimum coverage of reported positions
+	 * @param file              the profile file to create
+	 * @throws IOException if the file exists or cannot be created
+	 */
+	public MutationProfileCollection(AnnotationCollection<? extends Annotation> bam, int coverageThreshold, File file) throws IOException {
+		this(MappedProfileFile.create(file, toLengths(findLastPositions(bam))), coverageThreshold);
+	}
+	
+	private static Map<String, Integer> toLengths(Map<String, Integer> lastPositions) {
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, Integer> elem : lastPositions.entrySet()) {
+			lengths.put(elem.getKey(), elem.getValue() + 1);
+		}
+		return lengths;
+	}
+	
+	private void setCoverageThreshold(int coverageThreshold) {
 		if (coverageThreshold >= 0) {
 			this.coverageThreshold = coverageThreshold;
 		} else {
 			throw new IllegalArgumentException("Coverage threshold must be non-negative!");
 		}
 	}
-	
-	public MutationProfileCollection(AnnotationCollection<? extends Annotation> bam) {
-		this(bam, 1);
-	}
 
+	/**
+	 * Gets the way in which newly added chromosomes store their counts.
+	 * 
+	 * @return storage type of newly added chromosomes
+	 */
+	public final StorageType getStorageType() {
+		return storageType;
+	}
+	
 	public final void addChromosome(String chromosome, int size) {
+		addChromosome(chromosome, size, storageType);
+	}
+	
+	@Override
+	protected final boolean allocatesOnFirstRead() {
+		return storageType.equals(StorageType.DENSE) || storageType.equals(StorageType.ATOMIC);
+	}
+	
+	@Override
+	protected final ChromosomeProfile<MutationProfile> newChromosome(String chromosome, int size) {
+		checkAddable(chromosome, storageType);
+		return createChromosome(chromosome, size, storageType);
+	}
+	
+	/**
+	 * Lengthens a chromosome, keeping its counts. Memory-mapped chromosomes
+	 * are sized when the file is created and do not grow; reads beyond their
+	 * end are not counted.
+	 */
+	@Override
+	protected final ChromosomeProfile<MutationProfile> growChromosome(ChromosomeProfile<MutationProfile> profile, int size) {
+		if (profile.getPositiveStrand().getStorageType().equals(StorageType.MAPPED)) {
+			return profile;
+		}
+		ProfileAllocationEvent event = new ProfileAllocationEvent();
+		event.begin();
+		MutationProfile posProfile = profile.getPositiveStrand().grow(size);
+		MutationProfile negProfile = profile.getNegativeStrand().grow(size);
+		traceAllocation(event, posProfile, negProfile, profile.getLength());
+		return new ChromosomeProfile<MutationProfile>(posProfile, negProfile);
+	}
+	
+	private static ChromosomeProfile<MutationProfile> createChromosome(String chromosome, int size, StorageType storageType) {
+		ProfileAllocationEvent event = new ProfileAllocationEvent();
+		event.begin();
+		MutationProfile posProfile = new MutationProfile(size, chromosome, Strand.POSITIVE, storageType);
+		MutationProfile negProfile = new MutationProfile(size, chromosome, Strand.NEGATIVE, storageType);
+		traceAllocation(event, posProfile, negProfile, 0);
+		return new ChromosomeProfile<MutationProfile>(posProfile, negProfile);
+	}
+	
+	private static void traceAllocation(ProfileAllocationEvent event, MutationProfile posProfile, MutationProfile negProfile, int previousLength) {
+		if (event.shouldCommit()) {
+			event.chromosome = posProfile.getChromosomeName();
+			event.storageType = posProfile.getStorageType().name();
+			event.previousLength = previousLength;
+			event.length = posProfile.getLength();
+			event.memoryFootprint = posProfile.getMemoryFootprint() + negProfile.getMemoryFootprint();
+			event.commit();
+		}
+	}
+	
+	private void checkAddable(String chromosome, StorageType storageType) {
+		if (storageType.equals(StorageType.MAPPED)) {
+			throw new IllegalArgumentException("Chromosome " + chromosome + " cannot be added to a memory-mapped collection. " +
+					"Mapped profile files are sized when they are created.");
+		}
+	}
+	
+	/**
+	 * Adds a chromosome whose profiles store their counts in the given way.
+	 * Does nothing if the chromosome is already present.
+	 * 
+	 * @param chromosome  name of the chromosome
+	 * @param size        length of the chromosome in nt
+	 * @param storageType how the profiles of this chromosome store their counts
+	 */
+	public final void addChromosome(String chromosome, int size, StorageType storageType) {
 		if (!profiles.containsKey(chromosome)) {
-			MutationProfile posProfile = new MutationProfile(size, chromosome, Strand.POSITIVE);
-			MutationProfile negProfile = new MutationProfile(size, chromosome, Strand.NEGATIVE);
-			profiles.put(chromosome, new ChromosomeProfile<MutationProfile>(posProfile, negProfile));
+			checkAddable(chromosome, storageType);
+			profiles.put(chromosome, createChromosome(chromosome, size, storageType));
 		}
 	}
 	
+	/**
+	 * Adds a chromosome, choosing its storage from the fraction of positions
+	 * expected to be covered. See {@link StorageType#forDensity(double)}.
+	 * 
+	 * @param chromosome      name of the chromosome
+	 * @param size            length of the chromosome in nt
+	 * @param expectedDensity expected fraction of covered positions, from 0 to 1
+	 */
+	public final void addChromosome(String chromosome, int size, double expectedDensity) {
+		addChromosome(chromosome, size, StorageType.forDensity(expectedDensity));
+	}
+	
+	/**
+	 * Gets the memory-mapped file holding the counts of this collection.
+	 * 
+	 * @return the profile file, or null if the counts are on the heap
+	 */
+	public final MappedProfileFile getMappedFile() {
+		return mappedFile;
+	}
+	
+	/**
+	 * Adds every count of another collection to this one, chromosome by
+	 * chromosome. Chromosomes missing from this collection are added, and
+	 * shorter ones grow as needed, except memory-mapped ones, which keep
+	 * their length as when counting reads directly. Since counts are summed, the result does
+	 * not depend on the order in which collections are merged.
+	 * 
+	 * @param other the collection whose counts are added
+	 */
+	public final void merge(MutationProfileCollection other) {
+		for (ChromosomeProfile<MutationProfile> chromosome : other.profiles.values()) {
+			String name = chromosome.getName();
+			ensureLength(name, chromosome.getLength());
+			ChromosomeProfile<MutationProfile> target = profiles.get(name);
+			target.getPositiveStrand().addCounts(chromosome.getPositiveStrand());
+			target.getNegativeStrand().addCounts(chromosome.getNegativeStrand());
+		}
+	}
+	
+	/**
+	 * Gets the minimum coverage of positions reported by {@link #toFile(String)}.
+	 * 
+	 * @return the coverage threshold
+	 */
+	public final int getCoverageThreshold() {
+		return coverageThreshold;
+	}
+	
+	/**
+	 * Estimates the number of heap bytes used by the counts of all profiles
+	 * in the collection.
+	 * 
+	 * @return estimated size of all counts in bytes
+	 */
+	public final long getMemoryFootprint() {
+		long total = 0;
+		for (ChromosomeProfile<MutationProfile> chromosome : profiles.values()) {
+			total += chromosome.getPositiveStrand().getMemoryFootprint();
+			total += chromosome.getNegativeStrand().getMemoryFootprint();
+		}
+		return total;
+	}
+	
+	/**
+	 * Builds a table of the storage type and estimated memory footprint of
+	 * each chromosome, followed by the total.
+	 * 
+	 * @return a tab-separated report, one line per chromosome
+	 */
+	public final String getMemoryReport() {
+		StringBuilder report = new StringBuilder("chromosome\tstorage\tlength\tbytes\n");
+		for (ChromosomeProfile<MutationProfile> chromosome : profiles.values()) {
+			MutationProfile pos = chromosome.getPositiveStrand();
+			MutationProfile neg = chromosome.getNegativeStrand();
+			report.append(chromosome.getName()).append('\t')
+				  .append(pos.getStorageType()).append('\t')
+				  .append(chromosome.getLength()).append('\t')
+				  .append(pos.getMemoryFootprint() + neg.getMemoryFootprint()).append('\n');
+		}
+		report.append("total\t\t\t").append(getMemoryFootprint()).append('\n');
+		return report.toString();
+	}
+	
 	/**
 	 * Adds an insertion to the specified profile.
 	 * 
@@ -123,6 +460,28 @@ public class MutationProfileCollection extends ChromosomeProfileCollection<Mutat
 		}
 	}
 
+	/**
+	 * Adds a match (i.e., non-mutation) at every position of a range of the
+	 * specified profile. Equivalent to calling
+	 * {@link #addMatch(String, int, Strand)} for each position, but costs
+	 * O(1) for dense and paged profiles.
+	 * 
+	 * @param chromosome   name of the chromosome
+	 * @param start        first position of the range
+	 * @param end          position after the last position of the range
+	 * @param orientation  strandedness
+	 * @throws IOException if orientation is not Strand.POSITIVE or Strand.NEGATIVE.
+	 */
+	public final void addMatchRange(String chromosome, int start, int end, Strand orientation) throws IOException {
+		if (orientation.equals(Strand.POSITIVE)) {
+			profiles.get(chromosome).getPositiveStrand().addMatchRange(start, end);
+		} else if (orientation.equals(Strand.NEGATIVE)) {
+			profiles.get(chromosome).getNegativeStrand().addMatchRange(start, end);
+		} else {
+			throw new IOException("Orientation " + orientation + " not recognized. Only recognizes POSITIVE and NEGATIVE.");
+		}
+	}
+
 	/**
 	 * Adds a mismatch to the specified profile.
 	 * 
@@ -152,238 +511,371 @@ public class MutationProfileCollection extends ChromosomeProfileCollection<Mutat
 	 */
 	@Override
 	public final void toFile(String fileName) throws IOException {
+		toFile(fileName, FULL_PRECISION, Runtime.getRuntime().availableProcessors());
+	}
 
-		File csvFile = new File(fileName + ".csv");
-		if (csvFile.exists()) {
-			System.out.println("Output " + csvFile.getName() + " already exists!");
-			System.exit(1);
-		}
-		
-		File deletionPosFile = new File(fileName + "_pos_deletion_rate.bedgraph");
-		if (deletionPosFile.exists()) {
-			System.out.println("Output " + deletionPosFile.getName() + " already exists!");
-			System.exit(1);
-		}
-		
-		File mutationPosFile = new File(fileName + "_pos_mutation_rate.bedgraph");
-		if (mutationPosFile.exists()) {
-			System.out.println("Output " + mutationPosFile.getName() + " already exists!");
-			System.exit(1);
-		}
-		
-		File substitutionPosFile = new File(fileName + "_pos_substitution_rate.bedgraph");
-		if (substitutionPosFile.exists()) {
-			System.out.println("Output " + substitutionPosFile.getName() + " already exists!");
-			System.exit(1);
+	/**
+	 * Writes the same files as {@link #toFile(String)}, with a choice of the
+	 * precision of the rates and of the number of threads formatting them.
+	 * Chromosomes are cut into ranges of positions which are formatted in
+	 * parallel and written in order, so the files do not depend on the
+	 * number of threads.
+	 * 
+	 * @param fileName   basename of output file
+	 * @param precision  number of decimal places of the rates, between 0 and
+	 *                   {@value ProfileTextFormatter#MAX_PRECISION}, or
+	 *                   {@link #FULL_PRECISION} to write them as
+	 *                   {@link Double#toString(double)} does
+	 * @param numThreads number of threads formatting the output
+	 * @throws IOException if the files cannot be written
+	 */
+	public final void toFile(String fileName, int precision, int numThreads) throws IOException {
+		toFile(fileName, precision, numThreads, false);
+	}
+
+	/**
+	 * Writes the same data as {@link #toFile(String, int, int)}, optionally
+	 * BGZF-compressed with a tabix index next to each file. Compressed files
+	 * are tab-separated, as tabix requires, so the .csv file becomes a .tsv
+	 * file. Its lines are indexed by their 1-based position column, and the
+	 * .bedgraph lines by their 0-based start and end, so that, e.g.,
+	 * "tabix x.tsv.gz chr1:1000-2000" fetches a region. Blocks are compressed
+	 * on the threads that format the output.
+	 * 
+	 * @param fileName   basename of output file
+	 * @param precision  number of decimal places of the rates, or
+	 *                   {@link #FULL_PRECISION}
+	 * @param numThreads number of threads formatting and compressing the output
+	 * @param compressed whether to write BGZF-compressed, indexed files
+	 * @throws IOException if the files cannot be written
+	 */
+	public final void toFile(String fileName, int precision, int numThreads, boolean compressed) throws IOException {
+		toFile(fileName, precision, numThreads, compressed, false);
+	}
+
+	/**
+	 * Writes the same data as {@link #toFile(String, int, int, boolean)},
+	 * optionally with each run of adjacent positions that have the same rate
+	 * written as one .bedgraph interval instead of one line per position,
+	 * which shrinks the tracks of deep, uniform data. The .csv data is
+	 * unchanged. Runs are cut every {@value #OUTPUT_RANGE_LENGTH} positions,
+	 * where ranges formatted by different threads meet.
+	 * 
+	 * @param fileName     basename of output file
+	 * @param precision    number of decimal places of the rates, or
+	 *                     {@link #FULL_PRECISION}
+	 * @param numThreads   number of threads formatting and compressing the output
+	 * @param compressed   whether to write BGZF-compressed, indexed files
+	 * @param collapseRuns whether to write runs of equal rates as one
+	 *                     .bedgraph interval
+	 * @throws IOException if the files cannot be written
+	 */
+	public final void toFile(String fileName, int precision, int numThreads, boolean compressed, boolean collapseRuns) throws IOException {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive.");
 		}
-		
-		File deletionNegFile = new File(fileName + "_neg_deletion_rate.bedgraph");
-		if (deletionNegFile.exists()) {
-			System.out.println("Output " + deletionNegFile.getName() + " already exists!");
-			System.exit(1);
+		if (precision != FULL_PRECISION && (precision < 0 || precision > ProfileTextFormatter.MAX_PRECISION)) {
+			throw new IllegalArgumentException("Precision must be between 0 and " + ProfileTextFormatter.MAX_PRECISION + " decimal places.");
 		}
-		
-		File mutationNegFile = new File(fileName + "_neg_mutation_rate.bedgraph");
-		if (mutationNegFile.exists()) {
-			System.out.println("Output " + mutationNegFile.getName() + " already exists!");
-			System.exit(1);
+
+		File[] files = new File[ProfileTextFormatter.NUM_OUTPUTS];
+		File[] indexFiles = new File[ProfileTextFormatter.NUM_OUTPUTS];
+		for (int i = 0; i < files.length; i++) {
+			String suffix = OUTPUT_SUFFIXES[i];
+			if (compressed) {
+				suffix = (i == ProfileTextFormatter.CSV ? ".tsv" : suffix) + ".gz";
+			}
+			files[i] = new File(fileName + suffix);
+			if (files[i].exists()) {
+				System.out.println("Output " + files[i].getName() + " already exists!");
+				System.exit(1);
+			}
+			if (compressed) {
+				indexFiles[i] = new File(fileName + suffix + ".tbi");
+				if (indexFiles[i].exists()) {
+					System.out.println("Output " + indexFiles[i].getName() + " already exists!");
+					System.exit(1);
+				}
+			}
 		}
 		
-		File substitutionNegFile = new File(fileName + "_neg_substitution_rate.bedgraph");
-		if (substitutionNegFile.exists()) {
-			System.out.println("Output " + substitutionNegFile.getName() + " already exists!");
-			System.exit(1);			
+		FileOutputStream[] outputs = new FileOutputStream[ProfileTextFormatter.NUM_OUTPUTS];
+		FileChannel[] channels = null;
+		BgzfOutputStream[] compressedOutputs = null;
+		TabixIndex[] indexes = null;
+		if (compressed) {
+			compressedOutputs = new BgzfOutputStream[ProfileTextFormatter.NUM_OUTPUTS];
+			indexes = new TabixIndex[ProfileTextFormatter.NUM_OUTPUTS];
+		} else {
+			channels = new FileChannel[ProfileTextFormatter.NUM_OUTPUTS];
 		}
-		
-		BufferedWriter csvOut = null;
-		BufferedWriter dpOut = null;
-		BufferedWriter mpOut = null;
-		BufferedWriter spOut = null;
-		BufferedWriter dnOut = null;
-		BufferedWriter mnOut = null;
-		BufferedWriter snOut = null;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 		
 		try {
-			csvOut = new BufferedWriter(new FileWriter(csvFile));
-			dpOut = new BufferedWriter(new FileWriter(deletionPosFile));
-			mpOut = new BufferedWriter(new FileWriter(mutationPosFile));
-			spOut = new BufferedWriter(new FileWriter(substitutionPosFile));
-			dnOut = new BufferedWriter(new FileWriter(deletionNegFile));
-			mnOut = new BufferedWriter(new FileWriter(mutationNegFile));
-			snOut = new BufferedWriter(new FileWriter(substitutionNegFile));
-
-			csvOut.write("chromosome,orientation,position,=,I,D,A,C,G,T,total,mutationRate,deletionRate,substitutionRate");
-			csvOut.newLine();
-			dpOut.write("track type=bedGraph");
-			dpOut.newLine();
-			mpOut.write("track type=bedGraph");
-			mpOut.newLine();
-			spOut.write("track type=bedGraph");
-			spOut.newLine();
-			dnOut.write("track type=bedGraph");
-			dnOut.newLine();
-			mnOut.write("track type=bedGraph");
-			mnOut.newLine();
-			snOut.write("track type=bedGraph");
-			snOut.newLine();
-			
-			for (Map.Entry<String, ChromosomeProfile<MutationProfile>> chromosome : profiles.entrySet()) {
-				String chromosomeName = chromosome.getKey();
-				MutationProfile positiveMutations = chromosome.getValue().getPositiveStrand();
-				MutationProfile negativeMutations = chromosome.getValue().getNegativeStrand();
-				int length = positiveMutations.getLength();
-				for (int position = 0; position < length; position++) {
-					
-					int matches = positiveMutations.getMatch(position);
-					int insertions = positiveMutations.getInsertion(position);
-					int deletions = positiveMutations.getDeletion(position);
-					int mutationsToA = positiveMutations.getMutation(Nucleotide.A, position);
-					int mutationsToC = positiveMutations.getMutation(Nucleotide.C, position);
-					int mutationsToG = positiveMutations.getMutation(Nucleotide.G, position);
-					int mutationsToT = positiveMutations.getMutation(Nucleotide.T, position);
-					int total = deletions + matches + mutationsToA + mutationsToC + mutationsToG + mutationsToT;
-
-					double deletionRate = ((double)deletions / total);
-					deletionRate = Double.isNaN(deletionRate) ? 0 : deletionRate;
-
-					double substitutionRate = ((double)(mutationsToA + mutationsToC + mutationsToG + mutationsToT) / total);
-					substitutionRate = Double.isNaN(substitutionRate) ? 0 : substitutionRate;
-
-					double mutationRate = ((double)(deletions + mutationsToA + mutationsToC + mutationsToG + mutationsToT)) / total;
-					mutationRate = Double.isNaN(mutationRate) ? 0 : mutationRate;
-
-					if (total != 0) {
-						csvOut.write(
-								chromosomeName   + "," + "positive," +
-								(position + 1)   + "," +
-								matches          + "," +
-								insertions       + "," +
-								deletions        + "," +
-								mutationsToA     + "," +
-								mutationsToC     + "," +
-								mutationsToG     + "," +
-								mutationsToT     + "," +
-								total            + "," +
-								mutationRate     + "," +
-								deletionRate     + "," +
-								substitutionRate
-						);
-						csvOut.newLine();
-					}
-					
-					if (mutationRate != 0) {
-						mpOut.write(
-								chromosomeName + " " +
-								position       + " " +
-								(position + 1) + " " +
-								mutationRate
-						);
-						mpOut.newLine();
-					}
-					
-					if (deletionRate != 0) {
-						dpOut.write(
-								chromosomeName + " " +
-								position       + " " +
-								(position + 1) + " " +
-								deletionRate
-						);
-						dpOut.newLine();
-					}
-					
-					if (substitutionRate != 0) {
-						spOut.write(
-								chromosomeName + " " +
-								position       + " " +
-								(position + 1) + " " +
-								substitutionRate
-						);
-						spOut.newLine();
+			String newLine = System.getProperty("line.separator");
+			for (int i = 0; i < files.length; i++) {
+				outputs[i] = new FileOutputStream(files[i]);
+				String header = i == ProfileTextFormatter.CSV
+						? "chromosome,orientation,position,=,I,D,A,C,G,T,total,mutationRate,deletionRate,substitutionRate"
+						: "track type=bedGraph";
+				if (compressed) {
+					compressedOutputs[i] = new BgzfOutputStream(new BufferedOutputStream(outputs[i], 1 << 16), executor, 2 * numThreads);
+					if (i == ProfileTextFormatter.CSV) {
+						header = header.replace(',', '\t');
+						indexes[i] = new TabixIndex(TabixIndex.FORMAT_GENERIC, 1, 3, 0, '#', 1);
+					} else {
+						indexes[i] = new TabixIndex(TabixIndex.FORMAT_GENERIC | TabixIndex.FLAG_UCSC, 1, 2, 3, '#', 1);
 					}
-										
-					matches = negativeMutations.getMatch(position);
-					insertions = negativeMutations.getInsertion(position);
-					deletions = negativeMutations.getDeletion(position);
-					mutationsToA = negativeMutations.getMutation(Nucleotide.A, position);
-					mutationsToC = negativeMutations.getMutation(Nucleotide.C, position);
-					mutationsToG = negativeMutations.getMutation(Nucleotide.G, position);
-					mutationsToT = negativeMutations.getMutation(Nucleotide.T, position);
-					total = deletions + matches + mutationsToA + mutationsToC + mutationsToG + mutationsToT;
-					deletionRate = ((double)deletions / total);
-					substitutionRate = ((double)(mutationsToA + mutationsToC + mutationsToG + mutationsToT) / total);
-					mutationRate = ((double)(deletions + mutationsToA + mutationsToC + mutationsToG + mutationsToT)) / total;
-					mutationRate = Double.isNaN(mutationRate) ? 0 : mutationRate;
-					substitutionRate = Double.isNaN(substitutionRate) ? 0 : substitutionRate;
-					deletionRate = Double.isNaN(deletionRate) ? 0 : deletionRate;
-					
-					if (total >= coverageThreshold) {
-						csvOut.write(
-								chromosomeName   + "," + "negative," +
-								(position + 1)   + "," +
-								matches          + "," +
-								insertions       + "," +
-								deletions        + "," +
-								mutationsToA     + "," +
-								mutationsToC     + "," +
-								mutationsToG     + "," +
-								mutationsToT     + "," +
-								total            + "," +
-								mutationRate     + "," +
-								deletionRate     + "," +
-								substitutionRate
-						);
-						csvOut.newLine();
+					compressedOutputs[i].write((header + newLine).getBytes());
+				} else {
+					channels[i] = outputs[i].getChannel();
+					ByteBuffer buffer = ByteBuffer.wrap((header + newLine).getBytes());
+					while (buffer.hasRemaining()) {
+						channels[i].write(buffer);
 					}
-					
-					if (mutationRate != 0 && total >= coverageThreshold) {
-						mnOut.write(
-								chromosomeName + " " +
-								position       + " " +
-								(position + 1) + " " +
-								mutationRate
-						);
-						mnOut.newLine();
-					}
-					
-					if (deletionRate != 0 && total >= coverageThreshold) {
-						dnOut.write(
-								chromosomeName + " " +
-								position       + " " +
-								(position + 1) + " " +
-								deletionRate
-						);
-						dnOut.newLine();
-					}
-					
-					if (substitutionRate != 0 && total >= coverageThreshold) {
-						snOut.write(
-								chromosomeName + " " +
-								position       + " " +
-								(position + 1) + " " +
-								substitutionRate
-						);
-						snOut.newLine();
+				}
+			}
+			
+			// Twice as many formatters as threads keeps every thread busy while finished ranges are written.
+			Deque<ProfileTextFormatter> idle = new ArrayDeque<ProfileTextFormatter>();
+			for (int i = 0; i < 2 * numThreads; i++) {
+				idle.add(new ProfileTextFormatter(precision, coverageThreshold, compressed, collapseRuns));
+			}
+			Deque<Future<ProfileTextFormatter>> pending = new ArrayDeque<Future<ProfileTextFormatter>>();
+			// Event of the chromosome whose ranges are being written, or null between chromosomes.
+			ChromosomeOutputEvent outputEvent = null;
+			for (Map.Entry<String, ChromosomeProfile<MutationProfile>> chromosome : profiles.entrySet()) {
+				final String chromosomeName = chromosome.getKey();
+				final MutationProfile positiveMutations = chromosome.getValue().getPositiveStrand();
+				final MutationProfile negativeMutations = chromosome.getValue().getNegativeStrand();
+				final int length = positiveMutations.getLength();
+				positiveMutations.flush();
+				negativeMutations.flush();
+				int start = 0;
+				do {
+					final int rangeStart = start;
+					final int rangeEnd = (int)Math.min(length, (long)start + OUTPUT_RANGE_LENGTH);
+					if (idle.isEmpty()) {
+						outputEvent = writeRange(pending.removeFirst(), channels, compressedOutputs, indexes, idle, outputEvent);
 					}
+					final ProfileTextFormatter formatter = idle.removeFirst();
+					pending.addLast(executor.submit(new Callable<ProfileTextFormatter>() {
+						@Override
+						public ProfileTextFormatter call() {
+							formatter.format(chromosomeName, positiveMutations, negativeMutations, rangeStart, rangeEnd, rangeEnd == length);
+							return formatter;
+						}
+					}));
+					start = rangeEnd;
+				} while (start < length);
+			}
+			while (!pending.isEmpty()) {
+				outputEvent = writeRange(pending.removeFirst(), channels, compressedOutputs, indexes, idle, outputEvent);
+			}
+			if (compressed) {
+				for (int i = 0; i < files.length; i++) {
+					compressedOutputs[i].close();
+					indexes[i].write(indexFiles[i], compressedOutputs[i]);
 				}
-				System.out.println("Data for chromosome " + chromosomeName + " written.");
 			}
 
-			System.out.println(".csv data written to " + csvFile.getAbsolutePath());
-			System.out.println("Deletion rates written to " + deletionPosFile.getAbsolutePath() + " and " + deletionNegFile.getAbsolutePath());
-			System.out.println("Mutation rates written to " + mutationPosFile.getAbsolutePath() + " and " + mutationNegFile.getAbsolutePath());
-			System.out.println("Substitution rates written to " + substitutionPosFile.getAbsolutePath() + " and " + substitutionNegFile.getAbsolutePath());
+			System.out.println((compressed ? ".tsv.gz" : ".csv") + " data written to " + files[ProfileTextFormatter.CSV].getAbsolutePath());
+			System.out.println("Deletion rates written to " + files[ProfileTextFormatter.POS_DELETION].getAbsolutePath() + " and " + files[ProfileTextFormatter.NEG_DELETION].getAbsolutePath());
+			System.out.println("Mutation rates written to " + files[ProfileTextFormatter.POS_MUTATION].getAbsolutePath() + " and " + files[ProfileTextFormatter.NEG_MUTATION].getAbsolutePath());
+			System.out.println("Substitution rates written to " + files[ProfileTextFormatter.POS_SUBSTITUTION].getAbsolutePath() + " and " + files[ProfileTextFormatter.NEG_SUBSTITUTION].getAbsolutePath());
+			if (compressed) {
+				System.out.println("Each file is indexed in the .tbi file of the same name.");
+			}
 			
 		} finally {
-			if (csvOut != null) {csvOut.close();}
-			
-			if (dpOut != null) {dpOut.close();}
-			if (dnOut != null) {dnOut.close();}
-
-			if (mpOut != null) {mpOut.close();}
-			if (mnOut != null) {mnOut.close();}
-			
-			if (spOut != null) {spOut.close();}
-			if (snOut != null) {snOut.close();}
+			executor.shutdownNow();
+			for (FileOutputStream output : outputs) {
+				if (output != null) {output.close();}
+			}
 		}	
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Waits for a range to be formatted, writes it to every output, and
+	 * makes its formatter available again. Ranges are written in order, so
+	 * the flight recorder event of a chromosome is started at its first range
+	 * and committed at its last.
+	 * 
+	 * @return the event of the chromosome, or null once its last range is written
+	 */
+	private static ChromosomeOutputEvent writeRange(Future<ProfileTextFormatter> range, FileChannel[] channels,
+			BgzfOutputStream[] compressedOutputs, TabixIndex[] indexes, Deque<ProfileTextFormatter> idle,
+			ChromosomeOutputEvent event) throws IOException {
+		if (event == null) {
+			event = new ChromosomeOutputEvent();
+			event.begin();
+		}
+		ProfileTextFormatter formatter;
+		try {
+			formatter = range.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing profiles.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to format profiles.", e.getCause());
+		}
+		for (int i = 0; i < ProfileTextFormatter.NUM_OUTPUTS; i++) {
+			if (channels != null) {
+				formatter.writeTo(i, channels[i]);
+			} else {
+				formatter.writeTo(i, compressedOutputs[i], indexes[i]);
+			}
+		}
+		if (event.isEnabled()) {
+			event.bytesWritten += formatter.getSize();
+			event.ranges++;
+		}
+		if (formatter.isLastRange()) {
+			System.out.println("Data for chromosome " + formatter.getChromosomeName() + " written.");
+			if (event.shouldCommit()) {
+				event.chromosome = formatter.getChromosomeName();
+				event.compressed = channels == null;
+				event.commit();
+			}
+			event = null;
+		}
+		idle.addLast(formatter);
+		return event;
+	}
+	
+	/**
+	 * Writes the deletion, mutation and substitution rates of each strand as
+	 * bigWig tracks, which genome browsers load directly. Tracks hold the
+	 * values of the .bedgraph files of {@link #toFile(String)}, as floats,
+	 * and are all built in one pass over the covered positions.
+	 * 
+	 * @param fileName basename of output files
+	 * @throws IOException if a file already exists or cannot be written
+	 */
+	public final void toBigWig(String fileName) throws IOException {
+		for (String suffix : BIGWIG_SUFFIXES) {
+			File file = new File(fileName + suffix);
+			if (file.exists()) {
+				throw new IOException("Output " + file.getName() + " already exists!");
+			}
+		}
+		Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+		for (ChromosomeProfile<MutationProfile> chromosome : profiles.values()) {
+			lengths.put(chromosome.getName(), chromosome.getLength());
+		}
+		
+		BigWigWriter[] tracks = new BigWigWriter[BIGWIG_SUFFIXES.length];
+		try {
+			for (int i = 0; i < tracks.length; i++) {
+				tracks[i] = new BigWigWriter(new File(fileName + BIGWIG_SUFFIXES[i]), lengths);
+			}
+			// bigWig files number chromosomes by name and take their values in that order.
+			for (ChromosomeProfile<MutationProfile> chromosome : new TreeMap<String, ChromosomeProfile<MutationProfile>>(profiles).values()) {
+				// As in toFile, the positive strand is written wherever it is covered, regardless of the threshold.
+				addTrackValues(chromosome.getName(), chromosome.getPositiveStrand(), 1, tracks, 0);
+				addTrackValues(chromosome.getName(), chromosome.getNegativeStrand(), coverageThreshold, tracks, 3);
+				System.out.println("Tracks for chromosome " + chromosome.getName() + " written.");
+			}
+		} finally {
+			for (BigWigWriter track : tracks) {
+				if (track != null) {track.close();}
+			}
+		}
+		System.out.println("bigWig tracks written to " + new File(fileName).getAbsolutePath() + "_*_rate.bw");
+	}
+	
+	/**
+	 * Adds the rates of the covered positions of one strand to its deletion,
+	 * mutation and substitution tracks.
+	 */
+	private static void addTrackValues(String chromosomeName, MutationProfile profile, int threshold,
+			BigWigWriter[] tracks, int firstTrack) throws IOException {
+		int length = profile.getLength();
+		for (int position = profile.nextCovered(0, length); position < length; position = profile.nextCovered(position + 1, length)) {
+			int deletions = profile.getDeletion(position);
+			int substitutions = profile.getMutation(Nucleotide.A, position) + profile.getMutation(Nucleotide.C, position)
+					+ profile.getMutation(Nucleotide.G, position) + profile.getMutation(Nucleotide.T, position);
+			int total = deletions + profile.getMatch(position) + substitutions;
+			if (total == 0 || total < threshold) {
+				continue;
+			}
+			if (deletions != 0) {
+				tracks[firstTrack].add(chromosomeName, position, (float)((double)deletions / total));
+			}
+			if (deletions + substitutions != 0) {
+				tracks[firstTrack + 1].add(chromosomeName, position, (float)((double)(deletions + substitutions) / total));
+			}
+			if (substitutions != 0) {
+				tracks[firstTrack + 2].add(chromosomeName, position, (float)((double)substitutions / total));
+			}
+		}
+	}
+	
+	/**
+	 * Writes the counts of every position of the .csv output of
+	 * {@link #toFile(String)} as an Arrow IPC file, also known as Feather
+	 * version 2, which dataframe libraries load, or memory-map without
+	 * copying, far faster than they parse the .csv file. Chromosome and
+	 * strand are dictionary-encoded columns, positions are 1-based as in the
+	 * .csv file, and totals and rates are left to be derived from the counts.
+	 * <p>
+	 * Chromosomes are written one at a time, each strand in its own record
+	 * batches of at most {@value #ARROW_BATCH_ROWS} rows, so memory use does
+	 * not grow with the size of the data.
+	 * 
+	 * @param fileName basename of the output file
+	 * @throws IOException if the file already exists or cannot be written
+	 */
+	public final void toArrow(String fileName) throws IOException {
+		String[] chromosomeNames = profiles.keySet().toArray(new String[profiles.size()]);
+		ArrowFileWriter writer = new ArrowFileWriter(new File(fileName + ".arrow"), ARROW_KEY_COLUMNS,
+				new String[][] {chromosomeNames, ARROW_STRANDS}, ARROW_VALUE_COLUMNS);
+		try {
+			int[][] columns = new int[ARROW_VALUE_COLUMNS.length][ARROW_BATCH_ROWS];
+			for (int i = 0; i < chromosomeNames.length; i++) {
+				ChromosomeProfile<MutationProfile> chromosome = profiles.get(chromosomeNames[i]);
+				// As in toFile, the positive strand is written wherever it is covered, regardless of the threshold.
+				addArrowBatches(writer, chromosome.getPositiveStrand(), 1, new int[] {i, 0}, columns);
+				addArrowBatches(writer, chromosome.getNegativeStrand(), coverageThreshold, new int[] {i, 1}, columns);
+				System.out.println("Arrow data for chromosome " + chromosomeNames[i] + " written.");
+			}
+		} finally {
+			writer.close();
+		}
+		System.out.println("Arrow data written to " + writer.getFile().getAbsolutePath());
+	}
+	
+	/**
+	 * Writes the rows of one strand, the same rows as in the .csv output, as
+	 * record batches.
+	 */
+	private static void addArrowBatches(ArrowFileWriter writer, MutationProfile profile, int threshold,
+			int[] keys, int[][] columns) throws IOException {
+		int length = profile.getLength();
+		// Without a threshold, toFile writes every position, covered or not.
+		boolean everyPosition = threshold <= 0;
+		int numRows = 0;
+		for (int position = everyPosition ? 0 : profile.nextCovered(0, length); position < length;
+				position = everyPosition ? position + 1 : profile.nextCovered(position + 1, length)) {
+			int total = 0;
+			for (int c = 0; c < MutationProfile.NUM_CHANNELS; c++) {
+				int count = profile.getCount(c, position);
+				columns[c + 1][numRows] = count;
+				if (c != MutationProfile.INSERTIONS) {
+					total += count;
+				}
+			}
+			if (total < threshold) {
+				continue;
+			}
+			columns[0][numRows] = position + 1;
+			if (++numRows == ARROW_BATCH_ROWS) {
+				writer.writeBatch(numRows, keys, columns);
+				numRows = 0;
+			}
+		}
+		if (numRows > 0) {
+			writer.writeBatch(numRows, keys, columns);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package shape.profiles;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.io.IOException;
+
+import shape.utils.Nucleotide;
+
+/**
+ * Something mutation counts can be added to: either the profiles themselves,
+ * or a buffer of events that are applied to the profiles later.
+ *
+ * @author Mason M Lai
+ */
+public interface MutationSink {
+
+	/**
+	 * Makes sure a chromosome is present and at least the given length.
+	 *
+	 * @param chromosome chromosome name
+	 * @param length     minimum length of the chromosome in nt
+	 */
+	void ensureLength(String chromosome, int length);
+
+	/**
+	 * Gets the length of a chromosome in nt. Positions at or beyond it are
+	 * not counted.
+	 *
+	 * @param chromosome chromosome name
+	 * @return length of the chromosome in nt
+	 */
+	int getLength(String chromosome);
+
+	void addInsertion(String chromosome, int position, Strand orientation) throws IOException;
+
+	void addDeletion(String chromosome, int position, Strand orientation) throws IOException;
+
+	void addMatch(String chromosome, int position, Strand orientation) throws IOException;
+
+	void addMatchRange(String chromosome, int start, int end, Strand orientation) throws IOException;
+
+	void addMutation(String chromosome, Nucleotide n, int position, Strand orientation) throws IOException;
+}
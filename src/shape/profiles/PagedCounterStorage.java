@@ -0,0 +1,186 @@
+package shape.profiles;
+
+import java.util.Arrays;
+
+/**
+ * Stores counts in fixed-size pages of primitive ints. The strand is split
+ * into blocks of {@link #PAGE_SIZE} positions, and the page covering a block
+ * is only allocated when a count is first added to it. Positions on pages
+ * that were never touched read as 0.
+ * <p>
+ * Range additions go into a difference array of the pages they touch, which
+ * is folded into the counts and released the next time a count is read.
+ * 
+ * @author Mason M Lai
+ */
+final class PagedCounterStorage extends CounterStorage {
+
+	static final int PAGE_BITS = 12;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	
+	private final int[][][] pages;
+	private final int[][][] differences;
+	private int numAllocatedPages;
+	private int numDifferencePages;
+	
+	PagedCounterStorage(int numChannels, int length) {
+		super(numChannels, length);
+		pages = new int[numChannels][numPages(length)][];
+		differences = new int[numChannels][numPages(length)][];
+		numAllocatedPages = 0;
+		numDifferencePages = 0;
+	}
+	
+	private PagedCounterStorage(PagedCounterStorage that, int length) {
+		super(that.numChannels, length);
+		that.flush();
+		pages = new int[numChannels][][];
+		differences = new int[numChannels][numPages(length)][];
+		for (int i = 0; i < numChannels; i++) {
+			pages[i] = Arrays.copyOf(that.pages[i], numPages(length));
+		}
+		numAllocatedPages = that.numAllocatedPages;
+		numDifferencePages = 0;
+	}
+	
+	private static int numPages(int length) {
+		return (int)(((long)length + PAGE_SIZE - 1) >>> PAGE_BITS);
+	}
+	
+	private int[] getOrAllocatePage(int channel, int pageIndex) {
+		int[] page = pages[channel][pageIndex];
+		if (page == null) {
+			page = new int[PAGE_SIZE];
+			pages[channel][pageIndex] = page;
+			numAllocatedPages++;
+		}
+		return page;
+	}
+	
+	@Override
+	void increment(int channel, int position) {
+		++getOrAllocatePage(channel, position >>> PAGE_BITS)[position & PAGE_MASK];
+	}
+	
+	@Override
+	void add(int channel, int position, int delta) {
+		getOrAllocatePage(channel, position >>> PAGE_BITS)[position & PAGE_MASK] += delta;
+	}
+	
+	@Override
+	void addRange(int channel, int start, int end) {
+		int[][] channelDifferences = differences[channel];
+		while (start < end) {
+			int pageIndex = start >>> PAGE_BITS;
+			int pageStart = pageIndex << PAGE_BITS;
+			int pieceEnd = (int)Math.min(end, (long)pageStart + PAGE_SIZE);
+			int[] difference = channelDifferences[pageIndex];
+			if (difference == null) {
+				difference = new int[PAGE_SIZE + 1];
+				channelDifferences[pageIndex] = difference;
+				numDifferencePages++;
+			}
+			++difference[start - pageStart];
+			--difference[pieceEnd - pageStart];
+			start = pieceEnd;
+		}
+	}
+	
+	@Override
+	void flush() {
+		if (numDifferencePages == 0) {
+			return;
+		}
+		for (int c = 0; c < numChannels; c++) {
+			int[][] channelDifferences = differences[c];
+			for (int p = 0; p < channelDifferences.length; p++) {
+				int[] difference = channelDifferences[p];
+				if (difference == null) {
+					continue;
+				}
+				int[] page = getOrAllocatePage(c, p);
+				int sum = 0;
+				for (int i = 0; i < PAGE_SIZE; i++) {
+					sum += difference[i];
+					page[i] += sum;
+				}
+				channelDifferences[p] = null;
+			}
+		}
+		numDifferencePages = 0;
+	}
+	
+	@Override
+	void addTo(CounterStorage target) {
+		flush();
+		for (int c = 0; c < numChannels; c++) {
+			int[][] channelPages = pages[c];
+			for (int p = 0; p < channelPages.length; p++) {
+				int[] page = channelPages[p];
+				if (page == null) {
+					continue;
+				}
+				int pageStart = p << PAGE_BITS;
+				int pageLength = Math.min(PAGE_SIZE, Math.min(length, target.length) - pageStart);
+				for (int i = 0; i < pageLength; i++) {
+					if (page[i] != 0) {
+						target.add(c, pageStart + i, page[i]);
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	int nextCovered(int from, int to) {
+		flush();
+		int position = from;
+		while (position < to) {
+			int pageIndex = position >>> PAGE_BITS;
+			int pageEnd = (int)Math.min(to, ((long)pageIndex + 1) << PAGE_BITS);
+			boolean isAllocated = false;
+			for (int c = 0; c < numChannels; c++) {
+				isAllocated |= pages[c][pageIndex] != null;
+			}
+			if (isAllocated) {
+				for (; position < pageEnd; position++) {
+					for (int c = 0; c < numChannels; c++) {
+						int[] page = pages[c][pageIndex];
+						if (page != null && page[position & PAGE_MASK] != 0) {
+							return position;
+						}
+					}
+				}
+			}
+			position = pageEnd;
+		}
+		return to;
+	}
+	
+	@Override
+	int get(int channel, int position) {
+		if (numDifferencePages != 0) {
+			flush();
+		}
+		int[] page = pages[channel][position >>> PAGE_BITS];
+		if (page == null) {
+			return 0;
+		} else {
+			return page[position & PAGE_MASK];
+		}
+	}
+	
+	@Override
+	CounterStorage grow(int newLength) {
+		return new PagedCounterStorage(this, newLength);
+	}
+	
+	@Override
+	long getMemoryFootprint() {
+		long pageTables = numChannels * (ARRAY_HEADER_BYTES + (long)pages[0].length * REFERENCE_BYTES);
+		long pageData = numAllocatedPages * (ARRAY_HEADER_BYTES + 4L * PAGE_SIZE);
+		long differenceData = numDifferencePages * (ARRAY_HEADER_BYTES + 4L * (PAGE_SIZE + 1));
+		return 2 * pageTables + pageData + differenceData;
+	}
+}
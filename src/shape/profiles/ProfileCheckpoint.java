@@ -0,0 +1,238 @@
+package shape.profiles;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import shape.utils.ChromosomeListener;
+
+/**
+ * Saves the counts of a run chromosome by chromosome so that an interrupted
+ * run can be resumed. Each chromosome is written once, as soon as all of its
+ * reads have been counted, to its own file in the checkpoint directory. A
+ * manifest lists the finished chromosomes and identifies the .bam file and
+ * settings they were counted with; a chromosome only appears in it once its
+ * file is complete.
+ * <p>
+ * Files are written on a background thread. Since a finished chromosome is
+ * no longer counted into, it is written without being copied, and counting
+ * carries on with the next chromosome in the meantime.
+ *
+ * @author Mason M Lai
+ */
+public final class ProfileCheckpoint implements ChromosomeListener, Closeable {
+
+	private static final String MANIFEST_NAME = "checkpoint.txt";
+	private static final String HEADER = "#shape checkpoint 1";
+
+	private final File directory;
+	private final MutationProfileCollection profiles;
+	private final String bamIdentity;
+	private final int numExcludedBasesFromEnd;
+	// Finished chromosomes and their files, in the order they were finished.
+	private final Map<String, String> finished;
+	private final ExecutorService writer;
+	private volatile IOException failure;
+
+	private ProfileCheckpoint(File directory, MutationProfileCollection profiles, String bamIdentity,
+			int numExcludedBasesFromEnd, Map<String, String> finished) {
+		this.directory = directory;
+		this.profiles = profiles;
+		this.bamIdentity = bamIdentity;
+		this.numExcludedBasesFromEnd = numExcludedBasesFromEnd;
+		this.finished = finished;
+		writer = Executors.newSingleThreadExecutor();
+	}
+
+	/**
+	 * Opens the checkpoint in a directory, creating the directory if needed.
+	 * An existing checkpoint must have been made from the same .bam file with
+	 * the same number of excluded bases.
+	 *
+	 * @param directory               the checkpoint directory
+	 * @param bamFile                 path to the .bam file being counted
+	 * @param numExcludedBasesFromEnd number of bases ignored at each end of each read
+	 * @param profiles                the collection being counted into
+	 * @return the checkpoint
+	 * @throws IOException if the directory cannot be created, or the existing
+	 * checkpoint is malformed or was made with another .bam file or settings
+	 */
+	public static ProfileCheckpoint open(File directory, String bamFile, int numExcludedBasesFromEnd,
+			MutationProfileCollection profiles) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create checkpoint directory " + directory + ".");
+		}
+		File bam = new File(bamFile);
+		String bamIdentity = bam.getCanonicalPath() + "\t" + bam.length() + "\t" + bam.lastModified();
+		Map<String, String> finished = new LinkedHashMap<String, String>();
+		File manifest = new File(directory, MANIFEST_NAME);
+		if (manifest.exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(manifest));
+			try {
+				if (!HEADER.equals(reader.readLine())) {
+					throw new IOException(manifest + " is not a checkpoint manifest.");
+				}
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t", 2);
+					if (fields[0].equals("bam") && !fields[1].equals(bamIdentity)) {
+						throw new IOException("Checkpoint in " + directory + " was made from another .bam file, " +
+								"or the .bam file has changed since.");
+					} else if (fields[0].equals("excluded") && Integer.parseInt(fields[1]) != numExcludedBasesFromEnd) {
+						throw new IOException("Checkpoint in " + directory + " was made excluding " + fields[1] +
+								" bases from each end of each read, not " + numExcludedBasesFromEnd + ".");
+					} else if (fields[0].equals("chromosome")) {
+						int tab = fields[1].lastIndexOf('\t');
+						finished.put(fields[1].substring(0, tab), fields[1].substring(tab + 1));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		ProfileCheckpoint checkpoint = new ProfileCheckpoint(directory, profiles, bamIdentity, numExcludedBasesFromEnd, finished);
+		if (!manifest.exists()) {
+			checkpoint.writeManifest();
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Gets the chromosomes whose counts are saved.
+	 *
+	 * @return names of the finished chromosomes, in the order they were finished
+	 */
+	public synchronized Set<String> getFinishedChromosomes() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(finished.keySet()));
+	}
+
+	/**
+	 * Adds the saved counts of every finished chromosome to the collection.
+	 *
+	 * @throws IOException if a chromosome file cannot be read
+	 */
+	public void restore() throws IOException {
+		for (Map.Entry<String, String> elem : finished.entrySet()) {
+			if (elem.getValue().isEmpty()) {
+				continue;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, elem.getValue()))));
+			try {
+				CountsFormat.readChromosome(in, profiles);
+			} finally {
+				in.close();
+			}
+			System.out.println(elem.getKey() + " restored from checkpoint.");
+		}
+	}
+
+	/**
+	 * Saves the counts of a chromosome on the background thread.
+	 *
+	 * @throws IOException if an earlier save failed
+	 */
+	@Override
+	public void chromosomeFinished(final String chromosome) throws IOException {
+		checkFailure();
+		final ChromosomeProfile<MutationProfile> profile = profiles.getProfiles().get(chromosome);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (failure != null) {
+					return;
+				}
+				try {
+					save(chromosome, profile);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		});
+	}
+
+	private void save(String chromosome, ChromosomeProfile<MutationProfile> profile) throws IOException {
+		String fileName = "";
+		if (profile != null) {
+			synchronized (this) {
+				fileName = "chromosome_" + finished.size() + ".counts";
+			}
+			File file = new File(directory, fileName);
+			File temporary = new File(directory, fileName + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				CountsFormat.writeChromosome(out, profile);
+			} finally {
+				out.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		synchronized (this) {
+			finished.put(chromosome, fileName);
+		}
+		writeManifest();
+	}
+
+	private synchronized void writeManifest() throws IOException {
+		File manifest = new File(directory, MANIFEST_NAME);
+		File temporary = new File(directory, MANIFEST_NAME + ".tmp");
+		PrintWriter out = new PrintWriter(temporary);
+		try {
+			out.println(HEADER);
+			out.println("bam\t" + bamIdentity);
+			out.println("excluded\t" + numExcludedBasesFromEnd);
+			for (Map.Entry<String, String> elem : finished.entrySet()) {
+				out.println("chromosome\t" + elem.getKey() + "\t" + elem.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Could not write " + temporary + ".");
+		}
+		Files.move(temporary.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Could not save checkpoint in " + directory + ".", failure);
+		}
+	}
+
+	/**
+	 * Waits for pending saves to finish.
+	 *
+	 * @throws IOException if a save failed
+	 */
+	@Override
+	public void close() throws IOException {
+		writer.shutdown();
+		try {
+			while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+				System.out.println("Waiting for checkpoint to be written...");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing checkpoint.", e);
+		}
+		checkFailure();
+	}
+}
@@ -0,0 +1,439 @@
+package shape.profiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import shape.utils.BgzfOutputStream;
+import shape.utils.Nucleotide;
+import shape.utils.TabixIndex;
+
+/**
+ * Formats a range of positions of a chromosome into the lines of the .csv
+ * and .bedgraph outputs of {@link MutationProfileCollection#toFile(String)}.
+ * Lines are built directly as bytes in buffers that are kept and reused from
+ * one range to the next, so formatting allocates nothing once the buffers
+ * have grown to size.
+ * <p>
+ * Rates are written either exactly as {@link Double#toString(double)} would,
+ * or with a fixed number of decimal places. Since a rate is a ratio of two
+ * counts, the text of rates with small totals is cached, which spares most
+ * calls to Double.toString at typical coverage.
+ * <p>
+ * Only the covered positions of each strand are visited, as found by
+ * {@link MutationProfile#nextCovered(int, int)}, so sparse data costs time in
+ * proportion to its coverage rather than to the length of the chromosome.
+ * Adjacent positions with the same rate text may optionally be collapsed into
+ * one .bedgraph interval. Runs are not carried from one range to the next,
+ * so a run that crosses the boundary of two ranges is written as two lines.
+ * <p>
+ * For BGZF-compressed output, lines are tab-separated instead, and the
+ * positions of each line are kept for its tabix index.
+ *
+ * @author Mason M Lai
+ */
+final class ProfileTextFormatter {
+
+	static final int MAX_PRECISION = 9;
+
+	// Indices of the outputs, in the order of MutationProfileCollection.OUTPUT_SUFFIXES.
+	static final int CSV = 0;
+	static final int POS_DELETION = 1;
+	static final int POS_MUTATION = 2;
+	static final int POS_SUBSTITUTION = 3;
+	static final int NEG_DELETION = 4;
+	static final int NEG_MUTATION = 5;
+	static final int NEG_SUBSTITUTION = 6;
+	static final int NUM_OUTPUTS = 7;
+
+	// Rates with totals below this have their text cached.
+	private static final int CACHED_TOTALS = 256;
+
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+	private static final long[] POWERS_OF_TEN = new long[MAX_PRECISION + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final int precision;
+	private final int coverageThreshold;
+	private final boolean indexed;
+	private final boolean collapseRuns;
+	private final byte csvSeparator;
+	private final byte bedGraphSeparator;
+	private final byte[] positive;
+	private final byte[] negative;
+	private final Output[] outputs;
+	// Text of numerator / total, at index total * (total + 1) / 2 + numerator.
+	private final byte[][] rateText;
+	private final byte[] digits;
+	// Pending run of each .bedgraph output, as its positions and the text of its rate.
+	private final int[] runStarts;
+	private final int[] runEnds;
+	private final Output[] runRates;
+	private Output rate;
+
+	private String chromosomeName;
+	private byte[] chromosomeText;
+	private boolean lastRange;
+
+	/**
+	 * @param precision         number of decimal places of rates, or
+	 *                          {@link MutationProfileCollection#FULL_PRECISION}
+	 * @param coverageThreshold minimum total of positions written for the
+	 *                          negative strand
+	 * @param indexed           whether lines are tab-separated and their
+	 *                          positions kept for tabix indexes
+	 * @param collapseRuns      whether adjacent positions with the same rate
+	 *                          are written as one .bedgraph line
+	 */
+	ProfileTextFormatter(int precision, int coverageThreshold, boolean indexed, boolean collapseRuns) {
+		this.precision = precision;
+		this.coverageThreshold = coverageThreshold;
+		this.indexed = indexed;
+		this.collapseRuns = collapseRuns;
+		String separator = indexed ? "\t" : ",";
+		csvSeparator = (byte)separator.charAt(0);
+		bedGraphSeparator = indexed ? (byte)'\t' : (byte)' ';
+		positive = (separator + "positive" + separator).getBytes();
+		negative = (separator + "negative" + separator).getBytes();
+		outputs = new Output[NUM_OUTPUTS];
+		for (int i = 0; i < NUM_OUTPUTS; i++) {
+			outputs[i] = new Output();
+		}
+		rateText = new byte[CACHED_TOTALS * (CACHED_TOTALS + 1) / 2][];
+		digits = new byte[20];
+		runStarts = new int[NUM_OUTPUTS];
+		runEnds = new int[NUM_OUTPUTS];
+		runRates = new Output[NUM_OUTPUTS];
+		if (collapseRuns) {
+			for (int i = 0; i < NUM_OUTPUTS; i++) {
+				runRates[i] = new Output();
+			}
+			rate = new Output();
+		}
+	}
+
+	/**
+	 * Formats the lines of a range of positions, replacing whatever was
+	 * formatted before.
+	 *
+	 * @param chromosomeName name of the chromosome
+	 * @param positive       profile of the positive strand
+	 * @param negative       profile of the negative strand
+	 * @param start          first position of the range
+	 * @param end            position after the last position of the range
+	 * @param lastRange      whether the range is the last of its chromosome
+	 */
+	void format(String chromosomeName, MutationProfile positive, MutationProfile negative, int start, int end, boolean lastRange) {
+		if (!chromosomeName.equals(this.chromosomeName)) {
+			this.chromosomeName = chromosomeName;
+			chromosomeText = chromosomeName.getBytes();
+		}
+		this.lastRange = lastRange;
+		for (int output = 0; output < NUM_OUTPUTS; output++) {
+			outputs[output].size = 0;
+			outputs[output].numLines = 0;
+			runEnds[output] = -1;
+		}
+		// Without a threshold, the negative strand is written at every position, covered or not.
+		boolean everyNegative = coverageThreshold <= 0;
+		int nextPositive = positive.nextCovered(start, end);
+		int nextNegative = everyNegative ? start : negative.nextCovered(start, end);
+		while (nextPositive < end || nextNegative < end) {
+			// Both strands of a position are written together, positive first, as when every position was visited.
+			int position = Math.min(nextPositive, nextNegative);
+			if (position == nextPositive) {
+				// The positive strand has always been written wherever it is covered, regardless of the threshold.
+				formatPosition(positive, position, this.positive, 1, POS_MUTATION, POS_DELETION, POS_SUBSTITUTION);
+				nextPositive = positive.nextCovered(position + 1, end);
+			}
+			if (position == nextNegative) {
+				formatPosition(negative, position, this.negative, coverageThreshold, NEG_MUTATION, NEG_DELETION, NEG_SUBSTITUTION);
+				nextNegative = everyNegative ? position + 1 : negative.nextCovered(position + 1, end);
+			}
+		}
+		if (collapseRuns) {
+			for (int output = CSV + 1; output < NUM_OUTPUTS; output++) {
+				endRun(output);
+			}
+		}
+	}
+
+	private void formatPosition(MutationProfile profile, int position, byte[] orientation, int threshold,
+			int mutationOutput, int deletionOutput, int substitutionOutput) {
+		int matches = profile.getMatch(position);
+		int insertions = profile.getInsertion(position);
+		int deletions = profile.getDeletion(position);
+		int mutationsToA = profile.getMutation(Nucleotide.A, position);
+		int mutationsToC = profile.getMutation(Nucleotide.C, position);
+		int mutationsToG = profile.getMutation(Nucleotide.G, position);
+		int mutationsToT = profile.getMutation(Nucleotide.T, position);
+		int substitutions = mutationsToA + mutationsToC + mutationsToG + mutationsToT;
+		int total = deletions + matches + substitutions;
+		if (total < threshold) {
+			return;
+		}
+
+		Output csv = outputs[CSV];
+		startLine(csv, position, position + 1);
+		csv.append(chromosomeText);
+		csv.append(orientation);
+		appendInt(csv, position + 1);
+		csv.append(csvSeparator);
+		appendInt(csv, matches);
+		csv.append(csvSeparator);
+		appendInt(csv, insertions);
+		csv.append(csvSeparator);
+		appendInt(csv, deletions);
+		csv.append(csvSeparator);
+		appendInt(csv, mutationsToA);
+		csv.append(csvSeparator);
+		appendInt(csv, mutationsToC);
+		csv.append(csvSeparator);
+		appendInt(csv, mutationsToG);
+		csv.append(csvSeparator);
+		appendInt(csv, mutationsToT);
+		csv.append(csvSeparator);
+		appendInt(csv, total);
+		csv.append(csvSeparator);
+		appendRate(csv, deletions + substitutions, total);
+		csv.append(csvSeparator);
+		appendRate(csv, deletions, total);
+		csv.append(csvSeparator);
+		appendRate(csv, substitutions, total);
+		csv.append(NEWLINE);
+
+		if (deletions + substitutions != 0) {
+			appendBedGraphLine(mutationOutput, position, deletions + substitutions, total);
+		}
+		if (deletions != 0) {
+			appendBedGraphLine(deletionOutput, position, deletions, total);
+		}
+		if (substitutions != 0) {
+			appendBedGraphLine(substitutionOutput, position, substitutions, total);
+		}
+	}
+
+	private void appendBedGraphLine(int output, int position, int numerator, int total) {
+		if (!collapseRuns) {
+			Output text = outputs[output];
+			startBedGraphLine(text, position, position + 1);
+			appendRate(text, numerator, total);
+			text.append(NEWLINE);
+			return;
+		}
+		rate.size = 0;
+		appendRate(rate, numerator, total);
+		if (runEnds[output] == position && rate.hasSameBytes(runRates[output])) {
+			runEnds[output]++;
+			return;
+		}
+		endRun(output);
+		// The rate becomes that of the new run, and the old run's buffer is reused for the next rate.
+		Output previous = runRates[output];
+		runRates[output] = rate;
+		rate = previous;
+		runStarts[output] = position;
+		runEnds[output] = position + 1;
+	}
+
+	/**
+	 * Writes the pending run of a .bedgraph output, if any.
+	 */
+	private void endRun(int output) {
+		if (runEnds[output] < 0) {
+			return;
+		}
+		Output text = outputs[output];
+		Output runRate = runRates[output];
+		startBedGraphLine(text, runStarts[output], runEnds[output]);
+		text.append(runRate.bytes, 0, runRate.size);
+		text.append(NEWLINE);
+		runEnds[output] = -1;
+	}
+
+	private void startBedGraphLine(Output output, int start, int end) {
+		startLine(output, start, end);
+		output.append(chromosomeText);
+		output.append(bedGraphSeparator);
+		appendInt(output, start);
+		output.append(bedGraphSeparator);
+		appendInt(output, end);
+		output.append(bedGraphSeparator);
+	}
+
+	private void startLine(Output output, int start, int end) {
+		if (indexed) {
+			output.startLine(start, end);
+		}
+	}
+
+	private void appendInt(Output output, long value) {
+		if (value < 0) {
+			output.append((byte) '-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		output.append(digits, i, digits.length - i);
+	}
+
+	private void appendRate(Output output, int numerator, int total) {
+		if (total == 0) {
+			// Rates of uncovered positions are 0 rather than NaN.
+			numerator = 0;
+		}
+		if (precision != MutationProfileCollection.FULL_PRECISION) {
+			appendFixed(output, total == 0 ? 0 : (double) numerator / total);
+		} else if (total < CACHED_TOTALS && numerator >= 0 && numerator <= total) {
+			int index = total * (total + 1) / 2 + numerator;
+			byte[] text = rateText[index];
+			if (text == null) {
+				text = Double.toString(total == 0 ? 0 : (double) numerator / total).getBytes();
+				rateText[index] = text;
+			}
+			output.append(text);
+		} else {
+			output.append(Double.toString((double) numerator / total).getBytes());
+		}
+	}
+
+	private void appendFixed(Output output, double rate) {
+		long scaled = Math.round(rate * POWERS_OF_TEN[precision]);
+		if (scaled < 0) {
+			output.append((byte) '-');
+			scaled = -scaled;
+		}
+		appendInt(output, scaled / POWERS_OF_TEN[precision]);
+		if (precision > 0) {
+			output.append((byte) '.');
+			long fraction = scaled % POWERS_OF_TEN[precision];
+			for (int i = precision - 1; i >= 0; i--) {
+				output.append((byte) ('0' + fraction / POWERS_OF_TEN[i] % 10));
+			}
+		}
+	}
+
+	String getChromosomeName() {
+		return chromosomeName;
+	}
+
+	boolean isLastRange() {
+		return lastRange;
+	}
+
+	/**
+	 * @return number of bytes formatted for all outputs
+	 */
+	long getSize() {
+		long size = 0;
+		for (Output output : outputs) {
+			size += output.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes what was formatted for one output to a channel.
+	 *
+	 * @param output  index of the output
+	 * @param channel the channel to write to
+	 * @throws IOException if the channel cannot be written
+	 */
+	void writeTo(int output, WritableByteChannel channel) throws IOException {
+		Output text = outputs[output];
+		ByteBuffer buffer = ByteBuffer.wrap(text.bytes, 0, text.size);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes what was formatted for one output to a BGZF stream, and adds
+	 * each line to the index of the output.
+	 *
+	 * @param output index of the output
+	 * @param out    the stream to write to
+	 * @param index  the index of the stream
+	 * @throws IOException if the stream cannot be written
+	 */
+	void writeTo(int output, BgzfOutputStream out, TabixIndex index) throws IOException {
+		Output text = outputs[output];
+		for (int i = 0; i < text.numLines; i++) {
+			int start = text.lineStarts[i];
+			int end = i + 1 < text.numLines ? text.lineStarts[i + 1] : text.size;
+			long startAddress = out.getBlockAddress();
+			out.write(text.bytes, start, end - start);
+			index.addLine(chromosomeName, text.lineBegins[i], text.lineEnds[i], startAddress, out.getBlockAddress());
+		}
+	}
+
+	/**
+	 * A growable array of bytes, with the start of each line and the
+	 * positions it covers when indexed.
+	 */
+	private static final class Output {
+		private byte[] bytes = new byte[1 << 16];
+		private int size;
+		private int[] lineStarts = new int[0];
+		private int[] lineBegins = new int[0];
+		private int[] lineEnds = new int[0];
+		private int numLines;
+
+		private void startLine(int begin, int end) {
+			if (numLines == lineStarts.length) {
+				int length = Math.max(1024, 2 * numLines);
+				lineStarts = Arrays.copyOf(lineStarts, length);
+				lineBegins = Arrays.copyOf(lineBegins, length);
+				lineEnds = Arrays.copyOf(lineEnds, length);
+			}
+			lineStarts[numLines] = size;
+			lineBegins[numLines] = begin;
+			lineEnds[numLines] = end;
+			numLines++;
+		}
+
+		private boolean hasSameBytes(Output that) {
+			if (size != that.size) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				if (bytes[i] != that.bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void ensureCapacity(int extra) {
+			if (size + extra > bytes.length) {
+				byte[] larger = new byte[Math.max(bytes.length * 2, size + extra)];
+				System.arraycopy(bytes, 0, larger, 0, size);
+				bytes = larger;
+			}
+		}
+
+		private void append(byte b) {
+			ensureCapacity(1);
+			bytes[size++] = b;
+		}
+
+		private void append(byte[] b) {
+			append(b, 0, b.length);
+		}
+
+		private void append(byte[] b, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(b, offset, bytes, size, length);
+			size += length;
+		}
+	}
+}
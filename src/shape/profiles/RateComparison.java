@@ -0,0 +1,316 @@
+package shape.profiles;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the mutation rates of a modified sample with those of an
+ * untreated sample, and optionally a denatured sample, position by position.
+ * The rate of a position is that of the mutationRate column of
+ * {@link MutationProfileCollection#toFile(String)}: deletions and
+ * substitutions over matches, deletions and substitutions.
+ * <p>
+ * For each position covered by at least the coverage threshold in every
+ * sample, on either strand, one line gives the depth and rate of each
+ * sample, the rate difference (modified less untreated, i.e., the
+ * background-subtracted rate), the rate ratio (modified over untreated), and,
+ * with a denatured sample, the reactivity (the difference over the
+ * denatured rate). Undefined ratios and reactivities are left empty.
+ * Chromosomes missing from any sample are skipped.
+ * <p>
+ * Each chromosome is a merge-join of the samples' covered positions, which
+ * every {@link CountsSource} gives in increasing order, so no sample is ever
+ * held in memory. Chromosomes are compared on several threads, and their
+ * lines are written in the order of the modified sample. The lines of each
+ * chromosome go through a bounded queue, so a thread that gets ahead of the
+ * output waits rather than buffering its whole chromosome.
+ *
+ * @author Mason M Lai
+ */
+public final class RateComparison {
+
+	// Bytes of text per chunk, and chunks waiting to be written per chromosome.
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int CHUNKS_PER_CHROMOSOME = 16;
+	// Sent after the last chunk of a chromosome, and also after a failure.
+	private static final ByteBuffer END_OF_CHROMOSOME = ByteBuffer.allocate(0);
+
+	private final CountsSource modified;
+	private final CountsSource untreated;
+	private final CountsSource denatured;
+	private final int coverageThreshold;
+
+	/**
+	 * @param modified          counts of the modified sample
+	 * @param untreated         counts of the untreated sample
+	 * @param denatured         counts of the denatured sample, or null if
+	 *                          there is none
+	 * @param coverageThreshold minimum depth of a position in every sample
+	 */
+	public RateComparison(CountsSource modified, CountsSource untreated, CountsSource denatured, int coverageThreshold) {
+		if (coverageThreshold < 1) {
+			throw new IllegalArgumentException("Coverage threshold must be positive.");
+		}
+		this.modified = modified;
+		this.untreated = untreated;
+		this.denatured = denatured;
+		this.coverageThreshold = coverageThreshold;
+	}
+
+	/**
+	 * Writes the comparison as a .csv file.
+	 *
+	 * @param output     the file to create
+	 * @param numThreads number of chromosomes compared at once
+	 * @throws IOException if the output already exists or cannot be written,
+	 * or a sample cannot be read
+	 */
+	public void toFile(File output, int numThreads) throws IOException {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive.");
+		}
+		if (output.exists()) {
+			throw new IOException("Output " + output.getAbsolutePath() + " already exists!");
+		}
+		final List<CountsSource> samples = new ArrayList<CountsSource>();
+		samples.add(modified);
+		samples.add(untreated);
+		if (denatured != null) {
+			samples.add(denatured);
+		}
+		List<String> chromosomes = new ArrayList<String>();
+		for (String chromosome : modified.getLengths().keySet()) {
+			if (untreated.getLengths().containsKey(chromosome) && (denatured == null || denatured.getLengths().containsKey(chromosome))) {
+				chromosomes.add(chromosome);
+			} else {
+				System.out.println(chromosome + " is not in every sample. Skipping it.");
+			}
+		}
+
+		FileOutputStream out = new FileOutputStream(output);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			FileChannel channel = out.getChannel();
+			write(channel, ByteBuffer.wrap(header().getBytes()));
+
+			// Threads start chromosomes in this order, so the one being written is always running or done.
+			List<BlockingQueue<ByteBuffer>> chunks = new ArrayList<BlockingQueue<ByteBuffer>>();
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final String chromosome : chromosomes) {
+				final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(CHUNKS_PER_CHROMOSOME);
+				chunks.add(queue);
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException, InterruptedException {
+						try {
+							Writer writer = new OutputStreamWriter(new BufferedOutputStream(new ChunkOutputStream(queue), CHUNK_SIZE), "US-ASCII");
+							compareChromosome(chromosome, samples, writer);
+							writer.close();
+						} finally {
+							queue.put(END_OF_CHROMOSOME);
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < chromosomes.size(); i++) {
+				ByteBuffer chunk;
+				while ((chunk = chunks.get(i).take()) != END_OF_CHROMOSOME) {
+					write(channel, chunk);
+				}
+				results.get(i).get();
+				System.out.println(chromosomes.get(i) + " compared.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while comparing profiles.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Failed to compare profiles.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			out.close();
+		}
+		System.out.println("Comparison written to " + output.getAbsolutePath());
+	}
+
+	private String header() {
+		StringBuilder header = new StringBuilder("chromosome,orientation,position,modifiedDepth,modifiedRate,untreatedDepth,untreatedRate");
+		if (denatured != null) {
+			header.append(",denaturedDepth,denaturedRate");
+		}
+		header.append(",difference,ratio");
+		if (denatured != null) {
+			header.append(",reactivity");
+		}
+		return header.append(System.getProperty("line.separator")).toString();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void compareChromosome(String chromosome, List<CountsSource> samples, Writer out) throws IOException {
+		CountsSource.Cursor[] cursors = new CountsSource.Cursor[samples.size()];
+		try {
+			for (int i = 0; i < cursors.length; i++) {
+				cursors[i] = samples.get(i).open(chromosome);
+			}
+			LineFormatter lines = new LineFormatter(chromosome);
+			compareStrand(cursors, lines.start("positive"), out);
+			compareStrand(cursors, lines.start("negative"), out);
+		} finally {
+			for (CountsSource.Cursor cursor : cursors) {
+				if (cursor != null) {
+					cursor.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the positions of a strand that every sample covers. Each sample
+	 * is advanced to the greatest pending position of all samples until they
+	 * all agree, so each position of each sample is read once.
+	 */
+	private void compareStrand(CountsSource.Cursor[] cursors, LineFormatter lines, Writer out) throws IOException {
+		int numSamples = cursors.length;
+		int[] positions = new int[numSamples];
+		int[][] counts = new int[numSamples][MutationProfile.NUM_CHANNELS];
+		for (int i = 0; i < numSamples; i++) {
+			positions[i] = cursors[i].next(counts[i]);
+		}
+		int position = 0;
+		joining:
+		while (true) {
+			boolean aligned = true;
+			for (int i = 0; i < numSamples; i++) {
+				while (positions[i] != CountsFormat.END_OF_STRAND && positions[i] < position) {
+					positions[i] = cursors[i].next(counts[i]);
+				}
+				if (positions[i] == CountsFormat.END_OF_STRAND) {
+					break joining;
+				}
+				if (positions[i] > position) {
+					position = positions[i];
+					aligned = false;
+				}
+			}
+			if (aligned) {
+				lines.write(position, counts, coverageThreshold, out);
+				position++;
+			}
+		}
+		// Reads the rest of the strand of every sample, so that the next strand starts where it should.
+		for (int i = 0; i < numSamples; i++) {
+			while (positions[i] != CountsFormat.END_OF_STRAND) {
+				positions[i] = cursors[i].next(counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Formats the line of a position of one strand of a chromosome.
+	 */
+	private static final class LineFormatter {
+		private final String chromosome;
+		private final StringBuilder line = new StringBuilder();
+		private final String newLine = System.getProperty("line.separator");
+		private final int[] depths = new int[3];
+		private final double[] rates = new double[3];
+		private String orientation;
+
+		private LineFormatter(String chromosome) {
+			this.chromosome = chromosome;
+		}
+
+		private LineFormatter start(String orientation) {
+			this.orientation = orientation;
+			return this;
+		}
+
+		private void write(int position, int[][] counts, int coverageThreshold, Writer out) throws IOException {
+			int numSamples = counts.length;
+			for (int i = 0; i < numSamples; i++) {
+				int[] sample = counts[i];
+				int mutations = sample[MutationProfile.DELETIONS] + sample[MutationProfile.MUTATIONS_TO_A] +
+						sample[MutationProfile.MUTATIONS_TO_C] + sample[MutationProfile.MUTATIONS_TO_G] +
+						sample[MutationProfile.MUTATIONS_TO_T];
+				depths[i] = sample[MutationProfile.MATCHES] + mutations;
+				if (depths[i] < coverageThreshold) {
+					return;
+				}
+				rates[i] = (double)mutations / depths[i];
+			}
+			double difference = rates[0] - rates[1];
+			line.setLength(0);
+			line.append(chromosome).append(',').append(orientation).append(',').append(position + 1);
+			for (int i = 0; i < numSamples; i++) {
+				line.append(',').append(depths[i]).append(',').append(rates[i]);
+			}
+			line.append(',').append(difference).append(',');
+			if (rates[1] != 0) {
+				line.append(rates[0] / rates[1]);
+			}
+			if (numSamples == 3) {
+				line.append(',');
+				if (rates[2] != 0) {
+					line.append(difference / rates[2]);
+				}
+			}
+			line.append(newLine);
+			out.append(line);
+		}
+	}
+
+	/**
+	 * Hands chunks of text to the thread writing the output, waiting while
+	 * the queue of the chromosome is full. Chunks are copied, since the
+	 * buffer in front of this stream is reused.
+	 */
+	private static final class ChunkOutputStream extends OutputStream {
+		private final BlockingQueue<ByteBuffer> queue;
+
+		private ChunkOutputStream(BlockingQueue<ByteBuffer> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			byte[] chunk = new byte[length];
+			System.arraycopy(b, offset, chunk, 0, length);
+			try {
+				queue.put(ByteBuffer.wrap(chunk));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while comparing profiles.");
+			}
+		}
+	}
+}
@@ -0,0 +1,464 @@
+package shape.profiles;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary stream of the mutations of each read, written during the
+ * counting pass for analyses that need to know which mutations occur
+ * together, e.g., co-variation. Only positions that are counted are logged,
+ * so the ends excluded from each read and the positions a mate already
+ * covered are left out, as in the profiles.
+ * <p>
+ * The file starts with the magic number "SHPL", distinct from those of the
+ * profile files, and a format version, both big-endian ints. Records then
+ * follow one after another, each starting with its type byte:
+ * <ul>
+ * <li>a chromosome record, written before the first read on a chromosome:
+ * the chromosome's id and name;</li>
+ * <li>a read record, for a read with at least one event, of a type giving
+ * the strand of the read: the chromosome id, the read name, the reference
+ * start of the read, the number of events, then for each event its position
+ * as the difference from the previous one, or from the start of the read for
+ * the first, and a one-byte event code;</li>
+ * <li>an end record, written on close, so that truncated files are
+ * detected.</li>
+ * </ul>
+ * Numbers are unsigned LEB128 varints, position differences zigzag-encoded
+ * first, and names are length-prefixed UTF-8. An event code holds the kind
+ * of the event in its top two bits, then the reference base and the read
+ * base in three bits each, as an index into {@link #BASES}.
+ *
+ * @author Mason M Lai
+ */
+public final class ReadMutationLog {
+
+	public static final int MISMATCH = 0;
+	public static final int DELETION = 1;
+	public static final int INSERTION = 2;
+
+	/**
+	 * Bases of event codes. N stands for an unknown or absent base, e.g., the
+	 * read base of a deletion.
+	 */
+	public static final byte[] BASES = {'A', 'C', 'G', 'T', 'N'};
+	private static final int UNKNOWN_BASE = 4;
+
+	private static final int MAGIC = 0x5348504C; // "SHPL"
+	private static final int VERSION = 1;
+	private static final int CHROMOSOME = 0;
+	private static final int POSITIVE_READ = 1;
+	private static final int NEGATIVE_READ = 2;
+	private static final int END = 0xFF;
+
+	private ReadMutationLog() {
+	}
+
+	private static int baseIndex(byte base) {
+		switch (base) {
+		case 'A':
+		case 'a':
+			return 0;
+		case 'C':
+		case 'c':
+			return 1;
+		case 'G':
+		case 'g':
+			return 2;
+		case 'T':
+		case 't':
+			return 3;
+		default:
+			return UNKNOWN_BASE;
+		}
+	}
+
+	/**
+	 * The events of one read, encoded as they are added. One record is reused
+	 * for every read by each thread that parses reads. Not thread-safe.
+	 */
+	public static final class Record {
+		private String readName;
+		private String chromosome;
+		private boolean negative;
+		private int readStart;
+		private int lastPosition;
+		private int numEvents;
+		private byte[] events = new byte[64];
+		private int size;
+
+		/**
+		 * Starts a new read, dropping the events of the previous one.
+		 *
+		 * @param readName    name of the read
+		 * @param chromosome  chromosome the read is aligned to
+		 * @param orientation strand of the read
+		 * @param readStart   reference position of the first aligned base
+		 */
+		public void start(String readName, String chromosome, Strand orientation, int readStart) {
+			this.readName = readName;
+			this.chromosome = chromosome;
+			negative = orientation.equals(Strand.NEGATIVE);
+			this.readStart = readStart;
+			lastPosition = readStart;
+			numEvents = 0;
+			size = 0;
+		}
+
+		public void addMismatch(int position, byte referenceBase, byte readBase) {
+			add(position, MISMATCH, baseIndex(referenceBase), baseIndex(readBase));
+		}
+
+		public void addDeletion(int position, byte referenceBase) {
+			add(position, DELETION, baseIndex(referenceBase), UNKNOWN_BASE);
+		}
+
+		public void addInsertion(int position) {
+			add(position, INSERTION, UNKNOWN_BASE, UNKNOWN_BASE);
+		}
+
+		private void add(int position, int kind, int referenceBase, int readBase) {
+			if (size + 6 > events.length) {
+				events = Arrays.copyOf(events, 2 * events.length);
+			}
+			int delta = position - lastPosition;
+			size = putVarint(events, size, (delta << 1) ^ (delta >> 31));
+			events[size++] = (byte)(kind << 6 | referenceBase << 3 | readBase);
+			lastPosition = position;
+			numEvents++;
+		}
+
+		/**
+		 * @return true if no event has been added since the read was started
+		 */
+		public boolean isEmpty() {
+			return numEvents == 0;
+		}
+	}
+
+	private static int putVarint(byte[] bytes, int offset, int value) {
+		while ((value & ~0x7F) != 0) {
+			bytes[offset++] = (byte)(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		bytes[offset++] = (byte)value;
+		return offset;
+	}
+
+	/**
+	 * Writes records through a buffer to a file channel. Records may be
+	 * written by several threads; each is written whole, in the order the
+	 * threads get to it.
+	 */
+	public static final class Writer implements Closeable {
+		private final File file;
+		private final FileOutputStream stream;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final Map<String, Integer> chromosomeIds;
+		private long numReads;
+
+		/**
+		 * Creates a log file.
+		 *
+		 * @param file the file to create
+		 * @throws IOException if the file already exists or cannot be written
+		 */
+		public Writer(File file) throws IOException {
+			if (file.exists()) {
+				throw new IOException("Mutation log " + file.getAbsolutePath() + " already exists!");
+			}
+			this.file = file;
+			stream = new FileOutputStream(file);
+			channel = stream.getChannel();
+			buffer = ByteBuffer.allocate(1 << 16);
+			chromosomeIds = new HashMap<String, Integer>();
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+		}
+
+		/**
+		 * Writes the record of a read. Reads without events are skipped.
+		 *
+		 * @param record the events of the read
+		 * @throws IOException if the file cannot be written
+		 */
+		public synchronized void write(Record record) throws IOException {
+			if (record.isEmpty()) {
+				return;
+			}
+			Integer id = chromosomeIds.get(record.chromosome);
+			if (id == null) {
+				id = chromosomeIds.size();
+				chromosomeIds.put(record.chromosome, id);
+				byte[] name = record.chromosome.getBytes(StandardCharsets.UTF_8);
+				ensureRoom(11 + name.length);
+				buffer.put((byte)CHROMOSOME);
+				putVarint(id);
+				putVarint(name.length);
+				buffer.put(name);
+			}
+			byte[] name = record.readName.getBytes(StandardCharsets.UTF_8);
+			ensureRoom(21 + name.length);
+			buffer.put((byte)(record.negative ? NEGATIVE_READ : POSITIVE_READ));
+			putVarint(id);
+			putVarint(name.length);
+			buffer.put(name);
+			putVarint(record.readStart);
+			putVarint(record.numEvents);
+			int written = 0;
+			while (written < record.size) {
+				ensureRoom(1);
+				int n = Math.min(record.size - written, buffer.remaining());
+				buffer.put(record.events, written, n);
+				written += n;
+			}
+			numReads++;
+		}
+
+		private void putVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				buffer.put((byte)(value & 0x7F | 0x80));
+				value >>>= 7;
+			}
+			buffer.put((byte)value);
+		}
+
+		private void ensureRoom(int size) throws IOException {
+			if (buffer.remaining() < size) {
+				flush();
+			}
+			if (buffer.remaining() < size) {
+				throw new IOException("Record of " + size + " bytes is too large for the mutation log.");
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		/**
+		 * Writes the end record and closes the file.
+		 *
+		 * @throws IOException if the file cannot be written
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				ensureRoom(1);
+				buffer.put((byte)END);
+				flush();
+			} finally {
+				stream.close();
+			}
+			System.out.println("Mutations of " + numReads + " reads written to " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads a log one read record at a time. The events of the current read
+	 * are available until {@link #next()} is called again.
+	 */
+	public static final class Reader implements Closeable {
+		private final File file;
+		private final DataInputStream in;
+		private final List<String> chromosomes;
+		private String readName;
+		private String chromosome;
+		private Strand orientation;
+		private int readStart;
+		private int numEvents;
+		private int[] positions = new int[64];
+		private byte[] codes = new byte[64];
+		private byte[] nameBytes = new byte[256];
+		private boolean finished;
+
+		/**
+		 * Opens a log file.
+		 *
+		 * @param file the file to read
+		 * @throws IOException if the file cannot be read or is not a log
+		 */
+		public Reader(File file) throws IOException {
+			this.file = file;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			chromosomes = new ArrayList<String>();
+			boolean opened = false;
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException(file + " is not a mutation log.");
+				}
+				int version = in.readInt();
+				if (version != VERSION) {
+					throw new IOException(file + " has format version " + version + ". Only version " + VERSION + " is supported.");
+				}
+				opened = true;
+			} finally {
+				if (!opened) {
+					in.close();
+				}
+			}
+		}
+
+		/**
+		 * Advances to the next read.
+		 *
+		 * @return true if there is another read, false at the end of the log
+		 * @throws IOException if the file cannot be read, is malformed or is
+		 * truncated
+		 */
+		public boolean next() throws IOException {
+			while (!finished) {
+				int type = in.read();
+				switch (type) {
+				case CHROMOSOME:
+					if (readVarint() != chromosomes.size()) {
+						throw new IOException("Malformed mutation log " + file + ": chromosomes are out of order.");
+					}
+					chromosomes.add(readName());
+					break;
+				case POSITIVE_READ:
+				case NEGATIVE_READ:
+					readRead(type == NEGATIVE_READ ? Strand.NEGATIVE : Strand.POSITIVE);
+					return true;
+				case END:
+					finished = true;
+					break;
+				case -1:
+					throw new IOException("Mutation log " + file + " is truncated.");
+				default:
+					throw new IOException("Malformed mutation log " + file + ": record type " + type + " not recognized.");
+				}
+			}
+			return false;
+		}
+
+		private void readRead(Strand orientation) throws IOException {
+			int id = readVarint();
+			if (id >= chromosomes.size()) {
+				throw new IOException("Malformed mutation log " + file + ": chromosome " + id + " is not defined.");
+			}
+			chromosome = chromosomes.get(id);
+			this.orientation = orientation;
+			readName = readName();
+			readStart = readVarint();
+			numEvents = readVarint();
+			if (numEvents > positions.length) {
+				positions = new int[Math.max(numEvents, 2 * positions.length)];
+				codes = new byte[positions.length];
+			}
+			int position = readStart;
+			for (int i = 0; i < numEvents; i++) {
+				int zigzag = readVarint();
+				position += (zigzag >>> 1) ^ -(zigzag & 1);
+				positions[i] = position;
+				codes[i] = in.readByte();
+			}
+		}
+
+		private String readName() throws IOException {
+			int length = readVarint();
+			if (length > nameBytes.length) {
+				nameBytes = new byte[Math.max(length, 2 * nameBytes.length)];
+			}
+			in.readFully(nameBytes, 0, length);
+			return new String(nameBytes, 0, length, StandardCharsets.UTF_8);
+		}
+
+		private int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = in.read();
+				if (b < 0) {
+					throw new EOFException("Mutation log " + file + " is truncated.");
+				}
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed mutation log " + file + ": varint is too long.");
+		}
+
+		public String getReadName() {
+			return readName;
+		}
+
+		public String getChromosome() {
+			return chromosome;
+		}
+
+		public Strand getOrientation() {
+			return orientation;
+		}
+
+		/**
+		 * @return reference position of the first aligned base of the read
+		 */
+		public int getReadStart() {
+			return readStart;
+		}
+
+		public int getNumEvents() {
+			return numEvents;
+		}
+
+		/**
+		 * @param event index of the event in the read
+		 * @return 0-based reference position of the event
+		 */
+		public int getPosition(int event) {
+			return positions[event];
+		}
+
+		/**
+		 * @param event index of the event in the read
+		 * @return {@link ReadMutationLog#MISMATCH},
+		 * {@link ReadMutationLog#DELETION} or {@link ReadMutationLog#INSERTION}
+		 */
+		public int getKind(int event) {
+			return (codes[event] & 0xFF) >>> 6;
+		}
+
+		/**
+		 * @param event index of the event in the read
+		 * @return the reference base, 'N' if unknown
+		 */
+		public byte getReferenceBase(int event) {
+			return BASES[(codes[event] >>> 3) & 7];
+		}
+
+		/**
+		 * @param event index of the event in the read
+		 * @return the read base, 'N' if unknown or absent
+		 */
+		public byte getReadBase(int event) {
+			return BASES[codes[event] & 7];
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
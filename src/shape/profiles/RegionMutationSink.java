@@ -0,0 +1,103 @@
+package shape.profiles;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+import java.io.IOException;
+
+import shape.utils.Nucleotide;
+import shape.utils.TargetRegion;
+
+/**
+ * Adds counts in reference coordinates to the profiles of a target region,
+ * in coordinates relative to the start of the region. Counts outside the
+ * region are dropped, and ranges are clipped to it.
+ *
+ * @author Mason M Lai
+ */
+public final class RegionMutationSink implements MutationSink {
+
+	private final MutationSink profiles;
+	private TargetRegion region;
+
+	/**
+	 * @param profiles a collection with a profile for each region, named after
+	 *                 the region
+	 */
+	public RegionMutationSink(MutationSink profiles) {
+		this.profiles = profiles;
+	}
+
+	/**
+	 * Sets the region that counts are added to.
+	 *
+	 * @param region the region being counted
+	 */
+	public void setRegion(TargetRegion region) {
+		this.region = region;
+	}
+
+	public MutationSink getProfiles() {
+		return profiles;
+	}
+	
+	public TargetRegion getRegion() {
+		return region;
+	}
+
+	private boolean contains(String chromosome, int position) {
+		return position >= region.getStart() && position < region.getEnd() && chromosome.equals(region.getChromosome());
+	}
+
+	/**
+	 * Does nothing, since region profiles are sized to their regions.
+	 */
+	@Override
+	public void ensureLength(String chromosome, int length) {
+	}
+
+	/**
+	 * Gets the end of the region in reference coordinates, since no position
+	 * at or beyond it is counted.
+	 */
+	@Override
+	public int getLength(String chromosome) {
+		return region.getEnd();
+	}
+
+	@Override
+	public void addInsertion(String chromosome, int position, Strand orientation) throws IOException {
+		if (contains(chromosome, position)) {
+			profiles.addInsertion(region.getName(), position - region.getStart(), orientation);
+		}
+	}
+
+	@Override
+	public void addDeletion(String chromosome, int position, Strand orientation) throws IOException {
+		if (contains(chromosome, position)) {
+			profiles.addDeletion(region.getName(), position - region.getStart(), orientation);
+		}
+	}
+
+	@Override
+	public void addMatch(String chromosome, int position, Strand orientation) throws IOException {
+		if (contains(chromosome, position)) {
+			profiles.addMatch(region.getName(), position - region.getStart(), orientation);
+		}
+	}
+
+	@Override
+	public void addMatchRange(String chromosome, int start, int end, Strand orientation) throws IOException {
+		int from = Math.max(start, region.getStart());
+		int to = Math.min(end, region.getEnd());
+		if (from < to && chromosome.equals(region.getChromosome())) {
+			profiles.addMatchRange(region.getName(), from - region.getStart(), to - region.getStart(), orientation);
+		}
+	}
+
+	@Override
+	public void addMutation(String chromosome, Nucleotide n, int position, Strand orientation) throws IOException {
+		if (contains(chromosome, position)) {
+			profiles.addMutation(region.getName(), n, position - region.getStart(), orientation);
+		}
+	}
+}
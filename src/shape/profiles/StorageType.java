@@ -0,0 +1,78 @@
+package shape.profiles;
+
+/**
+ * The ways in which a {@link MutationProfile} can store its per-position
+ * counts.
+ * 
+ * @author Mason M Lai
+ */
+public enum StorageType {
+
+	/** One HashMap per channel. Only covered positions take up memory. */
+	MAP,
+	
+	/** One primitive int array per channel, sized to the length of the strand. */
+	DENSE,
+	
+	/**
+	 * Primitive int arrays in fixed-size pages, allocated only when a read
+	 * first touches them.
+	 */
+	PAGED,
+	
+	/**
+	 * Atomic int arrays in fixed-size segments. Many threads can count into
+	 * the same profiles at once, at the cost of an atomic operation per count.
+	 */
+	ATOMIC,
+	
+	/**
+	 * Primitive ints in a memory-mapped file, outside the heap. Profiles with
+	 * this storage are created through a {@link MappedProfileFile}.
+	 */
+	MAPPED;
+	
+	// Below this fraction of covered positions, the per-entry cost of a map is
+	// cheaper than allocating whole pages. Above the upper fraction, nearly
+	// every page is touched anyway and the page table is wasted.
+	private static final double MAP_MAX_DENSITY = 0.01;
+	private static final double PAGED_MAX_DENSITY = 0.5;
+	
+	/**
+	 * Chooses the cheapest storage for a strand given the fraction of its
+	 * positions that are expected to be covered by at least one read.
+	 * 
+	 * @param expectedDensity expected fraction of covered positions, from 0 to 1
+	 * @return MAP for very sparse strands, PAGED for moderately sparse strands
+	 * and DENSE otherwise
+	 */
+	public static StorageType forDensity(double expectedDensity) {
+		if (expectedDensity < 0 || Double.isNaN(expectedDensity)) {
+			throw new IllegalArgumentException("Expected density must be non-negative!");
+		}
+		if (expectedDensity < MAP_MAX_DENSITY) {
+			return MAP;
+		} else if (expectedDensity < PAGED_MAX_DENSITY) {
+			return PAGED;
+		} else {
+			return DENSE;
+		}
+	}
+	
+	CounterStorage newStorage(int numChannels, int length) {
+		switch (this) {
+		case MAP:
+			return new MapCounterStorage(numChannels, length);
+		case DENSE:
+			return new DenseCounterStorage(numChannels, length);
+		case PAGED:
+			return new PagedCounterStorage(numChannels, length);
+		case ATOMIC:
+			return new AtomicCounterStorage(numChannels, length);
+		case MAPPED:
+			throw new UnsupportedOperationException("Mapped profiles must be created through a MappedProfileFile.");
+		default:
+			throw new IllegalArgumentException("Storage type " + this + " not recognized.");
+		}
+	}
+}
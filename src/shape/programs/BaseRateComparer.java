@@ -1,13 +1,47 @@
 package shape.programs;
 
+import java.io.File;
+import java.io.IOException;
+
+import shape.profiles.CountsSource;
+import shape.profiles.RateComparison;
+
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Compares the mutation rates of a SHAPE-modified sample with those of an
+ * untreated sample, and optionally a denatured sample, from the binary
+ * profile files written by MutationCounter with -x or by ProfileMerger. Writes
+ * the rate difference and ratio of each position covered in every sample,
+ * and, with a denatured sample, its reactivity. See {@link RateComparison}.
+ * <p>
+ * The files are streamed one chromosome at a time, so memory use does not
+ * depend on their size.
+ *
+ * @author Mason M Lai
+ */
 public class BaseRateComparer {
+	public static void main(String[] args) throws IOException {
 
-	/**
-	 * @param args
-	 */
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-m", "Binary profile file of the modified sample", true);
+		p.addStringArg("-u", "Binary profile file of the untreated sample", true);
+		p.addStringArg("-d", "Binary profile file of the denatured sample. If given, reactivities are also written. " +
+				"Defaults to none.", false, null);
+		p.addStringArg("-o", "Output .csv file", true);
+		p.addIntArg("-t", "Coverage threshold. Positions with a number of reads less than this number " +
+				"in any sample are not reported. Defaults to 1.", false, 1);
+		p.addIntArg("-p", "Number of threads, each comparing one chromosome at a time. Defaults to the " +
+				"number of processors.", false, Runtime.getRuntime().availableProcessors());
+		p.parse(args);
 
-	}
+		CountsSource modified = CountsSource.fromFile(new File(p.getStringArg("-m")));
+		CountsSource untreated = CountsSource.fromFile(new File(p.getStringArg("-u")));
+		String denaturedFile = p.getStringArg("-d");
+		CountsSource denatured = denaturedFile == null ? null : CountsSource.fromFile(new File(denaturedFile));
 
+		RateComparison comparison = new RateComparison(modified, untreated, denatured, p.getIntArg("-t"));
+		comparison.toFile(new File(p.getStringArg("-o")), p.getIntArg("-p"));
+		System.out.println("Program complete.");
+	}
 }
@@ -2,27 +2,37 @@ package shape.programs;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
-import shape.mdtag.CigarStack;
+import shape.mdtag.AlignmentWalker;
 import shape.mdtag.GenericOperator;
-import shape.mdtag.MdTag;
-import shape.mdtag.MdTagOperator;
-import shape.mdtag.MdTagStack;
+import shape.mdtag.PackedMdTag;
+import shape.profiles.BinaryProfileFile;
+import shape.profiles.MutationEvents;
 import shape.profiles.MutationProfileCollection;
+import shape.profiles.MutationSink;
+import shape.profiles.ProfileCheckpoint;
+import shape.profiles.ReadMutationLog;
+import shape.profiles.RegionMutationSink;
+import shape.profiles.StorageType;
 import shape.utils.BamProcessor;
 import shape.utils.Nucleotide;
+import shape.utils.PipelineSettings;
+import shape.utils.ProcessingMetrics;
+import shape.utils.ReadErrorEvent;
+import shape.utils.ReadEvents;
+import shape.utils.TargetRegion;
+import shape.utils.VisitedPositions;
 
 import net.sf.samtools.Cigar;
-import net.sf.samtools.CigarOperator;
-import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
 
-import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.Annotation.Strand;
 import guttmanlab.core.annotation.MappedFragment;
-import guttmanlab.core.annotation.PairedMappedFragment;
 import guttmanlab.core.annotation.SAMFragment;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
 import guttmanlab.core.annotationcollection.BAMFragmentCollectionFactory;
@@ -38,26 +48,219 @@ class MutationCounterTest {
 		p.addIntArg("-t", "Coverage threshold. Positions with a number of reads less than this " +
 				"number are not reported. Defaults to 1, i.e., excludes positions with no " +
 				"coverage.", false, 1);
+		p.addStringArg("-s", "Storage type of the mutation profiles. MAP stores only covered " +
+				"positions; DENSE stores every position in primitive arrays; PAGED allocates arrays in blocks " +
+				"as reads reach them; ATOMIC uses atomic arrays that several threads can share. Defaults to MAP.", false, "MAP");
+		p.addStringArg("-f", "Memory-mapped profile file to create. If given, counts are kept in this " +
+				"file instead of on the heap, and the file can be reopened later without recounting.", false, null);
+		p.addIntArg("-p", "Number of threads. With more than one, chromosomes are parsed in parallel " +
+				"through the .bam index, which must be present. Defaults to 1.", false, 1);
+		p.addIntArg("-w", "Number of parser threads. If positive, the calling thread reads batches of reads, " +
+				"this many threads parse them, and the threads of -a add the results to the profiles, " +
+				"all at once. Cannot be combined with -p. Defaults to 0, i.e., no pipeline.", false, 0);
+		p.addIntArg("-a", "Number of accumulator threads when -w is given. More than one requires ATOMIC storage. " +
+				"Defaults to 1.", false, 1);
+		p.addIntArg("-b", "Number of reads or read pairs per batch when -w is given. Defaults to 1024.", false, 1024);
+		p.addIntArg("-q", "Number of batches waiting between two stages of the pipeline before the earlier " +
+				"stage has to wait. Defaults to 16.", false, 16);
+		p.addStringArg("-r", "BED file or Picard interval list of target regions. If given, only reads " +
+				"overlapping the regions are read, through the .bam index, and each region is reported " +
+				"as its own profile in coordinates relative to its start.", false, null);
+		p.addStringArg("-c", "Checkpoint directory. Counts are saved there as each chromosome is finished, " +
+				"so that the run can be resumed by running again with the same directory. The .bam file " +
+				"must be sorted by coordinate, and indexed to resume. Cannot be combined with -p, -w, -r or -l.", false, null);
+		p.addStringArg("-x", "Binary profile file to create. If given, every count is also written to this " +
+				"compact file, which ProfileMerger can sum with the files of other runs, e.g., of other " +
+				"lanes of the same sample.", false, null);
+		p.addStringArg("-l", "Binary per-read mutation log to create. If given, the mismatches, deletions and " +
+				"insertions of each read are written to it as reads are counted, for analyses of mutations " +
+				"occurring together. See ReadMutationLog.", false, null);
+		p.addIntArg("-d", "Number of decimal places of the rates in the output, from 0 to 9. Defaults to -1, " +
+				"i.e., rates are written in full as by Double.toString.", false, MutationProfileCollection.FULL_PRECISION);
+		p.addBooleanArg("-z", "Write the outputs BGZF-compressed and tab-separated, each with a tabix index, " +
+				"so that regions can be fetched with tabix. The .csv file becomes a .tsv.gz file. Defaults to false.", false, false);
+		p.addBooleanArg("-g", "Also write the rate tracks of each strand as bigWig files, which genome " +
+				"browsers load directly. Defaults to false.", false, false);
+		p.addBooleanArg("-u", "Write each run of adjacent positions with the same rate as one .bedgraph " +
+				"interval rather than one line per position. The .csv data is unchanged. Defaults to false.", false, false);
+		p.addBooleanArg("-e", "Also write the counts of the .csv output as an Arrow IPC (Feather) file, " +
+				"which dataframe libraries load without parsing text. Defaults to false.", false, false);
+		p.addBooleanArg("-m", "Print an estimate of the memory used by the mutation profiles. Defaults to false.", false, false);
+		p.addIntArg("-v", "Seconds between progress lines, each with the read rate and the time left. While they are " +
+				"printed, throughput, stage times and queue depths are also readable over JMX as " +
+				ProcessingMetrics.OBJECT_NAME + ". 0 prints none and records no metrics. Defaults to 60.", false, 60);
 		p.parse(args);
 		
 		String inputFile = p.getStringArg("-i");
 		String outputDir = p.getStringArg("-o");
 		int excludedBasesFromEnd = p.getIntArg("-n");
 		int coverageThreshold = p.getIntArg("-t");
+		StorageType storageType = StorageType.valueOf(p.getStringArg("-s").toUpperCase());
+		if (storageType.equals(StorageType.MAPPED)) {
+			throw new IllegalArgumentException("MAPPED is not a storage type for -s. To keep counts in a memory-mapped file, " +
+					"give the file with -f.");
+		}
+		boolean reportMemory = p.getBooleanArg("-m");
+		String profileFile = p.getStringArg("-f");
+		String binaryFile = p.getStringArg("-x");
+		String logFile = p.getStringArg("-l");
+		int precision = p.getIntArg("-d");
+		boolean compressed = p.getBooleanArg("-z");
+		boolean bigWig = p.getBooleanArg("-g");
+		boolean collapseRuns = p.getBooleanArg("-u");
+		boolean arrow = p.getBooleanArg("-e");
+		int progressPeriod = p.getIntArg("-v");
+		if (progressPeriod < 0) {
+			throw new IllegalArgumentException("Seconds between progress lines (-v) cannot be negative.");
+		}
+		int numThreads = p.getIntArg("-p");
+		int numParsers = p.getIntArg("-w");
+		if (numParsers > 0 && numThreads > 1) {
+			throw new IllegalArgumentException("Parallel parsing by chromosome (-p) and the read pipeline (-w) cannot be combined.");
+		}
+		String regionFile = p.getStringArg("-r");
+		if (regionFile != null && (numParsers > 0 || numThreads > 1)) {
+			throw new IllegalArgumentException("Target regions (-r) cannot be combined with -p or -w.");
+		}
+		String checkpointDir = p.getStringArg("-c");
+		if (checkpointDir != null && (numParsers > 0 || numThreads > 1 || regionFile != null)) {
+			throw new IllegalArgumentException("Checkpoints (-c) cannot be combined with -p, -w or -r.");
+		}
+		if (checkpointDir != null && logFile != null) {
+			throw new IllegalArgumentException("Checkpoints (-c) cannot be combined with the mutation log (-l), " +
+					"which would miss the reads of chromosomes finished before a resume.");
+		}
+		PipelineSettings pipelineSettings = null;
+		if (numParsers > 0) {
+			pipelineSettings = new PipelineSettings(numParsers, p.getIntArg("-a"), p.getIntArg("-b"), p.getIntArg("-q"));
+			if (pipelineSettings.getNumAccumulators() > 1 && !storageType.equals(StorageType.ATOMIC)) {
+				throw new IllegalArgumentException("More than one accumulator thread requires ATOMIC storage.");
+			}
+		}
 		
 		AnnotationCollection<? extends MappedFragment> bam = BAMFragmentCollectionFactory.createFromBam(inputFile);
+		
+		// Size the profiles from the sequence dictionary rather than from an extra pass through the reads.
+		SAMFileReader headerReader = new SAMFileReader(new File(inputFile));
+		SAMFileHeader header = headerReader.getFileHeader();
+		boolean hasIndex = headerReader.hasIndex();
+		headerReader.close();
+		
+		List<TargetRegion> regions = null;
+		if (regionFile != null) {
+			if (!hasIndex) {
+				throw new IOException("Counting target regions requires an index for " + inputFile + ".");
+			}
+			regions = new ArrayList<TargetRegion>();
+			for (TargetRegion region : TargetRegion.readRegions(new File(regionFile))) {
+				if (header.getSequence(region.getChromosome()) == null) {
+					System.out.println("Region " + region + " is not on a sequence in the .bam header. Skipping it.");
+				} else {
+					regions.add(region);
+				}
+			}
+		}
 
-		MutationProfileCollection mutationProfiles = new MutationProfileCollection(bam, coverageThreshold);
+		MutationProfileCollection mutationProfiles;
+		if (regions != null && profileFile != null) {
+			mutationProfiles = new MutationProfileCollection(regions, coverageThreshold, new File(profileFile));
+		} else if (regions != null) {
+			mutationProfiles = new MutationProfileCollection(regions, coverageThreshold, storageType);
+		} else if (profileFile != null) {
+			mutationProfiles = new MutationProfileCollection(header, coverageThreshold, new File(profileFile));
+		} else {
+			mutationProfiles = new MutationProfileCollection(header, coverageThreshold, storageType);
+		}
 		MutationCounter mutationCounter = new MutationCounter(excludedBasesFromEnd);
-		new MutationCounter(excludedBasesFromEnd);
-		mutationCounter.parseReads(bam, mutationProfiles);
-		mutationProfiles.toFile(outputDir + bam.toString());
-		//mutationCounter.writeMutationsToFile(bam, new File(outputDir + bam.toString() + "_readMutations.txt"));
+		ReadMutationLog.Writer mutationLog = logFile == null ? null : new ReadMutationLog.Writer(new File(logFile));
+		mutationCounter.setMutationLog(mutationLog);
+		// Metrics cost a second reader of the .bam file, so they are only kept while progress is printed.
+		ProcessingMetrics metrics = progressPeriod > 0 ? new ProcessingMetrics(new File(inputFile)) : null;
+		try {
+			if (metrics != null) {
+				metrics.register();
+				metrics.setProfiles(mutationProfiles);
+				mutationCounter.setMetrics(metrics);
+				metrics.startProgress(progressPeriod);
+			}
+			try {
+				if (checkpointDir != null) {
+					ProfileCheckpoint checkpoint = ProfileCheckpoint.open(new File(checkpointDir), inputFile, excludedBasesFromEnd, mutationProfiles);
+					try {
+						Set<String> finished = checkpoint.getFinishedChromosomes();
+						if (finished.isEmpty()) {
+							mutationCounter.parseReads(bam, mutationProfiles, checkpoint);
+						} else {
+							if (!hasIndex) {
+								throw new IOException("Resuming from a checkpoint requires an index for " + inputFile + ".");
+							}
+							checkpoint.restore();
+							List<String> remaining = new ArrayList<String>();
+							for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+								if (!finished.contains(sequence.getSequenceName())) {
+									remaining.add(sequence.getSequenceName());
+								}
+							}
+							mutationCounter.parseReads(bam, mutationProfiles, remaining, checkpoint);
+						}
+					} finally {
+						// Waits for the last chromosomes to be saved before the profiles are read for output.
+						checkpoint.close();
+					}
+				} else if (numThreads > 1) {
+					mutationCounter.parseReads(inputFile, mutationProfiles, numThreads);
+				} else if (regions != null) {
+					mutationCounter.parseReads(bam, regions, mutationProfiles);
+				} else if (pipelineSettings != null) {
+					mutationCounter.parseReads(bam, mutationProfiles, pipelineSettings);
+				} else {
+					mutationCounter.parseReads(bam, mutationProfiles);
+				}
+			} finally {
+				if (metrics != null) {
+					metrics.stopProgress();
+				}
+				if (mutationLog != null) {
+					mutationLog.close();
+				}
+			}
+			if (reportMemory) {
+				System.out.print(mutationProfiles.getMemoryReport());
+			}
+			long writeStart = System.nanoTime();
+			mutationProfiles.toFile(outputDir + bam.toString(), precision, Runtime.getRuntime().availableProcessors(), compressed, collapseRuns);
+			if (bigWig) {
+				mutationProfiles.toBigWig(outputDir + bam.toString());
+			}
+			if (arrow) {
+				mutationProfiles.toArrow(outputDir + bam.toString());
+			}
+			if (binaryFile != null) {
+				BinaryProfileFile.write(mutationProfiles, new File(binaryFile));
+			}
+			if (metrics != null) {
+				metrics.addTime(ProcessingMetrics.Stage.WRITE, System.nanoTime() - writeStart);
+			}
+			if (mutationProfiles.getMappedFile() != null) {
+				mutationProfiles.getMappedFile().close();
+			}
+		} finally {
+			if (metrics != null) {
+				metrics.close();
+			}
+		}
 		System.out.println("Program complete.");
 	}
 	
 	static protected class MutationCounter extends BamProcessor<MutationProfileCollection> {
 		
+		// Reused for every read to avoid allocating a new MD tag and walker each time.
+		private final PackedMdTag mdTag = new PackedMdTag();
+		private final AlignmentWalker walker = new AlignmentWalker();
+		private final ReadMutationLog.Record logRecord = new ReadMutationLog.Record();
+		private RegionMutationSink regionProfiles;
+		private ReadMutationLog.Writer mutationLog;
+		
 		protected MutationCounter() {
 			this(0);
 		}
@@ -66,235 +269,274 @@ class MutationCounterTest {
 			super(n);
 		}
 		
+		/**
+		 * Logs the mutations of every read parsed from now on, by this counter
+		 * and the workers it creates.
+		 * 
+		 * @param mutationLog the log to write to, or null to stop logging
+		 */
+		protected void setMutationLog(ReadMutationLog.Writer mutationLog) {
+			this.mutationLog = mutationLog;
+		}
+		
+		@Override
+		protected BamProcessor<MutationProfileCollection> newWorker() {
+			MutationCounter worker = new MutationCounter(numExcludedBasesFromEnd);
+			worker.mutationLog = mutationLog;
+			return worker;
+		}
+		
+		// Buffers the counts of a batch of reads until an accumulator thread applies them.
+		@Override
+		protected ReadEvents<MutationProfileCollection> newEvents(MutationProfileCollection mutationProfiles) {
+			return new MutationEvents(mutationProfiles);
+		}
+		
+		/**
+		 * Creates a partition holding one chromosome on the heap. Partitions of
+		 * a memory-mapped collection are paged, since they only live until they
+		 * are merged.
+		 */
+		@Override
+		protected MutationProfileCollection newPartition(MutationProfileCollection mutationProfiles, String chromosome, int length) {
+			StorageType storageType = mutationProfiles.getStorageType();
+			if (storageType.equals(StorageType.MAPPED)) {
+				storageType = StorageType.PAGED;
+			}
+			MutationProfileCollection partition = new MutationProfileCollection(mutationProfiles.getCoverageThreshold(), storageType);
+			if (length > 0) {
+				partition.declareChromosome(chromosome, length);
+			}
+			return partition;
+		}
+		
+		@Override
+		protected void mergePartition(MutationProfileCollection mutationProfiles, MutationProfileCollection partition) {
+			mutationProfiles.merge(partition);
+		}
+		
+		protected final void parseRead(SAMFragment read, MutationProfileCollection mutationProfiles, VisitedPositions visitedPositions) throws IOException {
+			countMutations(read, mutationProfiles, visitedPositions);
+		}
+		
+		protected final void parseRead(SAMFragment read, MutationProfileCollection mutationProfiles, TargetRegion region, VisitedPositions visitedPositions) throws IOException {
+			if (regionProfiles == null || regionProfiles.getProfiles() != mutationProfiles) {
+				regionProfiles = new RegionMutationSink(mutationProfiles);
+			}
+			regionProfiles.setRegion(region);
+			countMutations(read, regionProfiles, visitedPositions);
+		}
+		
+		protected final void recordRead(SAMFragment read, ReadEvents<MutationProfileCollection> events, VisitedPositions visitedPositions) throws IOException {
+			countMutations(read, (MutationEvents)events, visitedPositions);
+		}
+		
 		/**
 		 * Counts the mutations in an individual read and updates the counts.
 		 * 
 		 * @param read the read to be parsed
-		 * @param the collection of mutation data to be updated
-		 * @param a set of visited positions in reference coordinates. These positions are skipped to avoid double-counting.
+		 * @param the profiles, or events for the profiles, to be updated
+		 * @param visited positions in reference coordinates. These positions are skipped to avoid double-counting.
 		 * @throws IOException if any reads do not have an MD tag
 		 * @throws IOException if any reads do not have a CIGAR string
 		 */
-		protected final void parseRead(SAMFragment read, MutationProfileCollection mutationProfiles, Set<Integer> visitedPositions) throws IOException {
+		private void countMutations(SAMFragment read, MutationSink mutationProfiles, VisitedPositions visitedPositions) throws IOException {
 			String referenceName = read.getReferenceName();
 			int referencePosition = read.getReferenceStartPosition();
 			int referenceEndPosition = read.getReferenceEndPosition();
-			int readPosition = 0;
 			Strand orientation = read.getOrientation();
+			
+			// Grows the profile if the header did not list this chromosome or gave it too short a length.
+			mutationProfiles.ensureLength(referenceName, referenceEndPosition);
 				
-			for (int i = numExcludedBasesFromEnd; i > 0; i--) {
-				visitedPositions.add(referencePosition + i - 1);
-				visitedPositions.add(referenceEndPosition - i + 1);
-			}
+			visitedPositions.excludeEnds(referencePosition, referenceEndPosition, numExcludedBasesFromEnd);
 				
 			String mdTagString = ((SAMFragment)read).getStringTag("MD");
 			if (mdTagString == null || mdTagString.isEmpty()) {
-				throw new IOException("Read " + read.getName() + " does not have an MD tag.");
+				String message = "Read " + read.getName() + " does not have an MD tag.";
+				traceError(read, ReadErrorEvent.MISSING_MD_TAG, message);
+				throw new IOException(message);
+			}
+			// Times only the reads the recorder samples, so the rest pay for no clock reads.
+			ProcessingMetrics.Recorder recorder = getRecorder();
+			boolean sampled = recorder != null && recorder.isSampled();
+			long stageStart = sampled ? System.nanoTime() : 0;
+			if (!mdTag.parse(mdTagString)) {
+				String message = "Read " + read.getName() + " has invalid MD tag " + mdTagString + ". Ignoring the tag from the first invalid token on.";
+				System.err.println(message);
+				traceError(read, ReadErrorEvent.INVALID_MD_TAG, message);
+				if (recorder != null) {
+					recorder.addSkipped(ProcessingMetrics.SkipReason.INVALID_MD_TAG);
+				}
+			}
+			if (sampled) {
+				long now = System.nanoTime();
+				recorder.addSampledTime(ProcessingMetrics.Stage.MD_PARSE, now - stageStart);
+				stageStart = now;
 			}
-			MdTag mdTag = new MdTag(mdTagString);
-			MdTagStack mdTagStack = new MdTagStack(mdTag);
 			
 			Cigar cigar = ((SAMFragment)read).getSamRecord().getCigar();
 			if (cigar == null) {
-				throw new IOException("Read " + read.getName() + " does not have a CIGAR string.");
+				String message = "Read " + read.getName() + " does not have a CIGAR string.";
+				traceError(read, ReadErrorEvent.MISSING_CIGAR, message);
+				throw new IOException(message);
+			}
+			walker.reset(cigar, mdTag, referencePosition);
+			byte[] readBases = ((SAMFragment)read).getSamRecord().getReadBases();
+			int referenceLength = mutationProfiles.getLength(referenceName);
+			if (mutationLog != null) {
+				logRecord.start(read.getName(), referenceName, orientation, referencePosition);
 			}
-			CigarStack cigarStack = new CigarStack(cigar);
-			
-			CigarOperator currentCigarOperator = null;
-			MdTagOperator currentMdTagOperator = null;
 			
-			while (cigarStack.hasElements()) {
-				currentCigarOperator = cigarStack.popOperator();
-				
-				/* MD tags ignore insertions, soft clipping. and splice junctions. */
-				if (!(currentCigarOperator.equals(CigarOperator.INSERTION) || 
-					  currentCigarOperator.equals(CigarOperator.SOFT_CLIP) ||
-					  currentCigarOperator.equals(CigarOperator.SKIPPED_REGION))) {
-					currentMdTagOperator = mdTagStack.popOperator();
-				}
-				
-				boolean inReferenceBounds = (referencePosition >= 0) && 
-						(referencePosition < mutationProfiles.getLength(referenceName));
-				if (inReferenceBounds && !visitedPositions.contains(referencePosition)) {
-					
-					// If the read starts with soft-clipping, this method will be called with a
-					// null MdTagOperator. This is OK, because the CigarOperator will be SOFT_CLIP,
-					// and the MdTagOperator will not be inspected.
-					GenericOperator op = detectMutation(currentCigarOperator, currentMdTagOperator);
-					switch (op) {
-					case MATCH:
-					case UNKNOWN:
-						// Unknown operators likely correspond to 'N's in the MD tag. 
-						// Count them as matches.
-						mutationProfiles.addMatch(referenceName, referencePosition, orientation);
-						break;
-					case SOFT_CLIP:
-						// Ignore soft-clipped positions.
-						break;
-					case DELETION:
-					case DELETION_OF_A:
-					case DELETION_OF_C:
-					case DELETION_OF_G:
-					case DELETION_OF_T:
-						mutationProfiles.addMatch(referenceName, referencePosition, orientation);
-						break;
-					case UNKNOWN_MISMATCH:
-					case A_TO_N:
-					case C_TO_N:
-					case G_TO_N:
-					case T_TO_N:
-						// Get the read base that we've mutated to.
-						String readBase = ((SAMFragment)read).getSamRecord().getReadString().
-								substring(readPosition, readPosition + 1);
-						// Ignoring uncertain bases in reads for now.
-						// Only recognizing 'A', 'C', 'G', 'T'.
-						if (readBase.charAt(0) != 'N') {
-							mutationProfiles.addMutation(referenceName,
-									Nucleotide.valueOf(readBase), referencePosition, orientation);
+			while (nextOperator(read)) {
+				GenericOperator op = walker.getOperator();
+				int start = walker.getReferenceStart();
+				int length = walker.getLength();
+				switch (op) {
+				case MATCH:
+				case UNKNOWN:
+				case DELETION:
+				case DELETION_OF_A:
+				case DELETION_OF_C:
+				case DELETION_OF_G:
+				case DELETION_OF_T:
+					// Unknown operators likely correspond to 'N's in the MD tag. 
+					// Count them, and deleted positions, as matches.
+					// Counts each maximal stretch of unvisited positions as one range.
+					int from = Math.max(start, 0);
+					int to = Math.min(start + length, referenceLength);
+					while (from < to) {
+						int runStart = visitedPositions.nextUnvisited(from, to);
+						if (runStart == to) {
+							break;
 						}
-						break;
-					case INSERTION:
-						mutationProfiles.addInsertion(referenceName, referencePosition, orientation);
-						break;
-					default:
-						throw new IOException("Operator " + op.toString() + " encountered when" + 
-								" parsing mutations in read " + read.getName() + ". Don't know" +
-								"what to do with it.");
+						int runEnd = visitedPositions.nextVisited(runStart, to);
+						mutationProfiles.addMatchRange(referenceName, runStart, runEnd, orientation);
+						if (mutationLog != null && op.isDeletion()) {
+							for (int position = runStart; position < runEnd; position++) {
+								logRecord.addDeletion(position, referenceBase(op));
+							}
+						}
+						visitedPositions.addRange(runStart, runEnd);
+						from = runEnd;
 					}
-
-					// Soft-clipping of a read may overlap with meaningful bases from its pair, so we haven't visited these soft-clipped positions. 
-					if (!currentCigarOperator.equals(CigarOperator.SOFT_CLIP)) {
-						visitedPositions.add(referencePosition);
+					break;
+				case UNKNOWN_MISMATCH:
+				case A_TO_N:
+				case C_TO_N:
+				case G_TO_N:
+				case T_TO_N:
+					for (int i = 0; i < length; i++) {
+						int position = start + i;
+						if (isCountable(position, referenceLength, visitedPositions)) {
+							// Get the read base that we've mutated to.
+							// Ignoring uncertain bases in reads for now.
+							// Only recognizing 'A', 'C', 'G', 'T'.
+							byte readBase = readBases[walker.getReadStart() + i];
+							if (readBase != 'N') {
+								mutationProfiles.addMutation(referenceName, toNucleotide(readBase), position, orientation);
+							}
+							if (mutationLog != null) {
+								logRecord.addMismatch(position, referenceBase(op), readBase);
+							}
+							visitedPositions.add(position);
+						}
 					}
-				}
-				
-				if (currentCigarOperator.consumesReferenceBases()) {
-					referencePosition += 1;
-				}
-				if (currentCigarOperator.consumesReadBases()) {
-					readPosition += 1;
+					break;
+				case INSERTION:
+					// Every inserted base sits at the same reference position, so only the first is counted.
+					if (isCountable(start, referenceLength, visitedPositions)) {
+						mutationProfiles.addInsertion(referenceName, start, orientation);
+						if (mutationLog != null) {
+							logRecord.addInsertion(start);
+						}
+						visitedPositions.add(start);
+					}
+					break;
+				case SOFT_CLIP:
+					// Ignore soft-clipped positions. Soft-clipping of a read may overlap with
+					// meaningful bases from its pair, so these positions are not marked as visited.
+					break;
+				case SPLICE_JUNCTION:
+					// Skipped regions have no read bases, so there is nothing to count.
+					break;
+				default:
+					String message = "Operator " + op.toString() + " encountered when" + 
+							" parsing mutations in read " + read.getName() + ". Don't know" +
+							"what to do with it.";
+					traceError(read, ReadErrorEvent.UNKNOWN_OPERATOR, message);
+					throw new IOException(message);
 				}
 			}
-		}
-
-		/**
-		 * Writes each individual mutation in every read to a text file. Each
-		 * mutation occupies one line of the file. This file might be very
-		 * large!
-		 * 
-		 * @param bam - the .bam file to be processed
-		 * @param file - the output file
-		 * @throws IOException if a read of a type other than SAMFragment and
-		 * PairedMappedFragment is encountered in the .bam file.
-		 */
-		@SuppressWarnings("unchecked")
-		protected void writeMutationsToFile(AnnotationCollection<? extends Annotation> bam, File file) throws IOException {
-			System.out.println("Writing individual read mutations to file.");
-			if (file.exists()) {
-				System.out.println(file.getName() + " already exists!");
-				System.exit(1);
+			if (mutationLog != null) {
+				mutationLog.write(logRecord);
 			}
-			
-			PrintWriter output = new PrintWriter(file);
+			if (sampled) {
+				recorder.addSampledTime(ProcessingMetrics.Stage.WALK, System.nanoTime() - stageStart);
+			}
+		}
+		
+		private boolean nextOperator(SAMFragment read) throws IOException {
 			try {
-				CloseableIterator<? extends Annotation> reads = bam.sortedIterator();
-				while (reads.hasNext()) {
-					Annotation read = reads.next();
-					if (read instanceof SAMFragment) {
-						writeMutationsInReadToFile((SAMFragment)read, output, new HashSet<Integer>());
-					} else if (read instanceof PairedMappedFragment<?>) {
-						writeMutationsInReadToFile((PairedMappedFragment<? extends MappedFragment>)read, output, new HashSet<Integer>());
-					} else {
-						throw new IOException("Mutation counter only accepts SAMFragments and PairedMappedFragments. Other object encountered.");
-					}
-				}
-			} finally {
-				output.close();
-				System.out.println("Mutations written to " + file.getAbsolutePath());
+				return walker.next();
+			} catch (IOException e) {
+				traceError(read, ReadErrorEvent.CIGAR_MD_MISMATCH, "Read " + read.getName() + ": " + e.getMessage());
+				throw e;
 			}
 		}
 		
-		/**
-		 * Writes the mutations in a PairedMappedFragment to file.
-		 * 
-		 * @param readPair - PairedMappedFragment containing mutations to be counted
-		 * @param output - output PrintWriter
-		 * @param visitedPositions - a set of visited positions that will be skipped to avoid double-counting
-		 * @throws IOException if there are inconsistencies between the MD tag and the CIGAR string
-		 */
-		private void writeMutationsInReadToFile(PairedMappedFragment<? extends MappedFragment> readPair, PrintWriter output, Set<Integer> visitedPositions) throws IOException {
-			Annotation read1 = readPair.getRead1();
-			Annotation read2 = readPair.getRead2();
-			writeMutationsInReadToFile((SAMFragment)read1, output, visitedPositions);
-			writeMutationsInReadToFile((SAMFragment)read2, output, visitedPositions);
+		private static void traceError(SAMFragment read, String kind, String message) {
+			ReadErrorEvent event = new ReadErrorEvent();
+			if (event.shouldCommit()) {
+				event.chromosome = read.getReferenceName();
+				event.position = read.getReferenceStartPosition();
+				event.readName = read.getName();
+				event.kind = kind;
+				event.message = message;
+				event.commit();
+			}
 		}
-
+		
+		private static boolean isCountable(int position, int referenceLength, VisitedPositions visitedPositions) {
+			return position >= 0 && position < referenceLength && !visitedPositions.contains(position);
+		}
+		
 		/**
-		 * Writes the mutations in a SAMFragment to file.
-		 * 
-		 * @param read - SAMFragment containing mutations to be counted
-		 * @param output - output PrintWriter
-		 * @param visitedPositions - a set of visited positions that will be skipped to avoid double-counting
-		 * @throws IOException if there are inconsistencies between the MD tag and the CIGAR string
+		 * Gets the reference base of a mismatch or deletion, 'N' if the MD tag
+		 * did not give it.
 		 */
-		private void writeMutationsInReadToFile(SAMFragment read, PrintWriter output, Set<Integer> visitedPositions) throws IOException {
-			String referenceName = read.getReferenceName();
-			String readName = read.getName();
-			int referencePosition = read.getReferenceStartPosition();
-			int referenceEndPosition = read.getReferenceEndPosition();
-			int readPosition = 0;
-				
-			for (int i = numExcludedBasesFromEnd; i > 0; i--) {
-				visitedPositions.add(referencePosition + i - 1);
-				visitedPositions.add(referenceEndPosition - i + 1);
+		private static byte referenceBase(GenericOperator op) {
+			switch (op) {
+			case A_TO_N:
+			case DELETION_OF_A:
+				return 'A';
+			case C_TO_N:
+			case DELETION_OF_C:
+				return 'C';
+			case G_TO_N:
+			case DELETION_OF_G:
+				return 'G';
+			case T_TO_N:
+			case DELETION_OF_T:
+				return 'T';
+			default:
+				return 'N';
+			}
+		}
+		
+		private static Nucleotide toNucleotide(byte base) {
+			switch (base) {
+			case 'A':
+				return Nucleotide.A;
+			case 'C':
+				return Nucleotide.C;
+			case 'G':
+				return Nucleotide.G;
+			case 'T':
+				return Nucleotide.T;
+			default:
+				return Nucleotide.valueOf(String.valueOf((char)base));
 			}
-				
-			String mdTagString = read.getStringTag("MD");
-			MdTag mdTag = new MdTag(mdTagString);
-			MdTagStack mdTagStack = new MdTagStack(mdTag);
-				
-			Cigar cigar = read.getSamRecord().getCigar();
-			CigarStack cigarStack = new CigarStack(cigar);
-
-			CigarOperator currentCigarOperator = null;
-			MdTagOperator currentMdTagOperator = null;
-
-			while (cigarStack.hasElements()) {
-				currentCigarOperator = cigarStack.popOperator();
-
-				/* MD tags ignore insertions and soft clipping. */
-				if (!currentCigarOperator.equals(CigarOperator.INSERTION) || !currentCigarOperator.equals(CigarOperator.SOFT_CLIP)) {
-					currentMdTagOperator = mdTagStack.popOperator();
-				}
-
-				if (!visitedPositions.contains(referencePosition)) {
-					GenericOperator op = detectMutation(currentCigarOperator, currentMdTagOperator);
-					// Note: Add 1 to reference position because IGV uses 1-based indexing.
-					
-					if (op.isDeletion()) {
-						output.println(referenceName + " " + readName + " " + (referencePosition + 1) + " D");
-
-					} else if (op.equals(GenericOperator.INSERTION)) {
-						output.println(referenceName + " " + readName + " " + (referencePosition + 1) + " I");
-
-					} else if (op.isMutation()) {
-						byte referenceBase = MdTagOperator.enumToCharacter(currentMdTagOperator);
-						String readBase = ((SAMFragment)read).getSamRecord().getReadString().substring(readPosition, readPosition + 1);
-						output.println(referenceName + " " + readName + " " + (referencePosition + 1) + " " + (char)referenceBase + "->" + readBase);
-					}
-					
-					if (!currentCigarOperator.equals(CigarOperator.SOFT_CLIP)) {
-						visitedPositions.add(referencePosition);
-					}
-				}
-				
-				if (currentCigarOperator.consumesReferenceBases()) {
-					referencePosition += 1;
-				}
-				if (currentCigarOperator.consumesReadBases()) {
-					readPosition += 1;
-				}
-			}		
 		}
 	}
 }
\ No newline at end of file
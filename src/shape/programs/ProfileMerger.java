@@ -0,0 +1,84 @@
+package shape.programs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import shape.profiles.BinaryProfileFile;
+import shape.profiles.MutationProfileCollection;
+import shape.profiles.StorageType;
+
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Sums the binary profile files written by MutationCounter with -x, e.g., one
+ * per lane or per machine, into the binary profile file of the whole sample,
+ * and optionally writes its text profiles as MutationCounter would.
+ *
+ * @author Mason M Lai
+ */
+public class ProfileMerger {
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-i", "Comma-separated binary profile files to merge", true);
+		p.addStringArg("-o", "Merged binary profile file to create", true);
+		p.addStringArg("-b", "Base name of the text profiles, and tracks with -g or Arrow file with -e, to write from the merged counts. " +
+				"Defaults to none, i.e., only the binary file is written.", false, null);
+		p.addIntArg("-t", "Coverage threshold of the text profiles. Positions with a number of reads " +
+				"less than this number are not reported. Defaults to 1.", false, 1);
+		p.addStringArg("-s", "Storage type of the profiles loaded to write the text profiles. " +
+				"See MutationCounter. Defaults to MAP.", false, "MAP");
+		p.addIntArg("-d", "Number of decimal places of the rates in the output, from 0 to 9. Defaults to -1, " +
+				"i.e., rates are written in full as by Double.toString.", false, MutationProfileCollection.FULL_PRECISION);
+		p.addBooleanArg("-z", "Write the outputs BGZF-compressed and tab-separated, each with a tabix index, " +
+				"so that regions can be fetched with tabix. The .csv file becomes a .tsv.gz file. Defaults to false.", false, false);
+		p.addBooleanArg("-g", "Also write the rate tracks of each strand as bigWig files, which genome " +
+				"browsers load directly. Defaults to false.", false, false);
+		p.addBooleanArg("-u", "Write each run of adjacent positions with the same rate as one .bedgraph " +
+				"interval rather than one line per position. The .csv data is unchanged. Defaults to false.", false, false);
+		p.addBooleanArg("-e", "Also write the counts of the .csv output as an Arrow IPC (Feather) file, " +
+				"which dataframe libraries load without parsing text. Defaults to false.", false, false);
+		p.parse(args);
+
+		List<File> inputs = new ArrayList<File>();
+		for (String input : p.getStringArg("-i").split(",")) {
+			if (!input.trim().isEmpty()) {
+				inputs.add(new File(input.trim()));
+			}
+		}
+		if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("At least one input file (-i) is required.");
+		}
+		File output = new File(p.getStringArg("-o"));
+		String baseName = p.getStringArg("-b");
+		int coverageThreshold = p.getIntArg("-t");
+		int precision = p.getIntArg("-d");
+		boolean compressed = p.getBooleanArg("-z");
+		boolean bigWig = p.getBooleanArg("-g");
+		boolean collapseRuns = p.getBooleanArg("-u");
+		boolean arrow = p.getBooleanArg("-e");
+		StorageType storageType = StorageType.valueOf(p.getStringArg("-s").toUpperCase());
+		if (storageType.equals(StorageType.MAPPED)) {
+			throw new IllegalArgumentException("MAPPED is not a storage type for -s. Memory-mapped profile files are " +
+					"created by MutationCounter with -f.");
+		}
+
+		BinaryProfileFile.merge(inputs, output);
+
+		if (baseName != null) {
+			MutationProfileCollection profiles = new MutationProfileCollection(BinaryProfileFile.readLengths(output),
+					coverageThreshold, storageType);
+			BinaryProfileFile.read(output, profiles);
+			profiles.toFile(baseName, precision, Runtime.getRuntime().availableProcessors(), compressed, collapseRuns);
+			if (bigWig) {
+				profiles.toBigWig(baseName);
+			}
+			if (arrow) {
+				profiles.toArrow(baseName);
+			}
+		}
+		System.out.println("Program complete.");
+	}
+}
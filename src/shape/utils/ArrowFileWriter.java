@@ -0,0 +1,391 @@
+package shape.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an Arrow IPC file, also known as Feather version 2, which pandas,
+ * polars and R's arrow package load or memory-map without parsing text.
+ * Columns are non-nullable: key columns are dictionary-encoded strings whose
+ * dictionaries are given up front, and value columns are 32-bit signed ints.
+ * Record batches are written as they come, so only one batch is ever held in
+ * memory, and every row of a batch shares the same value of each key column,
+ * e.g., one batch per chromosome and strand.
+ * <p>
+ * The metadata is encoded with {@link FlatBufferBuilder}, and buffers are
+ * aligned on {@value #ALIGNMENT} bytes, as the format recommends, so that
+ * readers can use them in place from a memory-mapped file.
+ *
+ * @author Mason M Lai
+ */
+public final class ArrowFileWriter implements Closeable {
+
+	private static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+	private static final int ALIGNMENT = 64;
+	private static final int CONTINUATION = 0xFFFFFFFF;
+	private static final short METADATA_V5 = 4;
+	private static final byte HEADER_SCHEMA = 1;
+	private static final byte HEADER_DICTIONARY_BATCH = 2;
+	private static final byte HEADER_RECORD_BATCH = 3;
+	private static final byte TYPE_INT = 2;
+	private static final byte TYPE_UTF8 = 5;
+
+	private final File file;
+	private final FileOutputStream stream;
+	private final Output out;
+	private final String[] keyNames;
+	private final String[][] dictionaries;
+	private final int[] keyWidths;
+	private final String[] valueNames;
+	private final List<long[]> dictionaryBlocks;
+	private final List<long[]> recordBlocks;
+
+	/**
+	 * Creates an Arrow file and writes its schema and dictionaries.
+	 *
+	 * @param file         the file to create
+	 * @param keyNames     names of the dictionary-encoded key columns
+	 * @param dictionaries values of each key column
+	 * @param valueNames   names of the int columns
+	 * @throws IOException if the file already exists or cannot be written
+	 */
+	public ArrowFileWriter(File file, String[] keyNames, String[][] dictionaries, String[] valueNames) throws IOException {
+		if (file.exists()) {
+			throw new IOException("Arrow file " + file.getAbsolutePath() + " already exists!");
+		}
+		if (keyNames.length != dictionaries.length) {
+			throw new IllegalArgumentException("Every key column needs a dictionary.");
+		}
+		this.file = file;
+		this.keyNames = keyNames.clone();
+		this.dictionaries = dictionaries.clone();
+		this.valueNames = valueNames.clone();
+		// Indices are as narrow as their dictionary allows.
+		keyWidths = new int[keyNames.length];
+		for (int i = 0; i < keyNames.length; i++) {
+			int size = dictionaries[i].length;
+			keyWidths[i] = size <= Byte.MAX_VALUE ? 1 : size <= Short.MAX_VALUE ? 2 : 4;
+		}
+		dictionaryBlocks = new ArrayList<long[]>();
+		recordBlocks = new ArrayList<long[]>();
+
+		stream = new FileOutputStream(file);
+		boolean created = false;
+		try {
+			out = new Output(stream.getChannel());
+			out.put(MAGIC, 0, MAGIC.length);
+			out.pad(8);
+			writeSchema();
+			for (int i = 0; i < dictionaries.length; i++) {
+				writeDictionary(i);
+			}
+			created = true;
+		} finally {
+			if (!created) {
+				stream.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes one record batch.
+	 *
+	 * @param numRows number of rows of the batch
+	 * @param keys    index into its dictionary of the value of each key column,
+	 *                the same for every row
+	 * @param values  the rows of each value column, of which only the first
+	 *                {@code numRows} are written
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeBatch(int numRows, int[] keys, int[][] values) throws IOException {
+		if (keys.length != keyNames.length || values.length != valueNames.length) {
+			throw new IllegalArgumentException("A batch must have every column of the schema.");
+		}
+		int numColumns = keys.length + values.length;
+		long[] nodes = new long[2 * numColumns];
+		long[] buffers = new long[4 * numColumns];
+		long bodyLength = 0;
+		for (int i = 0; i < numColumns; i++) {
+			int width = i < keys.length ? keyWidths[i] : 4;
+			nodes[2 * i] = numRows;
+			// No validity buffer: every column is non-nullable.
+			buffers[4 * i] = bodyLength;
+			buffers[4 * i + 2] = bodyLength;
+			buffers[4 * i + 3] = (long)width * numRows;
+			bodyLength += padded(buffers[4 * i + 3]);
+		}
+
+		FlatBufferBuilder builder = new FlatBufferBuilder();
+		int batch = createRecordBatch(builder, numRows, nodes, buffers);
+		long[] block = writeMessage(builder, HEADER_RECORD_BATCH, batch, bodyLength);
+		for (int i = 0; i < keys.length; i++) {
+			for (int row = 0; row < numRows; row++) {
+				out.putIndex(keys[i], keyWidths[i]);
+			}
+			out.pad(ALIGNMENT);
+		}
+		for (int[] column : values) {
+			for (int row = 0; row < numRows; row++) {
+				out.putInt(column[row]);
+			}
+			out.pad(ALIGNMENT);
+		}
+		recordBlocks.add(block);
+	}
+
+	/**
+	 * Writes the end-of-stream marker and the footer that indexes the
+	 * dictionaries and record batches.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			out.putInt(CONTINUATION);
+			out.putInt(0);
+
+			FlatBufferBuilder builder = new FlatBufferBuilder();
+			int schema = createSchema(builder);
+			int dictionaries = builder.createBlockVector(toArray(dictionaryBlocks));
+			int records = builder.createBlockVector(toArray(recordBlocks));
+			builder.startTable(5);
+			builder.addShort(0, METADATA_V5);
+			builder.addOffset(1, schema);
+			builder.addOffset(2, dictionaries);
+			builder.addOffset(3, records);
+			byte[] footer = builder.finish(builder.endTable());
+			out.put(footer, 0, footer.length);
+			out.putInt(footer.length);
+			out.put(MAGIC, 0, MAGIC.length);
+			out.flush();
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return the file being written
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	private void writeSchema() throws IOException {
+		FlatBufferBuilder builder = new FlatBufferBuilder();
+		writeMessage(builder, HEADER_SCHEMA, createSchema(builder), 0);
+	}
+
+	/**
+	 * Writes the dictionary of a key column as a batch of one string column:
+	 * its offsets, then its bytes.
+	 */
+	private void writeDictionary(int key) throws IOException {
+		String[] values = dictionaries[key];
+		byte[][] bytes = new byte[values.length][];
+		long dataLength = 0;
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+			dataLength += bytes[i].length;
+		}
+		long offsetsLength = 4L * (values.length + 1);
+		long[] nodes = {values.length, 0};
+		long[] buffers = {0, 0, 0, offsetsLength, padded(offsetsLength), dataLength};
+		long bodyLength = padded(offsetsLength) + padded(dataLength);
+
+		FlatBufferBuilder builder = new FlatBufferBuilder();
+		int batch = createRecordBatch(builder, values.length, nodes, buffers);
+		builder.startTable(3);
+		builder.addLong(0, key);
+		builder.addOffset(1, batch);
+		int dictionaryBatch = builder.endTable();
+		long[] block = writeMessage(builder, HEADER_DICTIONARY_BATCH, dictionaryBatch, bodyLength);
+
+		int offset = 0;
+		out.putInt(offset);
+		for (byte[] value : bytes) {
+			offset += value.length;
+			out.putInt(offset);
+		}
+		out.pad(ALIGNMENT);
+		for (byte[] value : bytes) {
+			out.put(value, 0, value.length);
+		}
+		out.pad(ALIGNMENT);
+		dictionaryBlocks.add(block);
+	}
+
+	/**
+	 * Writes the metadata of a message, padded so that its body starts on a
+	 * multiple of {@value #ALIGNMENT} bytes, and so that its buffers do too.
+	 *
+	 * @return the offset, metadata length and body length of the message, as
+	 * the footer indexes it
+	 */
+	private long[] writeMessage(FlatBufferBuilder builder, byte headerType, int header, long bodyLength) throws IOException {
+		builder.startTable(5);
+		builder.addLong(3, bodyLength);
+		builder.addOffset(2, header);
+		builder.addShort(0, METADATA_V5);
+		builder.addByte(1, headerType);
+		byte[] metadata = builder.finish(builder.endTable());
+
+		// Messages start on eight-byte boundaries, so the padded length is a multiple of eight as required.
+		long offset = out.position();
+		int metadataLength = (int)(padded(offset + 8 + metadata.length) - offset - 8);
+		out.putInt(CONTINUATION);
+		out.putInt(metadataLength);
+		out.put(metadata, 0, metadata.length);
+		out.pad(ALIGNMENT);
+		return new long[] {offset, 8 + metadataLength, bodyLength};
+	}
+
+	private int createSchema(FlatBufferBuilder builder) {
+		int[] fields = new int[keyNames.length + valueNames.length];
+		for (int i = 0; i < keyNames.length; i++) {
+			builder.startTable(0);
+			int utf8 = builder.endTable();
+			int indexType = createIntType(builder, 8 * keyWidths[i]);
+			builder.startTable(4);
+			builder.addLong(0, i);
+			builder.addOffset(1, indexType);
+			int encoding = builder.endTable();
+			fields[i] = createField(builder, keyNames[i], TYPE_UTF8, utf8, encoding);
+		}
+		for (int i = 0; i < valueNames.length; i++) {
+			int type = createIntType(builder, 32);
+			fields[keyNames.length + i] = createField(builder, valueNames[i], TYPE_INT, type, 0);
+		}
+		int fieldVector = builder.createOffsetVector(fields);
+		builder.startTable(4);
+		builder.addOffset(1, fieldVector);
+		return builder.endTable();
+	}
+
+	private static int createIntType(FlatBufferBuilder builder, int bitWidth) {
+		builder.startTable(2);
+		builder.addInt(0, bitWidth);
+		builder.addByte(1, 1);
+		return builder.endTable();
+	}
+
+	private static int createField(FlatBufferBuilder builder, String name, byte typeType, int type, int dictionary) {
+		int nameOffset = builder.createString(name.getBytes(StandardCharsets.UTF_8));
+		// Readers expect the children vector even when it is empty.
+		int children = builder.createOffsetVector(new int[0]);
+		builder.startTable(7);
+		builder.addOffset(0, nameOffset);
+		builder.addOffset(3, type);
+		if (dictionary != 0) {
+			builder.addOffset(4, dictionary);
+		}
+		builder.addOffset(5, children);
+		builder.addByte(1, 0);
+		builder.addByte(2, typeType);
+		return builder.endTable();
+	}
+
+	private static int createRecordBatch(FlatBufferBuilder builder, int numRows, long[] nodes, long[] buffers) {
+		int nodeVector = builder.createStructVector(nodes, 2);
+		int bufferVector = builder.createStructVector(buffers, 2);
+		builder.startTable(5);
+		builder.addLong(0, numRows);
+		builder.addOffset(1, nodeVector);
+		builder.addOffset(2, bufferVector);
+		return builder.endTable();
+	}
+
+	private static long padded(long length) {
+		return (length + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	private static long[] toArray(List<long[]> blocks) {
+		long[] array = new long[3 * blocks.size()];
+		for (int i = 0; i < blocks.size(); i++) {
+			System.arraycopy(blocks.get(i), 0, array, 3 * i, 3);
+		}
+		return array;
+	}
+
+	/**
+	 * Buffered little-endian writes to a file channel, keeping track of the
+	 * position in the file.
+	 */
+	private static final class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long flushedPosition;
+
+		private Output(FileChannel channel) throws IOException {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			flushedPosition = channel.position();
+		}
+
+		private long position() {
+			return flushedPosition + buffer.position();
+		}
+
+		private void ensureRoom(int size) throws IOException {
+			if (buffer.remaining() < size) {
+				flush();
+			}
+		}
+
+		private void putByte(int value) throws IOException {
+			ensureRoom(1);
+			buffer.put((byte)value);
+		}
+
+		private void putInt(int value) throws IOException {
+			ensureRoom(4);
+			buffer.putInt(value);
+		}
+
+		private void putIndex(int value, int width) throws IOException {
+			ensureRoom(width);
+			if (width == 1) {
+				buffer.put((byte)value);
+			} else if (width == 2) {
+				buffer.putShort((short)value);
+			} else {
+				buffer.putInt(value);
+			}
+		}
+
+		private void put(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				ensureRoom(1);
+				int n = Math.min(length, buffer.remaining());
+				buffer.put(bytes, offset, n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		/**
+		 * Pads with zeros up to the next multiple of an alignment.
+		 */
+		private void pad(int alignment) throws IOException {
+			while ((position() & (alignment - 1)) != 0) {
+				putByte(0);
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				flushedPosition += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
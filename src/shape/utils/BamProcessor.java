@@ -1,16 +1,40 @@
 package shape.utils;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
 import net.sf.samtools.util.CloseableIterator;
 import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.MappedFragment;
 import guttmanlab.core.annotation.PairedMappedFragment;
 import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.SingleInterval;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.annotationcollection.BAMFragmentCollectionFactory;
+import shape.mdtag.AlignmentWalker;
 import shape.mdtag.GenericOperator;
 import shape.mdtag.MdTagOperator;
 import shape.profiles.ChromosomeProfileCollection;
@@ -22,6 +46,22 @@ import shape.profiles.StrandProfile;
 public abstract class BamProcessor<T extends ChromosomeProfileCollection<? extends StrandProfile>> {
 
 	protected int numExcludedBasesFromEnd;
+	
+	// Largest position a .bam index can address.
+	private static final int MAX_REFERENCE_LENGTH = 1 << 29;
+	
+	// Reused for every read or read pair.
+	private final VisitedPositions visitedPositions = new VisitedPositions();
+	
+	// Null unless metrics are recorded. Each processor records on its own thread.
+	private ProcessingMetrics metrics;
+	private ProcessingMetrics.Recorder recorder;
+	
+	// Records per flight recorder batch outside of the read pipeline.
+	private static final int TRACED_BATCH_SIZE = 1024;
+	// Null unless a flight recording has ReadBatchEvent enabled.
+	private ReadBatchEvent batchEvent;
+	private int untilBatchEnd;
 
 	protected BamProcessor() {
 		this(0);
@@ -34,6 +74,24 @@ public abstract class BamProcessor<T extends ChromosomeProfileCollection<? exten
 		}
 	}
 	
+	/**
+	 * Records the reads, skipped reads and stage times of this processor, and
+	 * of the workers it creates, in a registry of metrics.
+	 * 
+	 * @param metrics the registry, or null to stop recording
+	 */
+	public void setMetrics(ProcessingMetrics metrics) {
+		this.metrics = metrics;
+		recorder = metrics == null ? null : metrics.newRecorder();
+	}
+	
+	/**
+	 * @return the recorder of this processor, or null if no metrics are recorded
+	 */
+	protected final ProcessingMetrics.Recorder getRecorder() {
+		return recorder;
+	}
+	
 	/**
 	 * Iterates through the reads in an input .bam file, and populates the input profile collection with corresponding read data.
 	 * 
@@ -42,29 +100,595 @@ public abstract class BamProcessor<T extends ChromosomeProfileCollection<? exten
 	 * @throws IOException  Only accepts SAMFragments and PairedMappedFragments. Other AnnotationCollections not supported.
 	 */
 
-	@SuppressWarnings("unchecked")
 	public void parseReads(AnnotationCollection<? extends Annotation> bam, T profiles) throws IOException {
 		System.out.println("Parsing reads...");
+		parseReads(bam.sortedIterator(), profiles);
+		System.out.println("Finished parsing reads.");		
+	}
+	
+	private void parseReads(CloseableIterator<? extends Annotation> reads, T profiles) throws IOException {
+		try {
+			parseReads(reads, new ProfileSink(profiles));
+		} finally {
+			reads.close();
+		}
+	}
+	
+	/**
+	 * Iterates through the reads in a coordinate-sorted .bam file, telling a
+	 * listener each time all reads of a reference sequence have been counted,
+	 * e.g., to save them.
+	 * 
+	 * @param bam			Annotation collection, presumably from a .bam file.
+	 * @param profiles		A collection of profiles to be populated from information from the .bam file.
+	 * @param listener		told when each reference sequence is finished
+	 * @throws IOException  if any read cannot be parsed, the reads are not
+	 * grouped by reference sequence, or the listener fails
+	 */
+	public void parseReads(AnnotationCollection<? extends Annotation> bam, T profiles, ChromosomeListener listener) throws IOException {
+		System.out.println("Parsing reads...");
+		Set<String> finished = new HashSet<String>();
+		String current = null;
+		ReadSink sink = new ProfileSink(profiles);
+		CloseableIterator<? extends Annotation> reads = bam.sortedIterator();
+		try {
+			while (reads.hasNext()) {
+				Annotation read = nextRead(reads);
+				String chromosome = read.getReferenceName();
+				if (!chromosome.equals(current)) {
+					if (current != null && !current.equals("*")) {
+						listener.chromosomeFinished(current);
+						finished.add(current);
+					}
+					if (finished.contains(chromosome)) {
+						throw new IOException("Reads on " + chromosome + " are not together. The .bam file must be " +
+								"sorted by coordinate.");
+					}
+					current = chromosome;
+				}
+				traceBatch(read);
+				parseAnnotation(read, sink);
+			}
+			endBatch();
+			flushMetrics();
+			if (current != null && !current.equals("*")) {
+				listener.chromosomeFinished(current);
+			}
+		} finally {
+			reads.close();
+		}
+		System.out.println("Finished parsing reads.");
+	}
+	
+	/**
+	 * Iterates through the reads of some reference sequences of an indexed
+	 * .bam file, one sequence at a time, telling a listener as each one is
+	 * finished. Used to count the sequences an interrupted run did not reach.
+	 * 
+	 * @param bam			Annotation collection from an indexed .bam file.
+	 * @param profiles		A collection of profiles to be populated from information from the .bam file.
+	 * @param chromosomes	names of the reference sequences to be counted
+	 * @param listener		told when each reference sequence is finished
+	 * @throws IOException  if any read cannot be parsed or the listener fails
+	 */
+	public void parseReads(AnnotationCollection<? extends Annotation> bam, T profiles, List<String> chromosomes, ChromosomeListener listener) throws IOException {
+		System.out.println("Parsing reads on " + chromosomes.size() + " reference sequences...");
+		for (String chromosome : chromosomes) {
+			CloseableIterator<? extends Annotation> reads = bam.sortedIterator(new SingleInterval(chromosome, 0, MAX_REFERENCE_LENGTH), false);
+			try {
+				parseReads(reads, new ProfileSink(profiles));
+			} finally {
+				reads.close();
+			}
+			listener.chromosomeFinished(chromosome);
+		}
+		System.out.println("Finished parsing reads.");
+	}
+	
+	/**
+	 * Iterates through the reads in an indexed .bam file on several threads,
+	 * one reference sequence at a time. Each reference sequence is queried
+	 * through the .bam index and counted into its own partition by its own
+	 * processor; the partitions are then merged into the input profile
+	 * collection in header order. Since merging sums counts, the result is
+	 * the same as that of {@link #parseReads(AnnotationCollection, ChromosomeProfileCollection)}
+	 * whatever the number of threads. Reads whose reference sequence is not
+	 * in the header are not counted.
+	 * 
+	 * @param bamFile		path to an indexed .bam file
+	 * @param profiles		a collection of profiles to be populated from information from the .bam file
+	 * @param numThreads	number of reference sequences parsed at once
+	 * @throws IOException  if the .bam file has no index, or if any read cannot be parsed
+	 */
+	public void parseReads(String bamFile, T profiles, int numThreads) throws IOException {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive!");
+		}
+		SAMFileReader reader = new SAMFileReader(new File(bamFile));
+		boolean hasIndex = reader.hasIndex();
+		List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+		reader.close();
+		if (!hasIndex) {
+			throw new IOException("Parsing reads on several threads requires an index for " + bamFile + ".");
+		}
+		
+		System.out.println("Parsing reads on " + numThreads + " threads...");
+		
+		// Each worker owns a reader and a processor, since neither is thread-safe.
+		final BlockingQueue<Worker> workers = new ArrayBlockingQueue<Worker>(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			workers.add(new Worker(BAMFragmentCollectionFactory.createFromBam(bamFile), newMeteredWorker()));
+		}
+		
+		// Longest sequences first, so that a long one is not left running alone at the end.
+		List<SAMSequenceRecord> schedule = new ArrayList<SAMSequenceRecord>(sequences);
+		Collections.sort(schedule, new Comparator<SAMSequenceRecord>() {
+			@Override
+			public int compare(SAMSequenceRecord a, SAMSequenceRecord b) {
+				return Integer.compare(b.getSequenceLength(), a.getSequenceLength());
+			}
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			Map<String, Future<T>> partitions = new HashMap<String, Future<T>>();
+			for (SAMSequenceRecord sequence : schedule) {
+				final String chromosome = sequence.getSequenceName();
+				final int length = sequence.getSequenceLength();
+				final T target = profiles;
+				partitions.put(chromosome, executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws IOException, InterruptedException {
+						Worker worker = workers.take();
+						T partition = newPartition(target, chromosome, length);
+						try {
+							Annotation region = new SingleInterval(chromosome, 0, MAX_REFERENCE_LENGTH);
+							worker.processor.parseReads(worker.bam.sortedIterator(region, false), partition);
+						} finally {
+							workers.put(worker);
+						}
+						return partition;
+					}
+				}));
+			}
+			for (SAMSequenceRecord sequence : sequences) {
+				// Merged in header order so that chromosomes missing from the collection are added in a fixed order.
+				T partition = partitions.remove(sequence.getSequenceName()).get();
+				long start = System.nanoTime();
+				mergePartition(profiles, partition);
+				if (metrics != null) {
+					metrics.addTime(ProcessingMetrics.Stage.ACCUMULATE, System.nanoTime() - start);
+				}
+				System.out.println(sequence.getSequenceName() + " parsed.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing reads.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Failed to parse reads.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.println("Finished parsing reads.");
+	}
+	
+	/**
+	 * Iterates through the reads in an input .bam file in a pipeline of
+	 * threads. The calling thread reads batches of reads into a bounded
+	 * queue; parser threads turn each batch into compact events, each with
+	 * its own processor; and accumulator threads apply the events to the
+	 * profile collection. A full queue makes the stage feeding it wait, so
+	 * memory use is bounded by the queue capacities and the batch size, and
+	 * reading overlaps with parsing and counting.
+	 * <p>
+	 * Since counts are summed, the result does not depend on the order in
+	 * which batches are applied. With more than one accumulator, the profile
+	 * collection must accept concurrent updates.
+	 * 
+	 * @param bam			Annotation collection, presumably from a .bam file.
+	 * @param profiles		A collection of profiles to be populated from information from the .bam file.
+	 * @param settings		number of threads per stage, batch size and queue capacity
+	 * @throws IOException  if any read cannot be parsed
+	 */
+	public void parseReads(AnnotationCollection<? extends Annotation> bam, final T profiles, PipelineSettings settings) throws IOException {
+		System.out.println("Parsing reads with " + settings.getNumParsers() + " parser and " +
+				settings.getNumAccumulators() + " accumulator threads...");
+		
+		final BlockingQueue<List<Annotation>> readBatches = new ArrayBlockingQueue<List<Annotation>>(settings.getQueueCapacity());
+		final BlockingQueue<ReadEvents<T>> eventBatches = new ArrayBlockingQueue<ReadEvents<T>>(settings.getQueueCapacity());
+		final BlockingQueue<ReadEvents<T>> freeEvents = new LinkedBlockingQueue<ReadEvents<T>>();
+		// Sent once to each thread of a stage to tell it that no more batches will come.
+		final List<Annotation> endOfReads = new ArrayList<Annotation>(0);
+		final ReadEvents<T> endOfEvents = newEvents(profiles);
+		
+		int numStages = settings.getNumParsers() + settings.getNumAccumulators();
+		ExecutorService executor = Executors.newFixedThreadPool(numStages);
+		Stages stages = new Stages(executor);
 		CloseableIterator<? extends Annotation> reads = bam.sortedIterator();
+		if (metrics != null) {
+			metrics.addQueue("readBatches", readBatches);
+			metrics.addQueue("eventBatches", eventBatches);
+		}
+		try {
+			for (int i = 0; i < settings.getNumParsers(); i++) {
+				final BamProcessor<T> parser = newMeteredWorker();
+				stages.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException, InterruptedException {
+						List<Annotation> batch;
+						while ((batch = readBatches.take()) != endOfReads) {
+							ReadEvents<T> events = freeEvents.poll();
+							if (events == null) {
+								events = newEvents(profiles);
+							}
+							parser.parseBatch(batch, events);
+							eventBatches.put(events);
+						}
+						return null;
+					}
+				});
+			}
+			for (int i = 0; i < settings.getNumAccumulators(); i++) {
+				stages.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException, InterruptedException {
+						ReadEvents<T> events;
+						while ((events = eventBatches.take()) != endOfEvents) {
+							long start = System.nanoTime();
+							events.applyTo(profiles);
+							if (metrics != null) {
+								metrics.addTime(ProcessingMetrics.Stage.ACCUMULATE, System.nanoTime() - start);
+							}
+							events.clear();
+							freeEvents.offer(events);
+						}
+						return null;
+					}
+				});
+			}
+			
+			List<Annotation> batch = new ArrayList<Annotation>(settings.getBatchSize());
+			while (reads.hasNext()) {
+				batch.add(nextRead(reads));
+				if (batch.size() == settings.getBatchSize()) {
+					put(readBatches, batch, stages);
+					batch = new ArrayList<Annotation>(settings.getBatchSize());
+					// This thread records no reads, so nothing else flushes its decoding times.
+					flushMetrics();
+				}
+			}
+			if (!batch.isEmpty()) {
+				put(readBatches, batch, stages);
+			}
+			
+			// Accumulators only stop once told to, so the first stages to finish are the parsers.
+			for (int i = 0; i < settings.getNumParsers(); i++) {
+				put(readBatches, endOfReads, stages);
+			}
+			stages.await(settings.getNumParsers());
+			for (int i = 0; i < settings.getNumAccumulators(); i++) {
+				put(eventBatches, endOfEvents, stages);
+			}
+			stages.await(numStages);
+			flushMetrics();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing reads.", e);
+		} finally {
+			executor.shutdownNow();
+			reads.close();
+			if (metrics != null) {
+				metrics.removeQueue("readBatches");
+				metrics.removeQueue("eventBatches");
+			}
+		}
+		System.out.println("Finished parsing reads.");
+	}
+	
+	/**
+	 * Puts a batch on a queue, waiting while the queue is full, but giving up
+	 * if a stage of the pipeline has failed.
+	 */
+	private static <E> void put(BlockingQueue<E> queue, E batch, Stages stages) throws IOException, InterruptedException {
+		while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+			stages.check();
+		}
+	}
+	
+	/**
+	 * The threads of a pipeline, and how many of them have finished.
+	 */
+	private static final class Stages {
+		private final CompletionService<Void> completions;
+		private int numFinished;
+		
+		private Stages(ExecutorService executor) {
+			completions = new ExecutorCompletionService<Void>(executor);
+			numFinished = 0;
+		}
+		
+		private void submit(Callable<Void> stage) {
+			completions.submit(stage);
+		}
+		
+		/**
+		 * Counts the threads that have finished since the last call.
+		 * 
+		 * @throws IOException if any of them failed
+		 */
+		private void check() throws IOException, InterruptedException {
+			Future<Void> stage;
+			while ((stage = completions.poll()) != null) {
+				finish(stage);
+			}
+		}
+		
+		/**
+		 * Waits until the given number of threads have finished in all.
+		 * 
+		 * @throws IOException if any of them failed
+		 */
+		private void await(int numStages) throws IOException, InterruptedException {
+			while (numFinished < numStages) {
+				finish(completions.take());
+			}
+		}
+		
+		private void finish(Future<Void> stage) throws IOException, InterruptedException {
+			try {
+				stage.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new IOException("Failed to parse reads.", e.getCause());
+			}
+			numFinished++;
+		}
+	}
+	
+	/**
+	 * Iterates through the reads in an indexed .bam file that overlap a list
+	 * of target regions, querying the index for each region rather than
+	 * reading the whole file. Each region is counted into the profiles named
+	 * after it, in coordinates relative to its start; the parts of reads
+	 * outside a region are not counted for it. A read overlapping several
+	 * regions is counted in each.
+	 * 
+	 * @param bam			Annotation collection from an indexed .bam file.
+	 * @param regions		the regions to be counted
+	 * @param profiles		A collection with a profile for each region, named after it.
+	 * @throws IOException  if any read cannot be parsed
+	 */
+	public void parseReads(AnnotationCollection<? extends Annotation> bam, List<TargetRegion> regions, T profiles) throws IOException {
+		System.out.println("Parsing reads in " + regions.size() + " regions...");
+		for (TargetRegion region : regions) {
+			Annotation interval = new SingleInterval(region.getChromosome(), region.getStart(), region.getEnd());
+			CloseableIterator<? extends Annotation> reads = bam.sortedIterator(interval, false);
+			try {
+				parseReads(reads, new RegionSink(profiles, region));
+			} finally {
+				reads.close();
+			}
+		}
+		System.out.println("Finished parsing reads.");
+	}
+	
+	/**
+	 * Parses reads into a sink.
+	 */
+	private void parseReads(Iterator<? extends Annotation> reads, ReadSink sink) throws IOException {
 		while (reads.hasNext()) {
-			Annotation read = reads.next();
-			if (read instanceof SAMFragment) {
-				if (!read.getReferenceName().equals("*")) {
-					parseRead((SAMFragment)read, profiles, new HashSet<Integer>());
+			Annotation read = nextRead(reads);
+			traceBatch(read);
+			parseAnnotation(read, sink);
+		}
+		endBatch();
+		flushMetrics();
+	}
+	
+	/**
+	 * Parses a batch of reads of the read pipeline into events. The reads were
+	 * decoded by the thread that read the batch.
+	 */
+	private void parseBatch(List<Annotation> batch, ReadEvents<T> events) throws IOException {
+		startBatch(batch.get(0).getReferenceName());
+		ReadSink sink = new EventSink(events);
+		for (Annotation read : batch) {
+			parseAnnotation(read, sink);
+		}
+		endBatch();
+		flushMetrics();
+	}
+	
+	/**
+	 * Starts a new flight recorder batch before a read once the current one
+	 * is full or the reference sequence changes.
+	 */
+	private void traceBatch(Annotation read) {
+		if (--untilBatchEnd > 0 && (batchEvent == null || batchEvent.chromosome.equals(read.getReferenceName()))) {
+			return;
+		}
+		endBatch();
+		startBatch(read.getReferenceName());
+		untilBatchEnd = TRACED_BATCH_SIZE;
+	}
+	
+	private void startBatch(String chromosome) {
+		ReadBatchEvent event = new ReadBatchEvent();
+		if (event.isEnabled()) {
+			event.chromosome = chromosome;
+			event.begin();
+			batchEvent = event;
+		}
+	}
+	
+	private void endBatch() {
+		if (batchEvent != null) {
+			batchEvent.commit();
+			batchEvent = null;
+		}
+	}
+	
+	/**
+	 * Gets the next record from a .bam file, timing its decoding now and then.
+	 */
+	private Annotation nextRead(Iterator<? extends Annotation> reads) {
+		if (recorder == null || !recorder.sampleDecode()) {
+			return reads.next();
+		}
+		long start = System.nanoTime();
+		Annotation read = reads.next();
+		recorder.addSampledTime(ProcessingMetrics.Stage.DECODE, System.nanoTime() - start);
+		return read;
+	}
+	
+	private void flushMetrics() {
+		if (recorder != null) {
+			recorder.flush();
+		}
+	}
+	
+	private BamProcessor<T> newMeteredWorker() {
+		BamProcessor<T> worker = newWorker();
+		worker.setMetrics(metrics);
+		return worker;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void parseAnnotation(Annotation read, ReadSink sink) throws IOException {
+		if (read instanceof SAMFragment) {
+			if (!read.getReferenceName().equals("*")) {
+				if (recorder != null || batchEvent != null) {
+					countRead(read, 1, readLength(read));
 				}
-			} else if (read instanceof PairedMappedFragment<?>) {
-				parseRead((PairedMappedFragment<? extends MappedFragment>)read, profiles, new HashSet<Integer>());
+				visitedPositions.clear();
+				sink.parseFragment((SAMFragment)read);
 			} else {
-				throw new IOException("Mutation counter can only handle SAMFragments and PairedMappedFragments.");
+				if (recorder != null) {
+					recorder.addSkipped(ProcessingMetrics.SkipReason.UNMAPPED);
+				}
+				if (batchEvent != null) {
+					batchEvent.skippedReads++;
+				}
+			}
+		} else if (read instanceof PairedMappedFragment<?>) {
+			PairedMappedFragment<? extends MappedFragment> readPair = (PairedMappedFragment<? extends MappedFragment>)read;
+			if (recorder != null || batchEvent != null) {
+				countRead(read, 2, readLength(readPair.getRead1()) + readLength(readPair.getRead2()));
 			}
+			sink.parsePair(readPair);
+		} else {
+			throw new IOException("Mutation counter can only handle SAMFragments and PairedMappedFragments.");
+		}
+	}
+	
+	private void countRead(Annotation read, int numReads, int numBases) {
+		if (recorder != null) {
+			recorder.startRead();
+			recorder.addRead(read.getReferenceName(), read.getReferenceStartPosition(), numReads, numBases);
+		}
+		if (batchEvent != null) {
+			batchEvent.reads += numReads;
+			batchEvent.bases += numBases;
+		}
+	}
+	
+	private static int readLength(Annotation read) {
+		return ((SAMFragment)read).getSamRecord().getReadLength();
+	}
+	
+	/**
+	 * Where parsed reads go: into the profiles, into the profiles of a target
+	 * region, or into events for the read pipeline.
+	 */
+	private abstract class ReadSink {
+		
+		abstract void parseFragment(SAMFragment read) throws IOException;
+		
+		void parsePair(PairedMappedFragment<? extends MappedFragment> readPair) throws IOException {
+			Annotation read1 = readPair.getRead1();
+			Annotation read2 = readPair.getRead2();
+			visitedPositions.startPair(read1.getReferenceStartPosition(), read1.getReferenceEndPosition(),
+					read2.getReferenceStartPosition(), read2.getReferenceEndPosition(), numExcludedBasesFromEnd);
+			parseFragment((SAMFragment)read1);
+			parseFragment((SAMFragment)read2);
+		}
+	}
+	
+	private final class ProfileSink extends ReadSink {
+		private final T profiles;
+		
+		private ProfileSink(T profiles) {
+			this.profiles = profiles;
+		}
+		
+		@Override
+		void parseFragment(SAMFragment read) throws IOException {
+			parseRead(read, profiles, visitedPositions);
+		}
+		
+		@Override
+		void parsePair(PairedMappedFragment<? extends MappedFragment> readPair) throws IOException {
+			parseRead(readPair, profiles, visitedPositions);
+		}
+	}
+	
+	private final class RegionSink extends ReadSink {
+		private final T profiles;
+		private final TargetRegion region;
+		
+		private RegionSink(T profiles, TargetRegion region) {
+			this.profiles = profiles;
+			this.region = region;
+		}
+		
+		@Override
+		void parseFragment(SAMFragment read) throws IOException {
+			parseRead(read, profiles, region, visitedPositions);
+		}
+	}
+	
+	private final class EventSink extends ReadSink {
+		private final ReadEvents<T> events;
+		
+		private EventSink(ReadEvents<T> events) {
+			this.events = events;
+		}
+		
+		@Override
+		void parseFragment(SAMFragment read) throws IOException {
+			recordRead(read, events, visitedPositions);
+		}
+	}
+	
+	private final class Worker {
+		private final AnnotationCollection<? extends Annotation> bam;
+		private final BamProcessor<T> processor;
+		
+		private Worker(AnnotationCollection<? extends Annotation> bam, BamProcessor<T> processor) {
+			this.bam = bam;
+			this.processor = processor;
 		}
-		reads.close();
-		System.out.println("Finished parsing reads.");		
 	}
 
-	protected void parseRead(PairedMappedFragment<? extends MappedFragment> readPair, T profiles, Set<Integer> visitedPositions) throws IOException {
+	/**
+	 * Parses both reads of a pair, counting positions where the mates overlap
+	 * only once.
+	 * 
+	 * @param readPair         the read pair to be parsed
+	 * @param profiles         the collection of profiles to be updated
+	 * @param visitedPositions reused to record counted positions; reset here
+	 * @throws IOException if either read cannot be parsed
+	 */
+	protected void parseRead(PairedMappedFragment<? extends MappedFragment> readPair, T profiles, VisitedPositions visitedPositions) throws IOException {
 		Annotation read1 = readPair.getRead1();
 		Annotation read2 = readPair.getRead2();
+		visitedPositions.startPair(read1.getReferenceStartPosition(), read1.getReferenceEndPosition(),
+				read2.getReferenceStartPosition(), read2.getReferenceEndPosition(), numExcludedBasesFromEnd);
 		parseRead((SAMFragment)read1, profiles, visitedPositions);
 		parseRead((SAMFragment)read2, profiles, visitedPositions);
 	}
@@ -78,59 +702,83 @@ public abstract class BamProcessor<T extends ChromosomeProfileCollection<? exten
 	 * @throws IOException  if the CIGAR string operator and the MD tag operator contradict in some way
 	 */
 	protected GenericOperator detectMutation(CigarOperator c, MdTagOperator m) throws IOException {
-		switch (CigarOperator.enumToCharacter(c)) {
-		case 'M':
-			return detectMutationAtCigarOpM(m);
-		case 'I':
-			return GenericOperator.INSERTION;
-		case 'D':
-			return detectMutationAtCigarOpD(m);
-		case 'S':
-			return GenericOperator.SOFT_CLIP;
-		case 'N':
-			return GenericOperator.SPLICE_JUNCTION;
-		default:
-			throw new IOException("Unknown CIGAR operator " + c + " encountered. (Only recognizes M, I, S, D, and N.)");
-		}
-	}
-	
-	private GenericOperator detectMutationAtCigarOpM(MdTagOperator m) throws IOException {
-		byte referenceBase = MdTagOperator.enumToCharacter(m);
-		switch (referenceBase) {
-		case '=':
-			return GenericOperator.MATCH;
-		case 'A':
-			return GenericOperator.A_TO_N;
-		case 'C':
-			return GenericOperator.C_TO_N;
-		case 'G':
-			return GenericOperator.G_TO_N;
-		case 'T':
-			return GenericOperator.T_TO_N;
-		case 'N':
-			return GenericOperator.UNKNOWN;
-		default:
-			throw new IOException("CIGAR string and MD tag are not compatible. CIGAR operator is M and MD tag operator is " + m.toString() + ".");
-		}
-	}
-	
-	private GenericOperator detectMutationAtCigarOpD(MdTagOperator m) throws IOException {
-		byte referenceBase = MdTagOperator.enumToCharacter(m);
-		switch (referenceBase) {
-		case 'D':
-			return GenericOperator.DELETION;
-		case 'a':
-			return GenericOperator.DELETION_OF_A;
-		case 'c':
-			return GenericOperator.DELETION_OF_C;
-		case 'g':
-			return GenericOperator.DELETION_OF_G;
-		case 't':
-			return GenericOperator.DELETION_OF_T;
-		default:
-			throw new IOException("CIGAR string and MD tag are not compatible. CIGAR operator is D and MD tag operator is " + m.toString() + ".");
-		}
-	}
-	
-	protected abstract void parseRead(SAMFragment read, T profiles, Set<Integer> visitedPositions) throws IOException;
+		return AlignmentWalker.combine(c, m);
+	}
+	
+	/**
+	 * Parses a single read.
+	 * 
+	 * @param read             the read to be parsed
+	 * @param profiles         the collection of profiles to be updated
+	 * @param visitedPositions positions already counted for this read or pair,
+	 *                         which are skipped to avoid double-counting
+	 * @throws IOException if the read cannot be parsed
+	 */
+	protected abstract void parseRead(SAMFragment read, T profiles, VisitedPositions visitedPositions) throws IOException;
+	
+	/**
+	 * Parses a single read into the profiles of a target region. Positions
+	 * are counted relative to the start of the region, and positions outside
+	 * it are not counted.
+	 * 
+	 * @param read             the read to be parsed
+	 * @param profiles         the collection of profiles to be updated
+	 * @param region           the region being counted
+	 * @param visitedPositions positions already counted for this read or pair,
+	 *                         which are skipped to avoid double-counting
+	 * @throws IOException if the read cannot be parsed
+	 */
+	protected abstract void parseRead(SAMFragment read, T profiles, TargetRegion region, VisitedPositions visitedPositions) throws IOException;
+	
+	/**
+	 * Parses a single read into events, which are applied to the profiles
+	 * later, possibly on another thread. Must count exactly what
+	 * {@link #parseRead(SAMFragment, ChromosomeProfileCollection, VisitedPositions)}
+	 * would.
+	 * 
+	 * @param read             the read to be parsed
+	 * @param events           the events to be added to
+	 * @param visitedPositions positions already counted for this read or pair,
+	 *                         which are skipped to avoid double-counting
+	 * @throws IOException if the read cannot be parsed
+	 */
+	protected abstract void recordRead(SAMFragment read, ReadEvents<T> events, VisitedPositions visitedPositions) throws IOException;
+	
+	/**
+	 * Creates an empty buffer of events to be applied to a collection.
+	 * 
+	 * @param profiles the collection the events will be applied to
+	 * @return an empty buffer
+	 */
+	protected abstract ReadEvents<T> newEvents(T profiles);
+	
+	/**
+	 * Creates a processor with the same settings as this one, but with its
+	 * own working state, to parse reads on another thread.
+	 * 
+	 * @return a new processor
+	 */
+	protected abstract BamProcessor<T> newWorker();
+	
+	/**
+	 * Creates an empty collection to count the reads of one reference
+	 * sequence into, separately from the other threads. Called on a worker
+	 * thread while partitions are being merged, so it must not read the
+	 * chromosomes of the collection it is given.
+	 * 
+	 * @param profiles   the collection the partition will be merged into
+	 * @param chromosome name of the reference sequence
+	 * @param length     length of the reference sequence in the header, in nt
+	 * @return an empty collection
+	 */
+	protected abstract T newPartition(T profiles, String chromosome, int length);
+	
+	/**
+	 * Adds the counts of a partition to a collection. Called on one thread at
+	 * a time, in header order.
+	 * 
+	 * @param profiles  the collection to be updated
+	 * @param partition counts of one reference sequence
+	 */
+	protected abstract void mergePartition(T profiles, T partition);
 }
\ No newline at end of file
@@ -0,0 +1,262 @@
+package shape.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes data in the BGZF format of samtools and tabix: a series of gzip
+ * members of at most 64 KB each, which any gzip reader can decompress, and
+ * which allow random access through virtual file offsets. Blocks can be
+ * compressed in parallel on an executor, and are written in order.
+ * <p>
+ * Since compressed block sizes are only known once the blocks have been
+ * compressed, positions in the data are first taken as block addresses,
+ * from {@link #getBlockAddress()}, and turned into virtual file offsets
+ * with {@link #getVirtualOffset(long)} once the stream is closed.
+ *
+ * @author Mason M Lai
+ */
+public final class BgzfOutputStream extends OutputStream {
+
+	// Same as htslib, which leaves room for blocks that do not compress.
+	private static final int MAX_BLOCK_DATA = 0xff00;
+	private static final int MAX_BLOCK_SIZE = 0x10000;
+	private static final int HEADER_SIZE = 18;
+	private static final int FOOTER_SIZE = 8;
+	private static final byte[] EMPTY_BLOCK = {
+		0x1f, (byte)0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte)0xff, 0x06, 0, 0x42, 0x43, 0x02, 0, 0x1b, 0, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int maxPendingBlocks;
+	private final int compressionLevel;
+	private final Deque<Future<Block>> pending;
+	private final Deque<Block> freeBlocks;
+	private final ConcurrentLinkedQueue<Deflater> deflaters;
+	private Block current;
+	// Compressed offset of each block written, and of the end of the data once closed.
+	private long[] blockOffsets;
+	private int numBlocks;
+	private int numWrittenBlocks;
+	private long compressedSize;
+	private boolean closed;
+
+	/**
+	 * Creates a stream that compresses blocks on the calling thread.
+	 *
+	 * @param out the stream to write compressed data to
+	 */
+	public BgzfOutputStream(OutputStream out) {
+		this(out, null, 1);
+	}
+
+	/**
+	 * Creates a stream that compresses blocks on an executor.
+	 *
+	 * @param out              the stream to write compressed data to
+	 * @param executor         the executor compressing blocks, or null to
+	 *                         compress them on the calling thread
+	 * @param maxPendingBlocks number of blocks that may be waiting to be
+	 *                         compressed or written before writing has to
+	 *                         wait, e.g., twice the number of threads of the
+	 *                         executor
+	 */
+	public BgzfOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks) {
+		if (maxPendingBlocks < 1) {
+			throw new IllegalArgumentException("At least one block must be allowed to be pending.");
+		}
+		this.out = out;
+		this.executor = executor;
+		this.maxPendingBlocks = maxPendingBlocks;
+		compressionLevel = Deflater.DEFAULT_COMPRESSION;
+		pending = new ArrayDeque<Future<Block>>();
+		freeBlocks = new ArrayDeque<Block>();
+		deflaters = new ConcurrentLinkedQueue<Deflater>();
+		current = new Block();
+		blockOffsets = new long[1024];
+	}
+
+	/**
+	 * Gets the address of the next byte to be written: the index of its
+	 * block in the upper bits, and its offset in the uncompressed data of the
+	 * block in the lower 16 bits.
+	 *
+	 * @return the block address of the next byte
+	 */
+	public long getBlockAddress() {
+		return ((long)numBlocks << 16) | current.size;
+	}
+
+	/**
+	 * Turns a block address into a virtual file offset: the offset of the
+	 * block in the compressed file in the upper 48 bits, and the offset in
+	 * the block in the lower 16 bits.
+	 *
+	 * @param blockAddress an address from {@link #getBlockAddress()}
+	 * @return the virtual file offset
+	 * @throws IllegalStateException if the stream is not closed yet
+	 */
+	public long getVirtualOffset(long blockAddress) {
+		if (!closed) {
+			throw new IllegalStateException("Virtual offsets are only known once the stream is closed.");
+		}
+		return (blockOffsets[(int)(blockAddress >>> 16)] << 16) | (blockAddress & 0xffff);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		current.data[current.size++] = (byte)b;
+		if (current.size == MAX_BLOCK_DATA) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = Math.min(length, MAX_BLOCK_DATA - current.size);
+			System.arraycopy(b, offset, current.data, current.size, n);
+			current.size += n;
+			offset += n;
+			length -= n;
+			// Ending every write with room in the block keeps block addresses unambiguous.
+			if (current.size == MAX_BLOCK_DATA) {
+				submitBlock();
+			}
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		if (pending.size() >= maxPendingBlocks) {
+			writeBlock(pending.removeFirst());
+		}
+		final Block block = current;
+		current = freeBlocks.isEmpty() ? new Block() : freeBlocks.removeFirst();
+		numBlocks++;
+		if (executor == null) {
+			compress(block);
+			writeBlock(block);
+		} else {
+			pending.addLast(executor.submit(new Callable<Block>() {
+				@Override
+				public Block call() {
+					compress(block);
+					return block;
+				}
+			}));
+		}
+	}
+
+	private void compress(Block block) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(compressionLevel, true);
+		}
+		deflater.reset();
+		deflater.setInput(block.data, 0, block.size);
+		deflater.finish();
+		int compressedLength = deflater.deflate(block.compressed, HEADER_SIZE, MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE);
+		if (!deflater.finished()) {
+			// Cannot happen with at most MAX_BLOCK_DATA bytes, even with no compression at all.
+			throw new IllegalStateException("BGZF block does not fit in " + MAX_BLOCK_SIZE + " bytes.");
+		}
+		deflaters.offer(deflater);
+		CRC32 crc = new CRC32();
+		crc.update(block.data, 0, block.size);
+
+		byte[] c = block.compressed;
+		int blockSize = HEADER_SIZE + compressedLength + FOOTER_SIZE;
+		System.arraycopy(EMPTY_BLOCK, 0, c, 0, HEADER_SIZE - 2);
+		putShort(c, 16, blockSize - 1);
+		putInt(c, HEADER_SIZE + compressedLength, (int)crc.getValue());
+		putInt(c, HEADER_SIZE + compressedLength + 4, block.size);
+		block.compressedSize = blockSize;
+	}
+
+	private void writeBlock(Future<Block> future) throws IOException {
+		Block block;
+		try {
+			block = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress block.", e.getCause());
+		}
+		writeBlock(block);
+	}
+
+	private void writeBlock(Block block) throws IOException {
+		int index = numWrittenBlocks++;
+		if (index + 1 >= blockOffsets.length) {
+			long[] larger = new long[blockOffsets.length * 2];
+			System.arraycopy(blockOffsets, 0, larger, 0, blockOffsets.length);
+			blockOffsets = larger;
+		}
+		blockOffsets[index] = compressedSize;
+		out.write(block.compressed, 0, block.compressedSize);
+		compressedSize += block.compressedSize;
+		block.size = 0;
+		freeBlocks.addLast(block);
+	}
+
+	/**
+	 * Compresses and writes the remaining data, followed by the empty block
+	 * that marks the end of a BGZF file, and closes the underlying stream.
+	 *
+	 * @throws IOException if the data cannot be compressed or written
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (current.size > 0) {
+				submitBlock();
+			}
+			while (!pending.isEmpty()) {
+				writeBlock(pending.removeFirst());
+			}
+			blockOffsets[numBlocks] = compressedSize;
+			out.write(EMPTY_BLOCK);
+			closed = true;
+		} finally {
+			Deflater deflater;
+			while ((deflater = deflaters.poll()) != null) {
+				deflater.end();
+			}
+			out.close();
+		}
+	}
+
+	private static void putShort(byte[] b, int offset, int value) {
+		b[offset] = (byte)value;
+		b[offset + 1] = (byte)(value >>> 8);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		putShort(b, offset, value);
+		putShort(b, offset + 2, value >>> 16);
+	}
+
+	/**
+	 * The uncompressed and compressed data of a block, reused once written.
+	 */
+	private static final class Block {
+		private final byte[] data = new byte[MAX_BLOCK_DATA];
+		private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+		private int size;
+		private int compressedSize;
+	}
+}
@@ -0,0 +1,695 @@
+package shape.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a bigWig file, the indexed binary format genome browsers load
+ * tracks from, in one pass over the values. Values are given one position
+ * at a time, sorted by chromosome name and then by position, and are
+ * written in compressed sections of up to {@value #ITEMS_PER_SLOT} values
+ * as they come. Summaries at several zoom levels are built in the same pass
+ * and kept in temporary files until the end, when the R-tree indexes of the
+ * sections and summaries are written and the header is filled in.
+ * <p>
+ * Chromosomes are numbered in the order of their names, as the chromosome
+ * B+ tree of the format requires, so values must be added in that order
+ * rather than in the order of the map of lengths.
+ *
+ * @author Mason M Lai
+ */
+public final class BigWigWriter implements Closeable {
+
+	private static final int MAGIC = 0x888FFC26;
+	private static final int VERSION = 4;
+	private static final int CHROMOSOME_TREE_MAGIC = 0x78CA8C91;
+	private static final int R_TREE_MAGIC = 0x2468ACE0;
+	private static final int ITEMS_PER_SLOT = 1024;
+	private static final int BLOCK_SIZE = 256;
+	private static final int HEADER_SIZE = 64;
+	private static final int ZOOM_HEADER_SIZE = 24;
+	private static final int SUMMARY_SIZE = 40;
+	private static final int SECTION_HEADER_SIZE = 24;
+	private static final int VARIABLE_STEP = 2;
+	private static final int ZOOM_RECORD_SIZE = 32;
+	private static final int INITIAL_REDUCTION = 10;
+	private static final int ZOOM_FACTOR = 4;
+	private static final int MAX_ZOOM_LEVELS = 10;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final Output out;
+	private final Map<String, Integer> chromosomeIds;
+	private final int[] chromosomeLengths;
+	private final ZoomLevel[] zoomLevels;
+	private final Deflater deflater;
+	private byte[] compressed;
+	private int maxUncompressedSize;
+
+	private final long dataCountOffset;
+	private final BlockIndex sections;
+	private final ByteBuffer section;
+	private int sectionChromosome;
+	private int sectionStart;
+	private int sectionEnd;
+	private int sectionSize;
+
+	private int lastChromosome;
+	private int lastPosition;
+	private long basesCovered;
+	private double minValue;
+	private double maxValue;
+	private double sumValues;
+	private double sumSquares;
+
+	/**
+	 * Creates a bigWig file and writes its chromosome index.
+	 *
+	 * @param file    the file to create
+	 * @param lengths map from chromosome names to lengths in nt
+	 * @throws IOException if the file already exists or cannot be written
+	 */
+	public BigWigWriter(File file, Map<String, Integer> lengths) throws IOException {
+		if (file.exists()) {
+			throw new IOException("bigWig file " + file.getAbsolutePath() + " already exists!");
+		}
+		this.file = file;
+		Map<String, Integer> sortedLengths = new TreeMap<String, Integer>(lengths);
+		chromosomeIds = new TreeMap<String, Integer>();
+		chromosomeLengths = new int[sortedLengths.size()];
+		int maxLength = 0;
+		for (Map.Entry<String, Integer> elem : sortedLengths.entrySet()) {
+			int id = chromosomeIds.size();
+			chromosomeIds.put(elem.getKey(), id);
+			chromosomeLengths[id] = elem.getValue();
+			maxLength = Math.max(maxLength, elem.getValue());
+		}
+
+		List<ZoomLevel> levels = new ArrayList<ZoomLevel>();
+		for (long reduction = INITIAL_REDUCTION; reduction < maxLength && levels.size() < MAX_ZOOM_LEVELS; reduction *= ZOOM_FACTOR) {
+			levels.add(new ZoomLevel((int)reduction));
+		}
+		zoomLevels = levels.toArray(new ZoomLevel[levels.size()]);
+		deflater = new Deflater();
+		compressed = new byte[1 << 16];
+		sections = new BlockIndex();
+		section = ByteBuffer.allocate(SECTION_HEADER_SIZE + 8 * ITEMS_PER_SLOT).order(ByteOrder.LITTLE_ENDIAN);
+		sectionChromosome = -1;
+		lastChromosome = -1;
+		minValue = Double.POSITIVE_INFINITY;
+		maxValue = Double.NEGATIVE_INFINITY;
+
+		raf = new RandomAccessFile(file, "rw");
+		boolean created = false;
+		try {
+			out = new Output(raf.getChannel());
+			// The header, zoom headers and total summary are filled in on close.
+			out.skip(HEADER_SIZE + ZOOM_HEADER_SIZE * zoomLevels.length + SUMMARY_SIZE);
+			writeChromosomeTree(sortedLengths);
+			dataCountOffset = out.position();
+			out.putLong(0);
+			created = true;
+		} finally {
+			if (!created) {
+				for (ZoomLevel level : zoomLevels) {
+					level.delete();
+				}
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds the value of one position.
+	 *
+	 * @param chromosome name of the chromosome
+	 * @param position   0-based position
+	 * @param value      value at the position
+	 * @throws IOException if the file cannot be written
+	 * @throws IllegalArgumentException if the chromosome is unknown or the
+	 * value is out of order
+	 */
+	public void add(String chromosome, int position, float value) throws IOException {
+		Integer id = chromosomeIds.get(chromosome);
+		if (id == null) {
+			throw new IllegalArgumentException("Chromosome " + chromosome + " is not in the bigWig file.");
+		}
+		if (id < lastChromosome || id == lastChromosome && position <= lastPosition) {
+			throw new IllegalArgumentException("bigWig values must be added by chromosome name and then position. " +
+					chromosome + ":" + position + " is out of order.");
+		}
+		if (position < 0 || position >= chromosomeLengths[id]) {
+			throw new IllegalArgumentException("Position " + position + " is outside chromosome " + chromosome + ".");
+		}
+		lastChromosome = id;
+		lastPosition = position;
+
+		if (sectionSize == ITEMS_PER_SLOT || sectionSize > 0 && sectionChromosome != id) {
+			writeSection();
+		}
+		if (sectionSize == 0) {
+			sectionChromosome = id;
+			sectionStart = position;
+			section.clear();
+			section.position(SECTION_HEADER_SIZE);
+		}
+		section.putInt(position);
+		section.putFloat(value);
+		sectionEnd = position + 1;
+		sectionSize++;
+
+		basesCovered++;
+		minValue = Math.min(minValue, value);
+		maxValue = Math.max(maxValue, value);
+		sumValues += value;
+		sumSquares += (double)value * value;
+		for (ZoomLevel level : zoomLevels) {
+			level.add(id, position, value);
+		}
+	}
+
+	private void writeSection() throws IOException {
+		int size = section.position();
+		section.putInt(0, sectionChromosome);
+		section.putInt(4, sectionStart);
+		section.putInt(8, sectionEnd);
+		section.putInt(12, 0);
+		section.putInt(16, 1);
+		section.put(20, (byte)VARIABLE_STEP);
+		section.put(21, (byte)0);
+		section.putShort(22, (short)sectionSize);
+		long offset = out.position();
+		int compressedSize = compress(section.array(), size);
+		out.put(compressed, 0, compressedSize);
+		sections.add(sectionChromosome, sectionStart, sectionChromosome, sectionEnd, offset, compressedSize);
+		sectionSize = 0;
+	}
+
+	/**
+	 * Compresses data into the compressed buffer with zlib, as the format
+	 * expects.
+	 *
+	 * @return the compressed size
+	 */
+	private int compress(byte[] data, int size) {
+		maxUncompressedSize = Math.max(maxUncompressedSize, size);
+		deflater.reset();
+		deflater.setInput(data, 0, size);
+		deflater.finish();
+		int compressedSize = 0;
+		while (!deflater.finished()) {
+			if (compressedSize == compressed.length) {
+				byte[] larger = new byte[2 * compressed.length];
+				System.arraycopy(compressed, 0, larger, 0, compressedSize);
+				compressed = larger;
+			}
+			compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+		}
+		return compressedSize;
+	}
+
+	/**
+	 * Writes the remaining values, the indexes and the zoom levels, and fills
+	 * in the header.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (sectionSize > 0) {
+				writeSection();
+			}
+			for (ZoomLevel level : zoomLevels) {
+				level.finish();
+			}
+			long dataIndexOffset = out.position();
+			writeRTree(sections, dataIndexOffset);
+
+			// Levels without any summary, e.g., of a file without values, are left out.
+			int numZoomLevels = 0;
+			ByteBuffer zoomHeaders = ByteBuffer.allocate(ZOOM_HEADER_SIZE * zoomLevels.length).order(ByteOrder.LITTLE_ENDIAN);
+			for (ZoomLevel level : zoomLevels) {
+				if (level.numRecords == 0) {
+					continue;
+				}
+				long zoomDataOffset = out.position();
+				out.putInt(level.numRecords);
+				level.blocks.shiftOffsets(out.position());
+				out.transferFrom(level.temporaryChannel);
+				long zoomIndexOffset = out.position();
+				writeRTree(level.blocks, zoomIndexOffset);
+				zoomHeaders.putInt(level.reduction);
+				zoomHeaders.putInt(0);
+				zoomHeaders.putLong(zoomDataOffset);
+				zoomHeaders.putLong(zoomIndexOffset);
+				numZoomLevels++;
+			}
+			out.putInt(MAGIC);
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putShort((short)VERSION);
+			header.putShort((short)numZoomLevels);
+			header.putLong(HEADER_SIZE + ZOOM_HEADER_SIZE * zoomLevels.length + SUMMARY_SIZE);
+			header.putLong(dataCountOffset);
+			header.putLong(dataIndexOffset);
+			header.putShort((short)0);
+			header.putShort((short)0);
+			header.putLong(0);
+			header.putLong(HEADER_SIZE + ZOOM_HEADER_SIZE * zoomLevels.length);
+			header.putInt(maxUncompressedSize);
+			header.putLong(0);
+			out.write(header, 0);
+			out.write(zoomHeaders, HEADER_SIZE);
+
+			ByteBuffer summary = ByteBuffer.allocate(SUMMARY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			summary.putLong(basesCovered);
+			summary.putDouble(basesCovered == 0 ? 0 : minValue);
+			summary.putDouble(basesCovered == 0 ? 0 : maxValue);
+			summary.putDouble(sumValues);
+			summary.putDouble(sumSquares);
+			out.write(summary, HEADER_SIZE + ZOOM_HEADER_SIZE * zoomLevels.length);
+
+			ByteBuffer dataCount = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			dataCount.putLong(sections.size);
+			out.write(dataCount, dataCountOffset);
+		} finally {
+			for (ZoomLevel level : zoomLevels) {
+				level.delete();
+			}
+			deflater.end();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the B+ tree mapping chromosome names to their numbers and
+	 * lengths, with names in sorted order.
+	 */
+	private void writeChromosomeTree(Map<String, Integer> sortedLengths) throws IOException {
+		int numChromosomes = sortedLengths.size();
+		byte[][] keys = new byte[numChromosomes][];
+		int keySize = 1;
+		int i = 0;
+		for (String name : sortedLengths.keySet()) {
+			keys[i] = name.getBytes();
+			keySize = Math.max(keySize, keys[i].length);
+			i++;
+		}
+		int blockSize = Math.max(1, Math.min(numChromosomes, BLOCK_SIZE));
+		out.putInt(CHROMOSOME_TREE_MAGIC);
+		out.putInt(blockSize);
+		out.putInt(keySize);
+		out.putInt(8);
+		out.putLong(numChromosomes);
+		out.putLong(0);
+
+		int[] levelSizes = getLevelSizes(numChromosomes, blockSize);
+		long levelStart = out.position();
+		for (int level = levelSizes.length - 1; level >= 0; level--) {
+			// Each level holds its nodes in order, all full but the last.
+			int itemSize = keySize + 8;
+			long fullNodeSize = 4 + (long)blockSize * itemSize;
+			long nextLevelStart = levelStart + (long)(levelSizes[level] - 1) * fullNodeSize
+					+ 4 + (long)getNodeItemCount(level, levelSizes, numChromosomes, blockSize, levelSizes[level] - 1) * itemSize;
+			long itemsPerChild = pow(blockSize, level);
+			for (int node = 0; node < levelSizes[level]; node++) {
+				int count = getNodeItemCount(level, levelSizes, numChromosomes, blockSize, node);
+				out.putByte(level == 0 ? 1 : 0);
+				out.putByte(0);
+				out.putShort(count);
+				for (int item = 0; item < count; item++) {
+					long child = (long)node * blockSize + item;
+					byte[] key = keys[(int)(child * itemsPerChild)];
+					out.put(key, 0, key.length);
+					out.skip(keySize - key.length);
+					if (level == 0) {
+						out.putInt((int)child);
+						out.putInt(chromosomeLengths[(int)child]);
+					} else {
+						out.putLong(nextLevelStart + child * fullNodeSize);
+					}
+				}
+			}
+			levelStart = nextLevelStart;
+		}
+	}
+
+	/**
+	 * Writes an R-tree of blocks, for the main data or a zoom level.
+	 */
+	private void writeRTree(BlockIndex blocks, long endFileOffset) throws IOException {
+		int n = blocks.size;
+		out.putInt(R_TREE_MAGIC);
+		out.putInt(BLOCK_SIZE);
+		out.putLong(n);
+		out.putInt(n == 0 ? 0 : blocks.startChromosomes[0]);
+		out.putInt(n == 0 ? 0 : blocks.startBases[0]);
+		out.putInt(n == 0 ? 0 : blocks.endChromosomes[n - 1]);
+		out.putInt(n == 0 ? 0 : blocks.endBases[n - 1]);
+		out.putLong(endFileOffset);
+		out.putInt(ITEMS_PER_SLOT);
+		out.putInt(0);
+
+		int[] levelSizes = getLevelSizes(n, BLOCK_SIZE);
+		long levelStart = out.position();
+		for (int level = levelSizes.length - 1; level >= 0; level--) {
+			int itemSize = level == 0 ? 32 : 24;
+			long fullNodeSize = 4 + (long)BLOCK_SIZE * (level == 1 ? 32 : 24);
+			long lastCount = getNodeItemCount(level, levelSizes, n, BLOCK_SIZE, levelSizes[level] - 1);
+			long nextLevelStart = levelStart + (long)(levelSizes[level] - 1) * (4 + (long)BLOCK_SIZE * itemSize) + 4 + lastCount * itemSize;
+			long blocksPerItem = pow(BLOCK_SIZE, level);
+			for (int node = 0; node < levelSizes[level]; node++) {
+				int count = getNodeItemCount(level, levelSizes, n, BLOCK_SIZE, node);
+				out.putByte(level == 0 ? 1 : 0);
+				out.putByte(0);
+				out.putShort(count);
+				for (int item = 0; item < count; item++) {
+					long child = (long)node * BLOCK_SIZE + item;
+					int first = (int)(child * blocksPerItem);
+					int last = (int)Math.min(n, (child + 1) * blocksPerItem) - 1;
+					out.putInt(blocks.startChromosomes[first]);
+					out.putInt(blocks.startBases[first]);
+					out.putInt(blocks.endChromosomes[last]);
+					out.putInt(blocks.endBases[last]);
+					if (level == 0) {
+						out.putLong(blocks.offsets[first]);
+						out.putLong(blocks.sizes[first]);
+					} else {
+						out.putLong(nextLevelStart + child * fullNodeSize);
+					}
+				}
+			}
+			levelStart = nextLevelStart;
+		}
+	}
+
+	/**
+	 * Gets the number of nodes at each level of a tree, from the leaves up to
+	 * the single root.
+	 */
+	private static int[] getLevelSizes(int numItems, int blockSize) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = Math.max(1, (numItems + blockSize - 1) / blockSize);
+		sizes.add(size);
+		while (size > 1) {
+			size = (size + blockSize - 1) / blockSize;
+			sizes.add(size);
+		}
+		int[] levelSizes = new int[sizes.size()];
+		for (int i = 0; i < levelSizes.length; i++) {
+			levelSizes[i] = sizes.get(i);
+		}
+		return levelSizes;
+	}
+
+	/**
+	 * Gets the number of items in a node: the number of items or nodes of the
+	 * level below it that it holds.
+	 */
+	private static int getNodeItemCount(int level, int[] levelSizes, int numItems, int blockSize, int node) {
+		int below = level == 0 ? numItems : levelSizes[level - 1];
+		return Math.min(blockSize, below - node * blockSize);
+	}
+
+	private static long pow(int base, int exponent) {
+		long result = 1;
+		for (int i = 0; i < exponent; i++) {
+			result *= base;
+		}
+		return result;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Summaries of consecutive windows of one zoom level. Each summary starts
+	 * at the first position with a value and spans the reduction of the
+	 * level, or up to the end of the chromosome.
+	 */
+	private final class ZoomLevel {
+		private final int reduction;
+		private final File temporaryFile;
+		private final RandomAccessFile temporary;
+		private final FileChannel temporaryChannel;
+		private final Output temporaryOut;
+		private final BlockIndex blocks;
+		private final ByteBuffer block;
+		private int numRecords;
+		private int blockSize;
+
+		private int chromosome;
+		private int start;
+		private int end;
+		private int validCount;
+		private float min;
+		private float max;
+		private double sum;
+		private double sumSquares;
+
+		private ZoomLevel(int reduction) throws IOException {
+			this.reduction = reduction;
+			temporaryFile = File.createTempFile("zoom" + reduction + "_", ".tmp", file.getAbsoluteFile().getParentFile());
+			temporary = new RandomAccessFile(temporaryFile, "rw");
+			temporaryChannel = temporary.getChannel();
+			temporaryOut = new Output(temporaryChannel);
+			blocks = new BlockIndex();
+			block = ByteBuffer.allocate(ZOOM_RECORD_SIZE * ITEMS_PER_SLOT).order(ByteOrder.LITTLE_ENDIAN);
+			validCount = 0;
+		}
+
+		private void add(int chromosome, int position, float value) throws IOException {
+			if (validCount > 0 && (chromosome != this.chromosome || position >= end)) {
+				writeRecord();
+			}
+			if (validCount == 0) {
+				this.chromosome = chromosome;
+				start = position;
+				end = (int)Math.min((long)position + reduction, chromosomeLengths[chromosome]);
+				min = value;
+				max = value;
+				sum = 0;
+				sumSquares = 0;
+			}
+			validCount++;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+			sumSquares += (double)value * value;
+		}
+
+		private void writeRecord() throws IOException {
+			if (blockSize == 0) {
+				block.clear();
+			}
+			block.putInt(chromosome);
+			block.putInt(start);
+			block.putInt(end);
+			block.putInt(validCount);
+			block.putFloat(min);
+			block.putFloat(max);
+			block.putFloat((float)sum);
+			block.putFloat((float)sumSquares);
+			if (blockSize == 0) {
+				blocks.add(chromosome, start, chromosome, end, temporaryOut.position(), 0);
+			} else {
+				blocks.setEnd(chromosome, end);
+			}
+			blockSize++;
+			numRecords++;
+			validCount = 0;
+			if (blockSize == ITEMS_PER_SLOT) {
+				writeBlock();
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			int compressedSize = compress(block.array(), block.position());
+			temporaryOut.put(compressed, 0, compressedSize);
+			blocks.sizes[blocks.size - 1] = compressedSize;
+			blockSize = 0;
+		}
+
+		private void finish() throws IOException {
+			if (validCount > 0) {
+				writeRecord();
+			}
+			if (blockSize > 0) {
+				writeBlock();
+			}
+			temporaryOut.flush();
+		}
+
+		private void delete() throws IOException {
+			temporary.close();
+			if (!temporaryFile.delete()) {
+				temporaryFile.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * The extent, file offset and compressed size of each block of a section
+	 * of the file, in order.
+	 */
+	private static final class BlockIndex {
+		private int[] startChromosomes = new int[64];
+		private int[] startBases = new int[64];
+		private int[] endChromosomes = new int[64];
+		private int[] endBases = new int[64];
+		private long[] offsets = new long[64];
+		private long[] sizes = new long[64];
+		private int size;
+
+		private void add(int startChromosome, int startBase, int endChromosome, int endBase, long offset, long compressedSize) {
+			if (size == offsets.length) {
+				int length = 2 * size;
+				startChromosomes = copyOf(startChromosomes, length);
+				startBases = copyOf(startBases, length);
+				endChromosomes = copyOf(endChromosomes, length);
+				endBases = copyOf(endBases, length);
+				offsets = copyOf(offsets, length);
+				sizes = copyOf(sizes, length);
+			}
+			startChromosomes[size] = startChromosome;
+			startBases[size] = startBase;
+			endChromosomes[size] = endChromosome;
+			endBases[size] = endBase;
+			offsets[size] = offset;
+			sizes[size] = compressedSize;
+			size++;
+		}
+
+		private void setEnd(int endChromosome, int endBase) {
+			endChromosomes[size - 1] = endChromosome;
+			endBases[size - 1] = endBase;
+		}
+
+		private void shiftOffsets(long shift) {
+			for (int i = 0; i < size; i++) {
+				offsets[i] += shift;
+			}
+		}
+
+		private static int[] copyOf(int[] array, int length) {
+			int[] copy = new int[length];
+			System.arraycopy(array, 0, copy, 0, array.length);
+			return copy;
+		}
+
+		private static long[] copyOf(long[] array, int length) {
+			long[] copy = new long[length];
+			System.arraycopy(array, 0, copy, 0, array.length);
+			return copy;
+		}
+	}
+
+	/**
+	 * Buffered little-endian output to a file channel that keeps track of
+	 * the file position.
+	 */
+	private static final class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long flushedPosition;
+
+		private Output(FileChannel channel) throws IOException {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			flushedPosition = channel.position();
+		}
+
+		private long position() {
+			return flushedPosition + buffer.position();
+		}
+
+		private void ensureRoom(int size) throws IOException {
+			if (buffer.remaining() < size) {
+				flush();
+			}
+		}
+
+		private void putByte(int value) throws IOException {
+			ensureRoom(1);
+			buffer.put((byte)value);
+		}
+
+		private void putShort(int value) throws IOException {
+			ensureRoom(2);
+			buffer.putShort((short)value);
+		}
+
+		private void putInt(int value) throws IOException {
+			ensureRoom(4);
+			buffer.putInt(value);
+		}
+
+		private void putLong(long value) throws IOException {
+			ensureRoom(8);
+			buffer.putLong(value);
+		}
+
+		private void put(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				ensureRoom(1);
+				int n = Math.min(length, buffer.remaining());
+				buffer.put(bytes, offset, n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		private void skip(int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				putByte(0);
+			}
+		}
+
+		/**
+		 * Appends the whole content of another channel.
+		 */
+		private void transferFrom(FileChannel source) throws IOException {
+			flush();
+			source.position(0);
+			long size = source.size();
+			long transferred = 0;
+			while (transferred < size) {
+				transferred += channel.transferFrom(source, flushedPosition + transferred, size - transferred);
+			}
+			flushedPosition += size;
+			channel.position(flushedPosition);
+		}
+
+		/**
+		 * Writes bytes at an earlier position, leaving the current one as is.
+		 */
+		private void write(ByteBuffer bytes, long position) throws IOException {
+			bytes.flip();
+			while (bytes.hasRemaining()) {
+				position += channel.write(bytes, position);
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				flushedPosition += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
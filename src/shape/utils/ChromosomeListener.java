@@ -0,0 +1,20 @@
+package shape.utils;
+
+import java.io.IOException;
+
+/**
+ * Told when every read of a reference sequence has been counted.
+ *
+ * @author Mason M Lai
+ */
+public interface ChromosomeListener {
+
+	/**
+	 * Called once all reads of a reference sequence have been counted. The
+	 * counts of that sequence will not change afterwards.
+	 *
+	 * @param chromosome name of the reference sequence
+	 * @throws IOException if the listener fails
+	 */
+	void chromosomeFinished(String chromosome) throws IOException;
+}
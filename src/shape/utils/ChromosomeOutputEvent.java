@@ -0,0 +1,40 @@
+package shape.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for the text outputs of one chromosome, written by
+ * {@code MutationProfileCollection.toFile}. Ranges are formatted ahead on
+ * other threads, so its duration runs from writing the first range of the
+ * chromosome to writing its last, and includes waiting for them to be
+ * formatted.
+ *
+ * @author Mason M Lai
+ */
+@Name("shape.ChromosomeOutput")
+@Label("Chromosome Output")
+@Category({"SHAPE", "Output"})
+@Description("Text outputs of one chromosome written")
+@StackTrace(false)
+public final class ChromosomeOutputEvent extends jdk.jfr.Event {
+
+	@Label("Chromosome")
+	public String chromosome;
+
+	@Label("Bytes Written")
+	@DataAmount(DataAmount.BYTES)
+	@Description("Text written to the .csv and .bedgraph outputs, before any compression")
+	public long bytesWritten;
+
+	@Label("Ranges")
+	@Description("Ranges of positions formatted separately")
+	public int ranges;
+
+	@Label("Compressed")
+	public boolean compressed;
+}
@@ -0,0 +1,233 @@
+package shape.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Builds a FlatBuffers buffer, the serialization Arrow uses for the metadata
+ * of its IPC files, without the FlatBuffers library. As in the reference
+ * builder, the buffer is filled from the back: children are created before
+ * the tables that point to them, and every object is referred to by its
+ * offset from the end of the buffer, as returned when it is created.
+ * <p>
+ * Only what Arrow metadata needs is supported: tables of scalars, offsets
+ * and unions, strings, vectors of offsets and vectors of structs of longs.
+ *
+ * @author Mason M Lai
+ */
+final class FlatBufferBuilder {
+
+	private ByteBuffer buffer;
+	// Index of the first used byte of the buffer.
+	private int space;
+	private int minAlignment;
+	private int[] vtable;
+	private int objectStart;
+
+	FlatBufferBuilder() {
+		buffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+		space = buffer.capacity();
+		minAlignment = 1;
+	}
+
+	/**
+	 * @return the offset from the end of the buffer of the last byte written
+	 */
+	int offset() {
+		return buffer.capacity() - space;
+	}
+
+	/**
+	 * Pads the buffer so that a value of a given size, written after a given
+	 * number of other bytes, is aligned on its size.
+	 */
+	private void prep(int size, int additionalBytes) {
+		minAlignment = Math.max(minAlignment, size);
+		int alignSize = -(offset() + additionalBytes) & (size - 1);
+		while (space < alignSize + size + additionalBytes) {
+			int used = offset();
+			ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+			System.arraycopy(buffer.array(), space, larger.array(), larger.capacity() - used, used);
+			buffer = larger;
+			space = buffer.capacity() - used;
+		}
+		for (int i = 0; i < alignSize; i++) {
+			buffer.put(--space, (byte)0);
+		}
+	}
+
+	private void addByte(int value) {
+		prep(1, 0);
+		buffer.put(--space, (byte)value);
+	}
+
+	private void addShort(int value) {
+		prep(2, 0);
+		space -= 2;
+		buffer.putShort(space, (short)value);
+	}
+
+	private void addInt(int value) {
+		prep(4, 0);
+		space -= 4;
+		buffer.putInt(space, value);
+	}
+
+	private void addLong(long value) {
+		prep(8, 0);
+		space -= 8;
+		buffer.putLong(space, value);
+	}
+
+	/**
+	 * Adds an offset to an object created earlier, relative to where the
+	 * offset itself is written, as FlatBuffers expects.
+	 */
+	private void addOffset(int target) {
+		prep(4, 0);
+		addInt(offset() + 4 - target);
+	}
+
+	/**
+	 * Creates a string, NUL-terminated as the format requires.
+	 *
+	 * @param bytes UTF-8 bytes of the string
+	 * @return the offset of the string
+	 */
+	int createString(byte[] bytes) {
+		prep(4, bytes.length + 1);
+		buffer.put(--space, (byte)0);
+		space -= bytes.length;
+		System.arraycopy(bytes, 0, buffer.array(), space, bytes.length);
+		addInt(bytes.length);
+		return offset();
+	}
+
+	/**
+	 * Creates a vector of offsets to objects created earlier.
+	 *
+	 * @param targets offsets of the objects, in order
+	 * @return the offset of the vector
+	 */
+	int createOffsetVector(int[] targets) {
+		prep(4, 4 * targets.length);
+		for (int i = targets.length - 1; i >= 0; i--) {
+			addOffset(targets[i]);
+		}
+		addInt(targets.length);
+		return offset();
+	}
+
+	/**
+	 * Creates a vector of structs made of longs, e.g., Arrow's FieldNode and
+	 * Buffer structs.
+	 *
+	 * @param structs       fields of every struct, one after another
+	 * @param longsPerStruct number of fields of each struct
+	 * @return the offset of the vector
+	 */
+	int createStructVector(long[] structs, int longsPerStruct) {
+		int numStructs = structs.length / longsPerStruct;
+		prep(4, 8 * structs.length);
+		prep(8, 8 * structs.length);
+		for (int i = structs.length - 1; i >= 0; i--) {
+			addLong(structs[i]);
+		}
+		addInt(numStructs);
+		return offset();
+	}
+
+	/**
+	 * Creates a vector of Arrow's Block structs, each a long offset, an int
+	 * metadata length padded to eight bytes, and a long body length.
+	 *
+	 * @param blocks offset, metadata length and body length of every block
+	 * @return the offset of the vector
+	 */
+	int createBlockVector(long[] blocks) {
+		int numBlocks = blocks.length / 3;
+		prep(4, 24 * numBlocks);
+		prep(8, 24 * numBlocks);
+		for (int i = numBlocks - 1; i >= 0; i--) {
+			addLong(blocks[3 * i + 2]);
+			addInt(0);
+			addInt((int)blocks[3 * i + 1]);
+			addLong(blocks[3 * i]);
+		}
+		addInt(numBlocks);
+		return offset();
+	}
+
+	/**
+	 * Starts a table. Its fields are added next, and it is finished with
+	 * {@link #endTable()}. Nothing else may be created in between.
+	 *
+	 * @param numFields number of fields in the schema of the table
+	 */
+	void startTable(int numFields) {
+		vtable = new int[numFields];
+		objectStart = offset();
+	}
+
+	void addByte(int field, int value) {
+		addByte(value);
+		vtable[field] = offset();
+	}
+
+	void addShort(int field, int value) {
+		addShort(value);
+		vtable[field] = offset();
+	}
+
+	void addInt(int field, int value) {
+		addInt(value);
+		vtable[field] = offset();
+	}
+
+	void addLong(int field, long value) {
+		addLong(value);
+		vtable[field] = offset();
+	}
+
+	void addOffset(int field, int target) {
+		addOffset(target);
+		vtable[field] = offset();
+	}
+
+	/**
+	 * Finishes a table, writing its vtable just before it.
+	 *
+	 * @return the offset of the table
+	 */
+	int endTable() {
+		// Placeholder for the offset from the table to its vtable.
+		addInt(0);
+		int tableOffset = offset();
+		int numFields = vtable.length;
+		while (numFields > 0 && vtable[numFields - 1] == 0) {
+			numFields--;
+		}
+		for (int i = numFields - 1; i >= 0; i--) {
+			addShort(vtable[i] != 0 ? tableOffset - vtable[i] : 0);
+		}
+		addShort(tableOffset - objectStart);
+		addShort(2 * (numFields + 2));
+		buffer.putInt(buffer.capacity() - tableOffset, offset() - tableOffset);
+		vtable = null;
+		return tableOffset;
+	}
+
+	/**
+	 * Finishes the buffer with its root table.
+	 *
+	 * @param root offset of the root table
+	 * @return the bytes of the buffer
+	 */
+	byte[] finish(int root) {
+		prep(minAlignment, 4);
+		addOffset(root);
+		byte[] bytes = new byte[offset()];
+		System.arraycopy(buffer.array(), space, bytes, 0, bytes.length);
+		return bytes;
+	}
+}
@@ -0,0 +1,57 @@
+package shape.utils;
+
+/**
+ * Sizes the stages of a pipelined pass through a .bam file: one reader
+ * thread, a pool of parser threads and a pool of accumulator threads,
+ * connected by bounded queues of read batches and event batches.
+ *
+ * @author Mason M Lai
+ */
+public final class PipelineSettings {
+
+	private final int numParsers;
+	private final int numAccumulators;
+	private final int batchSize;
+	private final int queueCapacity;
+
+	/**
+	 * @param numParsers      number of threads turning reads into events
+	 * @param numAccumulators number of threads adding events to the profiles.
+	 *                        More than one requires profiles that accept
+	 *                        concurrent updates.
+	 * @param batchSize       number of reads or read pairs per batch
+	 * @param queueCapacity   number of batches each queue holds before the
+	 *                        stage feeding it has to wait
+	 */
+	public PipelineSettings(int numParsers, int numAccumulators, int batchSize, int queueCapacity) {
+		if (numParsers < 1 || numAccumulators < 1) {
+			throw new IllegalArgumentException("Each stage of the pipeline needs at least one thread!");
+		}
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive!");
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be positive!");
+		}
+		this.numParsers = numParsers;
+		this.numAccumulators = numAccumulators;
+		this.batchSize = batchSize;
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getNumParsers() {
+		return numParsers;
+	}
+
+	public int getNumAccumulators() {
+		return numAccumulators;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+}
@@ -0,0 +1,491 @@
+package shape.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.sf.samtools.BAMFileSpan;
+import net.sf.samtools.BAMIndex;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceRecord;
+import shape.profiles.ChromosomeProfile;
+import shape.profiles.MutationProfile;
+import shape.profiles.MutationProfileCollection;
+
+/**
+ * Counters and timers of a pass through a .bam file, exposed over JMX as
+ * {@value #OBJECT_NAME}, and optionally printed as periodic progress lines.
+ * <p>
+ * Counting threads do not touch shared state for each read. Each processor
+ * keeps its own {@link Recorder} of plain fields, which is added to the
+ * shared totals every few thousand reads. Stages are timed on one read in
+ * {@value #SAMPLE_INTERVAL} and scaled up, so timing adds little to the cost
+ * of counting. Rates, memory footprints, queue depths and the time remaining
+ * are only computed when they are read.
+ * <p>
+ * Progress is estimated from virtual file offsets in the .bam index: for
+ * each reference sequence, the compressed offset of the chunk holding the
+ * latest counted position less that of its first read, summed over
+ * sequences and divided by the size of the file. This also holds when
+ * sequences are counted in parallel. Without an index, the fraction of
+ * reference positions passed is used instead.
+ *
+ * @author Mason M Lai
+ */
+public final class ProcessingMetrics implements ProcessingMetricsMXBean {
+
+	public static final String OBJECT_NAME = "shape:type=ProcessingMetrics";
+
+	/**
+	 * Stages of counting that are timed.
+	 */
+	public enum Stage {
+		/** Reading and decoding records from the .bam file. */
+		DECODE,
+		/** Parsing MD tags. */
+		MD_PARSE,
+		/**
+		 * Walking the CIGAR and MD tag of reads. When reads are counted
+		 * directly, this includes adding the counts to the profiles.
+		 */
+		WALK,
+		/** Adding the events of the read pipeline, or merging the partitions of parallel threads, to the profiles. */
+		ACCUMULATE,
+		/** Writing outputs. */
+		WRITE
+	}
+
+	/**
+	 * Reasons for which reads are not counted, or counted only in part.
+	 */
+	public enum SkipReason {
+		/** The read is not aligned to a reference sequence. */
+		UNMAPPED,
+		/** The MD tag of the read is malformed from some point on, which is not counted. */
+		INVALID_MD_TAG
+	}
+
+	private static final int SAMPLE_INTERVAL = 64;
+	private static final int FLUSH_INTERVAL = 4096;
+
+	private final long startNanos;
+	private final AtomicLong numReads = new AtomicLong();
+	private final AtomicLong numBases = new AtomicLong();
+	private final AtomicLongArray numSkipped = new AtomicLongArray(SkipReason.values().length);
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	private final Map<String, Collection<?>> queues = new ConcurrentHashMap<String, Collection<?>>();
+	// Latest position counted on each reference sequence, as of the last flush of any recorder.
+	private final Map<String, Integer> latestPositions = new ConcurrentHashMap<String, Integer>();
+	private volatile MutationProfileCollection profiles;
+
+	// Used under the lock of this object by whichever thread estimates progress.
+	private final SAMFileReader reader;
+	private final long fileLength;
+	private final Map<String, Integer> sequenceIndexes;
+	private final long totalLength;
+	private long[] firstOffsets;
+
+	private ScheduledExecutorService reporter;
+	private ObjectName objectName;
+
+	/**
+	 * @param bamFile the .bam file being counted, whose index, if any, is used
+	 *                to estimate progress
+	 */
+	public ProcessingMetrics(File bamFile) {
+		startNanos = System.nanoTime();
+		reader = new SAMFileReader(bamFile);
+		fileLength = bamFile.length();
+		sequenceIndexes = new HashMap<String, Integer>();
+		long length = 0;
+		List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+		for (int i = 0; i < sequences.size(); i++) {
+			sequenceIndexes.put(sequences.get(i).getSequenceName(), i);
+			length += sequences.get(i).getSequenceLength();
+		}
+		totalLength = length;
+	}
+
+	/**
+	 * Makes the metrics readable over JMX, e.g., with jconsole.
+	 *
+	 * @throws IOException if the metrics cannot be registered, e.g., because
+	 * another run in the same JVM already registered its own
+	 */
+	public void register() throws IOException {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch (JMException e) {
+			throw new IOException("Could not register " + OBJECT_NAME + " over JMX.", e);
+		}
+	}
+
+	/**
+	 * Prints a line of progress at a fixed period, on a background thread,
+	 * until {@link #stopProgress()} or {@link #close()} is called.
+	 *
+	 * @param periodSeconds seconds between lines
+	 */
+	public synchronized void startProgress(int periodSeconds) {
+		if (periodSeconds < 1) {
+			throw new IllegalArgumentException("Period of progress lines must be positive!");
+		}
+		stopProgress();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			private long lastNanos = startNanos;
+			private long lastReads = 0;
+			private long lastBases = 0;
+
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				long reads = numReads.get();
+				long bases = numBases.get();
+				double seconds = (now - lastNanos) / 1e9;
+				double fraction = getFractionDone();
+				long remaining = secondsRemaining(fraction);
+				System.out.println(String.format("%d reads counted; %.0f reads/s and %.2f Mb/s over the last %.0f s; " +
+						"%.1f%% of the file read, %s left.", reads, (reads - lastReads) / seconds,
+						(bases - lastBases) / seconds / 1e6, seconds, 100 * fraction,
+						remaining < 0 ? "an unknown time" : formatDuration(remaining)));
+				lastNanos = now;
+				lastReads = reads;
+				lastBases = bases;
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops printing progress lines, e.g., once counting is over.
+	 */
+	public synchronized void stopProgress() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	/**
+	 * Stops printing progress lines, removes the metrics from JMX and closes
+	 * the .bam file.
+	 *
+	 * @throws IOException if the metrics cannot be unregistered
+	 */
+	public synchronized void close() throws IOException {
+		stopProgress();
+		reader.close();
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				throw new IOException("Could not unregister " + OBJECT_NAME + " from JMX.", e);
+			} finally {
+				objectName = null;
+			}
+		}
+	}
+
+	/**
+	 * @return a recorder for one thread
+	 */
+	public Recorder newRecorder() {
+		return new Recorder();
+	}
+
+	/**
+	 * Adds time spent in a stage outside of the counting threads, e.g., in
+	 * writing outputs. Unlike the recorders, adds to the shared total at once.
+	 *
+	 * @param stage the stage
+	 * @param nanos nanoseconds spent in it
+	 */
+	public void addTime(Stage stage, long nanos) {
+		stageNanos.addAndGet(stage.ordinal(), nanos);
+	}
+
+	/**
+	 * Reports the depth of a queue until it is removed.
+	 *
+	 * @param name  name of the queue
+	 * @param queue the queue, whose size must be safe to read from any thread
+	 */
+	public void addQueue(String name, Collection<?> queue) {
+		queues.put(name, queue);
+	}
+
+	public void removeQueue(String name) {
+		queues.remove(name);
+	}
+
+	/**
+	 * Reports the memory footprint of each chromosome of a collection.
+	 *
+	 * @param profiles the collection being counted into
+	 */
+	public void setProfiles(MutationProfileCollection profiles) {
+		this.profiles = profiles;
+	}
+
+	@Override
+	public long getReadsProcessed() {
+		return numReads.get();
+	}
+
+	@Override
+	public long getBasesProcessed() {
+		return numBases.get();
+	}
+
+	@Override
+	public double getReadsPerSecond() {
+		return numReads.get() / elapsedSeconds();
+	}
+
+	@Override
+	public double getBasesPerSecond() {
+		return numBases.get() / elapsedSeconds();
+	}
+
+	@Override
+	public Map<String, Long> getSkippedReads() {
+		Map<String, Long> skipped = new LinkedHashMap<String, Long>();
+		for (SkipReason reason : SkipReason.values()) {
+			skipped.put(reason.name(), numSkipped.get(reason.ordinal()));
+		}
+		return skipped;
+	}
+
+	@Override
+	public Map<String, Double> getStageSeconds() {
+		Map<String, Double> seconds = new LinkedHashMap<String, Double>();
+		for (Stage stage : Stage.values()) {
+			seconds.put(stage.name(), stageNanos.get(stage.ordinal()) / 1e9);
+		}
+		return seconds;
+	}
+
+	@Override
+	public Map<String, Long> getMemoryFootprints() {
+		Map<String, Long> footprints = new LinkedHashMap<String, Long>();
+		MutationProfileCollection current = profiles;
+		if (current == null) {
+			return footprints;
+		}
+		for (ChromosomeProfile<MutationProfile> chromosome : current.getProfiles().values()) {
+			footprints.put(chromosome.getName(), chromosome.getPositiveStrand().getMemoryFootprint() +
+					chromosome.getNegativeStrand().getMemoryFootprint());
+		}
+		return footprints;
+	}
+
+	@Override
+	public Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, Collection<?>> queue : queues.entrySet()) {
+			depths.put(queue.getKey(), queue.getValue().size());
+		}
+		return depths;
+	}
+
+	@Override
+	public synchronized double getFractionDone() {
+		long done = 0;
+		if (reader.hasIndex()) {
+			BAMIndex index = reader.getIndex();
+			if (firstOffsets == null) {
+				firstOffsets = new long[sequenceIndexes.size()];
+				for (SAMSequenceRecord sequence : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+					int i = sequenceIndexes.get(sequence.getSequenceName());
+					firstOffsets[i] = fileOffset(index, i, 1, sequence.getSequenceLength());
+				}
+			}
+			for (Map.Entry<String, Integer> latest : latestPositions.entrySet()) {
+				Integer i = sequenceIndexes.get(latest.getKey());
+				if (i == null || firstOffsets[i] < 0) {
+					continue;
+				}
+				long offset = fileOffset(index, i, latest.getValue() + 1, latest.getValue() + 1);
+				if (offset > firstOffsets[i]) {
+					done += offset - firstOffsets[i];
+				}
+			}
+			return fileLength > 0 ? Math.min(1, (double)done / fileLength) : 0;
+		}
+		for (Map.Entry<String, Integer> latest : latestPositions.entrySet()) {
+			if (sequenceIndexes.containsKey(latest.getKey())) {
+				done += latest.getValue();
+			}
+		}
+		return totalLength > 0 ? Math.min(1, (double)done / totalLength) : 0;
+	}
+
+	@Override
+	public long getSecondsRemaining() {
+		return secondsRemaining(getFractionDone());
+	}
+
+	private long secondsRemaining(double fraction) {
+		if (fraction <= 0) {
+			return -1;
+		}
+		return Math.round(elapsedSeconds() * (1 - fraction) / fraction);
+	}
+
+	/**
+	 * Gets the compressed file offset of the first chunk of reads overlapping
+	 * a range of a reference sequence, from its virtual file offset.
+	 *
+	 * @return the offset, or -1 if no reads overlap the range
+	 */
+	private static long fileOffset(BAMIndex index, int sequenceIndex, int start, int end) {
+		BAMFileSpan span = index.getSpanOverlapping(sequenceIndex, start, end);
+		if (span == null || span.isEmpty()) {
+			return -1;
+		}
+		return span.getFirstOffset() >>> 16;
+	}
+
+	private double elapsedSeconds() {
+		return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+	}
+
+	private static String formatDuration(long seconds) {
+		return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+	/**
+	 * The counts and times of one thread, added to the shared totals every
+	 * few thousand reads and when flushed. Not thread-safe.
+	 */
+	public final class Recorder {
+		private long reads;
+		private long bases;
+		private final long[] skipped = new long[SkipReason.values().length];
+		private final long[] nanos = new long[Stage.values().length];
+		private String chromosome;
+		private int position;
+		private int untilFlush = FLUSH_INTERVAL;
+		private int untilSample = 1;
+		private int untilDecodeSample = 1;
+		private boolean sampled;
+
+		private Recorder() {
+		}
+
+		/**
+		 * Starts a read or read pair, deciding whether its stages are timed.
+		 *
+		 * @return whether the stages of this read are timed
+		 */
+		public boolean startRead() {
+			sampled = --untilSample == 0;
+			if (sampled) {
+				untilSample = SAMPLE_INTERVAL;
+			}
+			return sampled;
+		}
+
+		/**
+		 * @return whether the stages of the current read are timed
+		 */
+		public boolean isSampled() {
+			return sampled;
+		}
+
+		/**
+		 * Decides whether decoding the next record is timed. Decoding is
+		 * sampled separately, since records may be decoded on another
+		 * thread than the one parsing them.
+		 *
+		 * @return whether to time decoding the next record
+		 */
+		public boolean sampleDecode() {
+			if (--untilDecodeSample == 0) {
+				untilDecodeSample = SAMPLE_INTERVAL;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Counts a read or read pair.
+		 *
+		 * @param chromosome name of its reference sequence
+		 * @param position   its start on the reference sequence
+		 * @param numReads   number of reads, 2 for a pair
+		 * @param numBases   number of bases of all its reads
+		 */
+		public void addRead(String chromosome, int position, int numReads, int numBases) {
+			reads += numReads;
+			bases += numBases;
+			this.chromosome = chromosome;
+			this.position = position;
+			if (--untilFlush == 0) {
+				flush();
+			}
+		}
+
+		public void addSkipped(SkipReason reason) {
+			skipped[reason.ordinal()]++;
+		}
+
+		/**
+		 * Adds the time of a stage of a sampled read, scaled up to stand for
+		 * the reads that were not timed.
+		 */
+		public void addSampledTime(Stage stage, long nanos) {
+			this.nanos[stage.ordinal()] += nanos * SAMPLE_INTERVAL;
+		}
+
+		/**
+		 * Adds what was recorded since the last flush to the shared totals.
+		 */
+		public void flush() {
+			numReads.addAndGet(reads);
+			numBases.addAndGet(bases);
+			for (int i = 0; i < skipped.length; i++) {
+				if (skipped[i] != 0) {
+					numSkipped.addAndGet(i, skipped[i]);
+					skipped[i] = 0;
+				}
+			}
+			for (int i = 0; i < nanos.length; i++) {
+				if (nanos[i] != 0) {
+					stageNanos.addAndGet(i, nanos[i]);
+					nanos[i] = 0;
+				}
+			}
+			if (chromosome != null) {
+				latestPositions.put(chromosome, position);
+			}
+			reads = 0;
+			bases = 0;
+			untilFlush = FLUSH_INTERVAL;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package shape.utils;
+
+import java.util.Map;
+
+/**
+ * What {@link ProcessingMetrics} exposes over JMX. Every value is computed
+ * when it is read, so nothing is spent on it while no one is looking.
+ *
+ * @author Mason M Lai
+ */
+public interface ProcessingMetricsMXBean {
+
+	/**
+	 * @return number of reads counted so far, each mate of a pair counting
+	 * as one read
+	 */
+	long getReadsProcessed();
+
+	/**
+	 * @return number of read bases counted so far, including soft-clipped
+	 * and inserted bases
+	 */
+	long getBasesProcessed();
+
+	/**
+	 * @return reads counted per second since counting started
+	 */
+	double getReadsPerSecond();
+
+	/**
+	 * @return read bases counted per second since counting started
+	 */
+	double getBasesPerSecond();
+
+	/**
+	 * @return number of reads skipped, in whole or in part, for each reason
+	 */
+	Map<String, Long> getSkippedReads();
+
+	/**
+	 * @return estimated seconds spent so far in each stage, summed over threads
+	 */
+	Map<String, Double> getStageSeconds();
+
+	/**
+	 * @return estimated bytes taken by the counts of each chromosome
+	 */
+	Map<String, Long> getMemoryFootprints();
+
+	/**
+	 * @return number of batches waiting in each queue of the read pipeline
+	 */
+	Map<String, Integer> getQueueDepths();
+
+	/**
+	 * @return estimated fraction of the .bam file read so far, from 0 to 1
+	 */
+	double getFractionDone();
+
+	/**
+	 * @return estimated seconds until the .bam file has been read, or -1 if
+	 * not yet known
+	 */
+	long getSecondsRemaining();
+}
@@ -0,0 +1,41 @@
+package shape.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for the profiles of a chromosome being allocated,
+ * or grown because a read ran past their end. Growth copies every count of
+ * the chromosome, so frequent growth points at a .bam header with wrong
+ * lengths.
+ *
+ * @author Mason M Lai
+ */
+@Name("shape.ProfileAllocation")
+@Label("Profile Allocation")
+@Category({"SHAPE", "Profiles"})
+@Description("Profiles of a chromosome allocated or grown")
+public final class ProfileAllocationEvent extends jdk.jfr.Event {
+
+	@Label("Chromosome")
+	public String chromosome;
+
+	@Label("Storage Type")
+	public String storageType;
+
+	@Label("Previous Length")
+	@Description("Length in nt before growing, or 0 for a new chromosome")
+	public int previousLength;
+
+	@Label("Length")
+	@Description("Length in nt after allocating or growing")
+	public int length;
+
+	@Label("Memory Footprint")
+	@DataAmount(DataAmount.BYTES)
+	@Description("Estimated bytes taken by the counts of both strands")
+	public long memoryFootprint;
+}
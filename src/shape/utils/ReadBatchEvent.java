@@ -0,0 +1,42 @@
+package shape.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a batch of reads counted by a
+ * {@link BamProcessor}. In the read pipeline, a batch is one batch of the
+ * pipeline; otherwise it is a run of up to 1024 records on the same
+ * reference sequence. Its duration covers parsing the batch on one thread.
+ * <p>
+ * Batches are only traced while a recording has this event enabled, so
+ * counting pays for one check per batch otherwise.
+ *
+ * @author Mason M Lai
+ */
+@Name("shape.ReadBatch")
+@Label("Read Batch")
+@Category({"SHAPE", "Counting"})
+@Description("Reads counted together on one thread")
+@StackTrace(false)
+public final class ReadBatchEvent extends jdk.jfr.Event {
+
+	@Label("Chromosome")
+	@Description("Reference sequence of the first read of the batch")
+	public String chromosome;
+
+	@Label("Reads")
+	@Description("Reads counted, each mate of a pair counting as one read")
+	public int reads;
+
+	@Label("Bases")
+	@Description("Bases of the reads counted, including soft-clipped and inserted bases")
+	public long bases;
+
+	@Label("Skipped Reads")
+	@Description("Unmapped reads, which are not counted")
+	public int skippedReads;
+}
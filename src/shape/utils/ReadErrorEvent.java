@@ -0,0 +1,44 @@
+package shape.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a read whose MD tag or CIGAR string cannot be
+ * counted as is, e.g., because the tag is missing or malformed, or because
+ * the two do not agree. Invalid MD tags are counted up to the first invalid
+ * token; the other errors stop the run.
+ *
+ * @author Mason M Lai
+ */
+@Name("shape.ReadError")
+@Label("Read Error")
+@Category({"SHAPE", "Counting"})
+@Description("Read with a missing, invalid or inconsistent MD tag or CIGAR string")
+public final class ReadErrorEvent extends jdk.jfr.Event {
+
+	public static final String MISSING_MD_TAG = "MISSING_MD_TAG";
+	public static final String INVALID_MD_TAG = "INVALID_MD_TAG";
+	public static final String MISSING_CIGAR = "MISSING_CIGAR";
+	public static final String CIGAR_MD_MISMATCH = "CIGAR_MD_MISMATCH";
+	public static final String UNKNOWN_OPERATOR = "UNKNOWN_OPERATOR";
+
+	@Label("Chromosome")
+	public String chromosome;
+
+	@Label("Position")
+	@Description("Start of the read on the reference sequence, 0-based")
+	public int position;
+
+	@Label("Read Name")
+	public String readName;
+
+	@Label("Kind")
+	@Description("One of MISSING_MD_TAG, INVALID_MD_TAG, MISSING_CIGAR, CIGAR_MD_MISMATCH or UNKNOWN_OPERATOR")
+	public String kind;
+
+	@Label("Message")
+	public String message;
+}
@@ -0,0 +1,36 @@
+package shape.utils;
+
+import java.io.IOException;
+
+/**
+ * The counts produced by parsing a batch of reads, held as compact events
+ * until they are applied to a profile collection. Lets parsing and counting
+ * run on different threads. See
+ * {@link BamProcessor#parseReads(guttmanlab.core.annotationcollection.AnnotationCollection, shape.profiles.ChromosomeProfileCollection, PipelineSettings)}.
+ *
+ * @author Mason M Lai
+ *
+ * @param <T> the profile collection the events are applied to
+ */
+public interface ReadEvents<T> {
+
+	/**
+	 * Adds every event to a profile collection.
+	 *
+	 * @param profiles the collection to be updated
+	 * @throws IOException if an event cannot be applied
+	 */
+	void applyTo(T profiles) throws IOException;
+
+	/**
+	 * Removes every event so that the buffer can be reused.
+	 */
+	void clear();
+
+	/**
+	 * Gets the number of events held.
+	 *
+	 * @return number of events
+	 */
+	int size();
+}
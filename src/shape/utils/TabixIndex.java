@@ -0,0 +1,236 @@
+package shape.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a tabix index (.tbi) of a sorted, tab-separated text file written
+ * through a {@link BgzfOutputStream}, so that tabix, htslib and other
+ * readers can fetch the lines overlapping a region without reading the whole
+ * file. Lines are added as they are written, and must be sorted by position
+ * within each sequence, with all lines of a sequence together.
+ *
+ * @author Mason M Lai
+ */
+public final class TabixIndex {
+
+	/**
+	 * Format of files with 1-based, closed coordinates.
+	 */
+	public static final int FORMAT_GENERIC = 0;
+
+	/**
+	 * Flag of files with 0-based, half-open coordinates, such as BED and
+	 * bedGraph files.
+	 */
+	public static final int FLAG_UCSC = 0x10000;
+
+	private static final byte[] MAGIC = {'T', 'B', 'I', 1};
+	private static final int LINEAR_SHIFT = 14;
+
+	private final int format;
+	private final int sequenceColumn;
+	private final int beginColumn;
+	private final int endColumn;
+	private final char metaCharacter;
+	private final int linesToSkip;
+	private final Map<String, SequenceIndex> sequences;
+	private SequenceIndex last;
+
+	/**
+	 * @param format         {@link #FORMAT_GENERIC}, optionally with
+	 *                       {@link #FLAG_UCSC}
+	 * @param sequenceColumn 1-based column of the sequence name
+	 * @param beginColumn    1-based column of the start of each line
+	 * @param endColumn      1-based column of the end of each line, or 0 if
+	 *                       lines only have a start
+	 * @param metaCharacter  first character of comment lines
+	 * @param linesToSkip    number of header lines at the start of the file
+	 */
+	public TabixIndex(int format, int sequenceColumn, int beginColumn, int endColumn, char metaCharacter, int linesToSkip) {
+		this.format = format;
+		this.sequenceColumn = sequenceColumn;
+		this.beginColumn = beginColumn;
+		this.endColumn = endColumn;
+		this.metaCharacter = metaCharacter;
+		this.linesToSkip = linesToSkip;
+		sequences = new LinkedHashMap<String, SequenceIndex>();
+	}
+
+	/**
+	 * Adds a line of the indexed file.
+	 *
+	 * @param sequence     name of the sequence of the line
+	 * @param begin        0-based start of the line
+	 * @param end          position after the end of the line
+	 * @param startAddress block address of the first byte of the line
+	 * @param endAddress   block address of the byte after the line
+	 * @throws IllegalArgumentException if the line is out of order
+	 */
+	public void addLine(String sequence, int begin, int end, long startAddress, long endAddress) {
+		if (last == null || !last.name.equals(sequence)) {
+			if (sequences.containsKey(sequence)) {
+				throw new IllegalArgumentException("Lines of sequence " + sequence + " are not together.");
+			}
+			last = new SequenceIndex(sequence);
+			sequences.put(sequence, last);
+		}
+		if (begin < last.lastBegin) {
+			throw new IllegalArgumentException("Lines of sequence " + sequence + " are not sorted by position.");
+		}
+		last.lastBegin = begin;
+		last.add(begin, Math.max(end, begin + 1), startAddress, endAddress);
+	}
+
+	/**
+	 * Writes the index, BGZF-compressed as tabix expects.
+	 *
+	 * @param file the index file to create
+	 * @param data the closed stream of the indexed file, which resolves block
+	 *             addresses to virtual file offsets
+	 * @throws IOException if the index cannot be written
+	 */
+	public void write(File file, BgzfOutputStream data) throws IOException {
+		OutputStream out = new BgzfOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.write(MAGIC);
+			writeInt(out, sequences.size());
+			writeInt(out, format);
+			writeInt(out, sequenceColumn);
+			writeInt(out, beginColumn);
+			writeInt(out, endColumn);
+			writeInt(out, metaCharacter);
+			writeInt(out, linesToSkip);
+			int namesLength = 0;
+			for (String name : sequences.keySet()) {
+				namesLength += name.getBytes().length + 1;
+			}
+			writeInt(out, namesLength);
+			for (String name : sequences.keySet()) {
+				out.write(name.getBytes());
+				out.write(0);
+			}
+			for (SequenceIndex sequence : sequences.values()) {
+				sequence.write(out, data);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Computes the smallest bin of the UCSC binning scheme that contains a
+	 * region, as in the SAM specification.
+	 */
+	private static int regionToBin(int begin, int end) {
+		end--;
+		if (begin >> 14 == end >> 14) {
+			return ((1 << 15) - 1) / 7 + (begin >> 14);
+		}
+		if (begin >> 17 == end >> 17) {
+			return ((1 << 12) - 1) / 7 + (begin >> 17);
+		}
+		if (begin >> 20 == end >> 20) {
+			return ((1 << 9) - 1) / 7 + (begin >> 20);
+		}
+		if (begin >> 23 == end >> 23) {
+			return ((1 << 6) - 1) / 7 + (begin >> 23);
+		}
+		if (begin >> 26 == end >> 26) {
+			return ((1 << 3) - 1) / 7 + (begin >> 26);
+		}
+		return 0;
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	private static void writeLong(OutputStream out, long value) throws IOException {
+		writeInt(out, (int)value);
+		writeInt(out, (int)(value >>> 32));
+	}
+
+	/**
+	 * The bins and linear index of one sequence, in block addresses.
+	 */
+	private static final class SequenceIndex {
+		private final String name;
+		// Chunks of each bin as pairs of start and end addresses.
+		private final Map<Integer, List<long[]>> bins;
+		// Address of the first line overlapping each 16 kb window, or -1.
+		private long[] linear;
+		private int lastBegin;
+
+		private SequenceIndex(String name) {
+			this.name = name;
+			bins = new LinkedHashMap<Integer, List<long[]>>();
+			linear = new long[0];
+		}
+
+		private void add(int begin, int end, long startAddress, long endAddress) {
+			Integer bin = regionToBin(begin, end);
+			List<long[]> chunks = bins.get(bin);
+			if (chunks == null) {
+				chunks = new ArrayList<long[]>();
+				bins.put(bin, chunks);
+			}
+			long[] lastChunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if (lastChunk != null && lastChunk[1] == startAddress) {
+				lastChunk[1] = endAddress;
+			} else {
+				chunks.add(new long[] {startAddress, endAddress});
+			}
+
+			int lastWindow = (end - 1) >> LINEAR_SHIFT;
+			if (lastWindow >= linear.length) {
+				int oldLength = linear.length;
+				long[] larger = new long[Math.max(lastWindow + 1, oldLength * 2)];
+				System.arraycopy(linear, 0, larger, 0, oldLength);
+				for (int i = oldLength; i < larger.length; i++) {
+					larger[i] = -1;
+				}
+				linear = larger;
+			}
+			for (int window = begin >> LINEAR_SHIFT; window <= lastWindow; window++) {
+				if (linear[window] == -1) {
+					linear[window] = startAddress;
+				}
+			}
+		}
+
+		private void write(OutputStream out, BgzfOutputStream data) throws IOException {
+			writeInt(out, bins.size());
+			for (Map.Entry<Integer, List<long[]>> bin : bins.entrySet()) {
+				writeInt(out, bin.getKey());
+				writeInt(out, bin.getValue().size());
+				for (long[] chunk : bin.getValue()) {
+					writeLong(out, data.getVirtualOffset(chunk[0]));
+					writeLong(out, data.getVirtualOffset(chunk[1]));
+				}
+			}
+			int numWindows = linear.length;
+			while (numWindows > 0 && linear[numWindows - 1] == -1) {
+				numWindows--;
+			}
+			writeInt(out, numWindows);
+			long previous = 0;
+			for (int i = 0; i < numWindows; i++) {
+				// Windows without lines of their own take the offset of the window before, as in htslib.
+				long offset = linear[i] == -1 ? previous : data.getVirtualOffset(linear[i]);
+				writeLong(out, offset);
+				previous = offset;
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package shape.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A region of a reference sequence to be counted on its own, such as a
+ * target transcript or amplicon. Coordinates are 0-based and half-open, as
+ * in a BED file.
+ *
+ * @author Mason M Lai
+ */
+public final class TargetRegion {
+
+	private final String name;
+	private final String chromosome;
+	private final int start;
+	private final int end;
+
+	public TargetRegion(String name, String chromosome, int start, int end) {
+		if (start < 0 || end <= start) {
+			throw new IllegalArgumentException("Region " + name + " must have a non-negative start and end after its start.");
+		}
+		this.name = name;
+		this.chromosome = chromosome;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Gets the name of the region, which names its profiles.
+	 *
+	 * @return name of the region
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getChromosome() {
+		return chromosome;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public int getLength() {
+		return end - start;
+	}
+
+	/**
+	 * Reads regions from a BED file or a Picard interval list. A file is read
+	 * as an interval list, whose coordinates are 1-based and closed, if its
+	 * name ends in ".interval_list" or its first line is an "@" header line.
+	 * Regions are named after the name column if there is one, and after
+	 * their coordinates otherwise.
+	 *
+	 * @param file a BED file or interval list
+	 * @return the regions in file order
+	 * @throws IOException if the file cannot be read or a line is malformed
+	 */
+	public static List<TargetRegion> readRegions(File file) throws IOException {
+		List<TargetRegion> regions = new ArrayList<TargetRegion>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			boolean isIntervalList = file.getName().endsWith(".interval_list");
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.startsWith("@")) {
+					isIntervalList = true;
+					continue;
+				}
+				if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length < 3) {
+					throw new IOException("Line " + lineNumber + " of " + file.getName() + " has fewer than three columns.");
+				}
+				int start;
+				int end;
+				try {
+					start = Integer.parseInt(fields[1].trim());
+					end = Integer.parseInt(fields[2].trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Line " + lineNumber + " of " + file.getName() + " has a malformed start or end.", e);
+				}
+				if (isIntervalList) {
+					start--;
+				}
+				String chromosome = fields[0].trim();
+				int nameColumn = isIntervalList ? 4 : 3;
+				String name = fields.length > nameColumn && !fields[nameColumn].trim().isEmpty()
+						? fields[nameColumn].trim()
+						: chromosome + ":" + start + "-" + end;
+				try {
+					regions.add(new TargetRegion(name, chromosome, start, end));
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Line " + lineNumber + " of " + file.getName() + ": " + e.getMessage(), e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return regions;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + chromosome + ":" + start + "-" + end + ")";
+	}
+}
@@ -0,0 +1,225 @@
+package shape.utils;
+
+/**
+ * The reference positions of a read or read pair that have already been
+ * counted, or that are excluded from counting, so that no position is
+ * counted twice where mates overlap.
+ * <p>
+ * Most reads never need a set. Positions within a single read only increase
+ * as the read is walked, so the only earlier position it can revisit is the
+ * last one it counted (e.g., the base after an insertion). A single read, or
+ * a mate that cannot reach the positions of the other mate, is therefore
+ * described by its two excluded end ranges and its last visited position.
+ * Only mates whose spans overlap are tracked in a bitset, which covers the
+ * span of the pair and is reused from pair to pair.
+ * <p>
+ * Not thread-safe. Each thread should use its own instance.
+ * 
+ * @author Mason M Lai
+ */
+public final class VisitedPositions {
+
+	private static final int NONE = Integer.MIN_VALUE;
+
+	private boolean tracking;
+	
+	// Used when not tracking.
+	private int headStart;
+	private int headEnd;
+	private int tailStart;
+	private int tailEnd;
+	private int lastVisited;
+	
+	// Used when tracking. Bit i represents reference position origin + i.
+	private long[] bits;
+	private int origin;
+	private int span;
+	
+	public VisitedPositions() {
+		bits = new long[8];
+		clear();
+	}
+	
+	/**
+	 * Forgets all positions, and stops tracking. Call before a single read.
+	 */
+	public void clear() {
+		tracking = false;
+		headStart = headEnd = tailStart = tailEnd = NONE;
+		lastVisited = NONE;
+	}
+	
+	/**
+	 * Prepares for a read pair. If the positions the first mate can mark
+	 * overlap the positions the second mate can count, the pair is tracked in
+	 * a bitset; otherwise, each mate is handled as a single read.
+	 * <p>
+	 * A read covering [start, end) can count positions start through end
+	 * inclusive (an insertion at its end sits at end), and marks the same
+	 * positions plus its excluded ends.
+	 * 
+	 * @param start1 start of the first mate
+	 * @param end1   end of the first mate (exclusive)
+	 * @param start2 start of the second mate
+	 * @param end2   end of the second mate (exclusive)
+	 * @param n      number of bases excluded from each end of each read
+	 */
+	public void startPair(int start1, int end1, int start2, int end2, int n) {
+		int markedFrom = Math.min(start1, end1 - n + 1);
+		int markedTo = Math.max(end1, start1 + n - 1);
+		if (start2 > markedTo || end2 < markedFrom) {
+			clear();
+			return;
+		}
+		int lo = Math.min(markedFrom, Math.min(start2, end2 - n + 1));
+		int hi = Math.max(markedTo, Math.max(end2, start2 + n - 1));
+		tracking = true;
+		origin = lo;
+		span = hi - lo + 1;
+		int words = (span + 63) >>> 6;
+		if (bits.length < words) {
+			bits = new long[Math.max(words, bits.length * 2)];
+		} else {
+			for (int i = 0; i < words; i++) {
+				bits[i] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Marks the first and last n positions of a read as visited, so that they
+	 * are not counted. Call at the start of each read. For a read covering
+	 * [start, end), excludes [start, start + n) and [end - n + 1, end].
+	 * 
+	 * @param start start of the read
+	 * @param end   end of the read (exclusive)
+	 * @param n     number of bases excluded from each end
+	 */
+	public void excludeEnds(int start, int end, int n) {
+		if (tracking) {
+			if (n > 0) {
+				addRange(start, start + n);
+				addRange(end - n + 1, end + 1);
+			}
+		} else {
+			if (n > 0) {
+				headStart = start;
+				headEnd = start + n;
+				tailStart = end - n + 1;
+				tailEnd = end + 1;
+			} else {
+				headStart = headEnd = tailStart = tailEnd = NONE;
+			}
+			lastVisited = NONE;
+		}
+	}
+	
+	public boolean contains(int position) {
+		if (tracking) {
+			int i = position - origin;
+			return i >= 0 && i < span && (bits[i >>> 6] & (1L << i)) != 0;
+		} else {
+			return (position >= headStart && position < headEnd) ||
+				   (position >= tailStart && position < tailEnd) ||
+				   position == lastVisited;
+		}
+	}
+	
+	public void add(int position) {
+		if (tracking) {
+			int i = position - origin;
+			if (i >= 0 && i < span) {
+				bits[i >>> 6] |= 1L << i;
+			}
+		} else {
+			lastVisited = position;
+		}
+	}
+	
+	/**
+	 * Marks every position of a range as visited.
+	 * 
+	 * @param start first position of the range
+	 * @param end   position after the last position of the range
+	 */
+	public void addRange(int start, int end) {
+		if (start >= end) {
+			return;
+		}
+		if (tracking) {
+			int from = Math.max(start - origin, 0);
+			int to = Math.min(end - origin, span);
+			for (int i = from; i < to; i++) {
+				bits[i >>> 6] |= 1L << i;
+			}
+		} else {
+			lastVisited = end - 1;
+		}
+	}
+	
+	/**
+	 * Finds the first position of a range that has not been visited.
+	 * 
+	 * @param from first position of the range
+	 * @param to   position after the last position of the range
+	 * @return the first unvisited position, or {@code to} if there is none
+	 */
+	public int nextUnvisited(int from, int to) {
+		if (tracking) {
+			int position = from;
+			while (position < to && contains(position)) {
+				position++;
+			}
+			return position;
+		}
+		int position = from;
+		boolean moved = true;
+		while (moved && position < to) {
+			moved = false;
+			if (position >= headStart && position < headEnd) {
+				position = headEnd;
+				moved = true;
+			}
+			if (position >= tailStart && position < tailEnd) {
+				position = tailEnd;
+				moved = true;
+			}
+			if (position == lastVisited) {
+				position++;
+				moved = true;
+			}
+		}
+		return Math.min(position, to);
+	}
+	
+	/**
+	 * Finds the first position of a range that has been visited.
+	 * 
+	 * @param from first position of the range
+	 * @param to   position after the last position of the range
+	 * @return the first visited position, or {@code to} if there is none
+	 */
+	public int nextVisited(int from, int to) {
+		if (tracking) {
+			int position = from;
+			while (position < to && !contains(position)) {
+				position++;
+			}
+			return position;
+		}
+		if (contains(from)) {
+			return from;
+		}
+		int next = to;
+		if (headStart > from && headStart < next && headEnd > headStart) {
+			next = headStart;
+		}
+		if (tailStart > from && tailStart < next && tailEnd > tailStart) {
+			next = tailStart;
+		}
+		if (lastVisited > from && lastVisited < next) {
+			next = lastVisited;
+		}
+		return next;
+	}
+}
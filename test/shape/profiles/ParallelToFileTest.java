@@ -0,0 +1,88 @@
+package shape.profiles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+import shape.utils.Nucleotide;
+
+/**
+ * Checks that formatting the ranges of a chromosome on several threads
+ * writes the same files as formatting them on one. Matches are added as
+ * deferred ranges, which dense and paged profiles fold into their counts
+ * on the first read, so the ranges of a chromosome must not be the ones
+ * to trigger that fold.
+ *
+ * @author Mason M Lai
+ */
+public class ParallelToFileTest {
+
+	private static final String CHROMOSOME = "chr1";
+	// Several output ranges of toFile, so that one chromosome is formatted on several threads.
+	private static final int LENGTH = 8 * (1 << 16);
+	private static final int NUM_READS = 20000;
+	private static final int READ_LENGTH = 100;
+	private static final int NUM_THREADS = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void denseParallelOutputMatchesSerialOutput() throws IOException {
+		assertParallelMatchesSerial(StorageType.DENSE);
+	}
+
+	@Test
+	public void pagedParallelOutputMatchesSerialOutput() throws IOException {
+		assertParallelMatchesSerial(StorageType.PAGED);
+	}
+
+	private void assertParallelMatchesSerial(StorageType storageType) throws IOException {
+		File serial = folder.newFolder("serial");
+		File parallel = folder.newFolder("parallel");
+		// Each run gets its own profiles, since the first read of a profile folds its pending ranges.
+		newProfiles(storageType).toFile(new File(serial, "out").getPath(), MutationProfileCollection.FULL_PRECISION, 1);
+		newProfiles(storageType).toFile(new File(parallel, "out").getPath(), MutationProfileCollection.FULL_PRECISION, NUM_THREADS);
+
+		String[] names = serial.list();
+		Arrays.sort(names);
+		String[] parallelNames = parallel.list();
+		Arrays.sort(parallelNames);
+		assertArrayEquals(names, parallelNames);
+		for (String name : names) {
+			byte[] expected = Files.readAllBytes(new File(serial, name).toPath());
+			byte[] actual = Files.readAllBytes(new File(parallel, name).toPath());
+			assertEquals(name + " differs in length", expected.length, actual.length);
+			assertArrayEquals(name + " differs", expected, actual);
+		}
+	}
+
+	private static MutationProfileCollection newProfiles(StorageType storageType) throws IOException {
+		MutationProfileCollection profiles = new MutationProfileCollection(1, storageType);
+		profiles.addChromosome(CHROMOSOME, LENGTH);
+		Random random = new Random(0);
+		Nucleotide[] nucleotides = Nucleotide.values();
+		for (int i = 0; i < NUM_READS; i++) {
+			Strand strand = random.nextBoolean() ? Strand.POSITIVE : Strand.NEGATIVE;
+			int start = random.nextInt(LENGTH - READ_LENGTH);
+			profiles.addMatchRange(CHROMOSOME, start, start + READ_LENGTH, strand);
+			if (random.nextInt(4) == 0) {
+				profiles.addMutation(CHROMOSOME, nucleotides[random.nextInt(nucleotides.length)], start + random.nextInt(READ_LENGTH), strand);
+			}
+			if (random.nextInt(8) == 0) {
+				profiles.addDeletion(CHROMOSOME, start + random.nextInt(READ_LENGTH), strand);
+			}
+		}
+		return profiles;
+	}
+}